@@ -0,0 +1,73 @@
+package jackpal.androidterm.emulatorview;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Feeds each {@link Workloads workload} to {@link TerminalEmulator#append}
+ * in the 4 KB chunks a session reads at a time.  One operation is one byte,
+ * so the score is in bytes per second, and the GC profiler's
+ * gc.alloc.rate.norm is in bytes allocated per byte parsed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AppendBenchmark {
+    private static final int COLUMNS = 80;
+    private static final int ROWS = 24;
+    private static final int TRANSCRIPT_ROWS = 10000;
+    private static final int CHUNK_BYTES = 4096;
+
+    @Param({
+        Workloads.ASCII,
+        Workloads.SGR_256,
+        Workloads.TRUECOLOR,
+        Workloads.CJK,
+        Workloads.COMBINING,
+        Workloads.SCROLL_REGION,
+        Workloads.CONTROL_SEQUENCES,
+        Workloads.WIDE_CHARS,
+        Workloads.FULL_WIDTH_TEXT,
+        Workloads.ISSUE_145,
+        Workloads.UTF8_DEMO,
+    })
+    public String workload;
+
+    private byte[] mPayload;
+    private TerminalEmulator mEmulator;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPayload = Workloads.create(workload);
+        ColorScheme scheme = new ColorScheme(0xffcccccc, 0xff000000);
+        TranscriptScreen screen = new TranscriptScreen(COLUMNS, TRANSCRIPT_ROWS, ROWS, scheme);
+        mEmulator = new TerminalEmulator(new NullHost(), screen, COLUMNS, ROWS, scheme);
+        mEmulator.setDefaultUTF8Mode(true);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Workloads.PAYLOAD_BYTES)
+    public TerminalEmulator append() {
+        byte[] payload = mPayload;
+        for (int offset = 0; offset < payload.length; offset += CHUNK_BYTES) {
+            mEmulator.append(payload, offset, Math.min(CHUNK_BYTES, payload.length - offset));
+        }
+        return mEmulator;
+    }
+}
@@ -0,0 +1,145 @@
+package jackpal.androidterm.emulatorview;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the monitor-based {@link ByteQueue} with the lock-free
+ * {@link ByteRingBuffer}: a producer thread moves data through the queue to
+ * the benchmark thread in the chunk sizes TermSession uses.  One operation
+ * is one byte, so the score is in bytes per second.
+ * <p>
+ * Like TermSession, the consumer only reads what getBytesAvailable()
+ * reports.  (ByteQueue can lose the wakeup of a consumer blocked in read()
+ * if the producer was itself waiting for space when the queue drained.)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteQueueBenchmark {
+    private static final int QUEUE_SIZE = 4096;
+    private static final int TRANSFER_BYTES = 4 * 1024 * 1024;
+
+    public static final String BYTE_QUEUE = "ByteQueue";
+    public static final String BYTE_RING_BUFFER = "ByteRingBuffer";
+
+    @Param({
+        BYTE_QUEUE,
+        BYTE_RING_BUFFER,
+    })
+    public String queue;
+
+    @Param({
+        "1",
+        "64",
+        "4096",
+    })
+    public int chunk;
+
+    private interface Queue {
+        int getBytesAvailable();
+        int read(byte[] buffer, int offset, int length) throws InterruptedException;
+        int write(byte[] buffer, int offset, int length) throws InterruptedException;
+    }
+
+    private Queue mQueue;
+    private byte[] mReadBuffer;
+
+    @Setup
+    public void setUp() {
+        if (BYTE_QUEUE.equals(queue)) {
+            mQueue = wrap(new ByteQueue(QUEUE_SIZE));
+        } else {
+            mQueue = wrap(new ByteRingBuffer(QUEUE_SIZE));
+        }
+        mReadBuffer = new byte[chunk];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRANSFER_BYTES)
+    public int transfer() throws InterruptedException {
+        Queue queue = mQueue;
+        Thread producer = startProducer(queue, chunk);
+        byte[] buffer = mReadBuffer;
+        int total = 0;
+        int sum = 0;
+        while (total < TRANSFER_BYTES) {
+            int available = queue.getBytesAvailable();
+            if (available == 0) {
+                Thread.yield();
+                continue;
+            }
+            int read = queue.read(buffer, 0, Math.min(available, buffer.length));
+            sum += buffer[read - 1];
+            total += read;
+        }
+        producer.join();
+        return sum;
+    }
+
+    private static Thread startProducer(final Queue queue, final int chunk) {
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[chunk];
+                int total = 0;
+                try {
+                    while (total < TRANSFER_BYTES) {
+                        int length = Math.min(chunk, TRANSFER_BYTES - total);
+                        int offset = 0;
+                        while (offset < length) {
+                            offset += queue.write(buffer, offset, length - offset);
+                        }
+                        total += length;
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        producer.start();
+        return producer;
+    }
+
+    private static Queue wrap(final ByteQueue queue) {
+        return new Queue() {
+            public int getBytesAvailable() {
+                return queue.getBytesAvailable();
+            }
+            public int read(byte[] buffer, int offset, int length) throws InterruptedException {
+                return queue.read(buffer, offset, length);
+            }
+            public int write(byte[] buffer, int offset, int length) throws InterruptedException {
+                return queue.write(buffer, offset, length);
+            }
+        };
+    }
+
+    private static Queue wrap(final ByteRingBuffer queue) {
+        return new Queue() {
+            public int getBytesAvailable() {
+                return queue.getBytesAvailable();
+            }
+            public int read(byte[] buffer, int offset, int length) throws InterruptedException {
+                return queue.read(buffer, offset, length);
+            }
+            public int write(byte[] buffer, int offset, int length) throws InterruptedException {
+                return queue.write(buffer, offset, length);
+            }
+        };
+    }
+}
@@ -0,0 +1,18 @@
+package jackpal.androidterm.emulatorview;
+
+/**
+ * A {@link TerminalHost} which throws away everything the emulator sends it.
+ */
+final class NullHost implements TerminalHost {
+    public void write(byte[] data, int offset, int count) {
+    }
+
+    public void setTitle(String title) {
+    }
+
+    public void postControlEvent(int event) {
+    }
+
+    public void setCursorKeysApplicationMode(boolean enabled) {
+    }
+}
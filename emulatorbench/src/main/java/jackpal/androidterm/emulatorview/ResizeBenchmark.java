@@ -0,0 +1,74 @@
+package jackpal.androidterm.emulatorview;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A resize storm, as when the soft keyboard comes and goes or a window is
+ * dragged: the screen changes size over and over, with a little output in
+ * between, while the transcript holds a workload's worth of text.  One
+ * operation is one resize.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResizeBenchmark {
+    private static final int TRANSCRIPT_ROWS = 10000;
+
+    /* RESIZES pairs of columns and rows */
+    private static final int RESIZES = 6;
+    private static final int[] SIZES = {
+        80, 24,
+        80, 14,
+        132, 43,
+        40, 30,
+        100, 24,
+        80, 24,
+    };
+
+    @Param({
+        Workloads.ASCII,
+        Workloads.CJK,
+    })
+    public String workload;
+
+    private byte[] mPrompt;
+    private TerminalEmulator mEmulator;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] payload = Workloads.create(workload);
+        mPrompt = "\r\nuser@localhost:~$ ".getBytes("UTF-8");
+        ColorScheme scheme = new ColorScheme(0xffcccccc, 0xff000000);
+        TranscriptScreen screen = new TranscriptScreen(SIZES[0], TRANSCRIPT_ROWS, SIZES[1], scheme);
+        mEmulator = new TerminalEmulator(new NullHost(), screen, SIZES[0], SIZES[1], scheme);
+        mEmulator.setDefaultUTF8Mode(true);
+        mEmulator.append(payload, 0, payload.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RESIZES)
+    public TerminalEmulator resize() {
+        for (int i = 0; i < SIZES.length; i += 2) {
+            mEmulator.updateSize(SIZES[i], SIZES[i + 1]);
+            mEmulator.append(mPrompt, 0, mPrompt.length);
+        }
+        return mEmulator;
+    }
+}
@@ -0,0 +1,234 @@
+package jackpal.androidterm.emulatorview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+
+/**
+ * The byte streams the benchmarks feed to {@link TerminalEmulator}: the
+ * test inputs and the UTF-8 demo from the source tree, which the build
+ * copies in as resources under corpus/, and synthetic output in the style
+ * of common programs.
+ * <p>
+ * Every workload is repeated or cut to exactly {@link #PAYLOAD_BYTES}, so
+ * that one benchmark operation can stand for one byte.
+ */
+final class Workloads {
+    public static final int PAYLOAD_BYTES = 64 * 1024;
+
+    /* The names accepted by create() */
+    public static final String ASCII = "ascii";
+    public static final String SGR_256 = "sgr256";
+    public static final String TRUECOLOR = "truecolor";
+    public static final String CJK = "cjk";
+    public static final String COMBINING = "combining";
+    public static final String SCROLL_REGION = "scrollRegion";
+    public static final String CONTROL_SEQUENCES = "controlSequences";
+    public static final String WIDE_CHARS = "wideChars";
+    public static final String FULL_WIDTH_TEXT = "fullWidthText";
+    public static final String ISSUE_145 = "issue145";
+    public static final String UTF8_DEMO = "utf8Demo";
+
+    private static final String[] CONTROL_SEQUENCES_FILES = {
+        "controlSequences/256color.txt",
+        "controlSequences/combiningCharReplacement.txt",
+        "controlSequences/combiningChars.txt",
+        "controlSequences/hideCursor.txt",
+        "controlSequences/setTitle.txt",
+        "controlSequences/showCursor.txt",
+        "controlSequences/textStyle.txt",
+    };
+    private static final String[] WIDE_CHARS_FILES = {
+        "wideChars/combining-chars.txt",
+        "wideChars/last-column-wrapping.txt",
+        "wideChars/linkification.txt",
+        "wideChars/overwriting1.txt",
+        "wideChars/overwriting2.txt",
+        "wideChars/overwriting3.txt",
+        "wideChars/overwriting4.txt",
+        "wideChars/overwriting5.txt",
+        "wideChars/sip-chars.txt",
+    };
+    private static final String[] FULL_WIDTH_TEXT_FILES = {
+        "fullWidthText",
+    };
+    private static final String[] ISSUE_145_FILES = {
+        "issue145/issue145repro.txt",
+        "issue145/issue145repro-2.txt",
+    };
+    private static final String[] UTF8_DEMO_FILES = {
+        "UTF-8-demo.txt",
+    };
+
+    /* Synthetic workloads are the same from run to run */
+    private static final long SEED = 145;
+
+    private Workloads() {
+    }
+
+    /**
+     * Build a workload.
+     *
+     * @param name One of the workload names above.
+     * @return PAYLOAD_BYTES bytes of terminal output.
+     */
+    public static byte[] create(String name) throws IOException {
+        byte[] source;
+        if (ASCII.equals(name)) {
+            source = ascii();
+        } else if (SGR_256.equals(name)) {
+            source = sgr256();
+        } else if (TRUECOLOR.equals(name)) {
+            source = truecolor();
+        } else if (CJK.equals(name)) {
+            source = cjk();
+        } else if (COMBINING.equals(name)) {
+            source = combining();
+        } else if (SCROLL_REGION.equals(name)) {
+            source = scrollRegion();
+        } else if (CONTROL_SEQUENCES.equals(name)) {
+            source = corpus(CONTROL_SEQUENCES_FILES);
+        } else if (WIDE_CHARS.equals(name)) {
+            source = corpus(WIDE_CHARS_FILES);
+        } else if (FULL_WIDTH_TEXT.equals(name)) {
+            source = corpus(FULL_WIDTH_TEXT_FILES);
+        } else if (ISSUE_145.equals(name)) {
+            source = corpus(ISSUE_145_FILES);
+        } else if (UTF8_DEMO.equals(name)) {
+            source = corpus(UTF8_DEMO_FILES);
+        } else {
+            throw new IllegalArgumentException("Unknown workload " + name);
+        }
+        return repeat(source, PAYLOAD_BYTES);
+    }
+
+    /* Log output: short lines of printable ASCII */
+    private static byte[] ascii() throws UnsupportedEncodingException {
+        Random random = new Random(SEED);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < PAYLOAD_BYTES) {
+            text.append("I/ActivityManager(").append(1000 + random.nextInt(9000))
+                    .append("): Start proc com.example.app").append(random.nextInt(100))
+                    .append(" for activity: pid=").append(random.nextInt(32768))
+                    .append("\r\n");
+        }
+        return text.toString().getBytes("UTF-8");
+    }
+
+    /* A color test: every word in a different 256-color foreground and background */
+    private static byte[] sgr256() throws UnsupportedEncodingException {
+        Random random = new Random(SEED);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < PAYLOAD_BYTES) {
+            for (int word = 0; word < 10; ++word) {
+                text.append("\033[38;5;").append(random.nextInt(256))
+                        .append(";48;5;").append(random.nextInt(256)).append('m')
+                        .append("color").append(word).append(' ');
+            }
+            text.append("\033[0m\r\n");
+        }
+        return text.toString().getBytes("UTF-8");
+    }
+
+    /* A gradient, as drawn by prompts and status lines: RGB colors that change every word */
+    private static byte[] truecolor() throws UnsupportedEncodingException {
+        Random random = new Random(SEED);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < PAYLOAD_BYTES) {
+            int red = random.nextInt(256);
+            for (int word = 0; word < 10; ++word) {
+                text.append("\033[38;2;").append(red).append(';').append(word * 25)
+                        .append(";255;48;2;0;0;").append(random.nextInt(64)).append('m')
+                        .append("color").append(word).append(' ');
+            }
+            text.append("\033[0m\r\n");
+        }
+        return text.toString().getBytes("UTF-8");
+    }
+
+    /* East Asian wide characters, 30 to an 80 column line */
+    private static byte[] cjk() throws UnsupportedEncodingException {
+        Random random = new Random(SEED);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < PAYLOAD_BYTES / 3) {
+            for (int i = 0; i < 30; ++i) {
+                text.append((char) (0x4e00 + random.nextInt(0x5200)));
+            }
+            text.append("\r\n");
+        }
+        return text.toString().getBytes("UTF-8");
+    }
+
+    /* Latin letters carrying one or two combining diacritical marks */
+    private static byte[] combining() throws UnsupportedEncodingException {
+        Random random = new Random(SEED);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < PAYLOAD_BYTES / 2) {
+            for (int i = 0; i < 60; ++i) {
+                text.append((char) ('a' + random.nextInt(26)));
+                int marks = 1 + random.nextInt(2);
+                for (int j = 0; j < marks; ++j) {
+                    text.append((char) (0x300 + random.nextInt(0x70)));
+                }
+            }
+            text.append("\r\n");
+        }
+        return text.toString().getBytes("UTF-8");
+    }
+
+    /*
+     * A pager or editor on a 24 row screen: scroll regions that keep
+     * changing, lines inserted and deleted, and output scrolling within
+     * the region.
+     */
+    private static byte[] scrollRegion() throws UnsupportedEncodingException {
+        Random random = new Random(SEED);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < PAYLOAD_BYTES) {
+            int top = 1 + random.nextInt(8);
+            int bottom = 16 + random.nextInt(8);
+            text.append("\033[").append(top).append(';').append(bottom).append('r');
+            text.append("\033[").append(bottom).append(";1H");
+            for (int i = 0; i < 8; ++i) {
+                text.append("line ").append(random.nextInt(100000)).append("\r\n");
+            }
+            text.append("\033[").append(top).append(";1H\033M");
+            text.append("\033[").append(top + 2).append(";1H\033[2L");
+            text.append("\033[").append(top + 4).append(";1H\033[3M");
+            text.append("\033[r\033[24;1Hstatus line\033[K");
+        }
+        return text.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] corpus(String[] names) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (String name : names) {
+            InputStream in = Workloads.class.getClassLoader()
+                    .getResourceAsStream("corpus/" + name);
+            if (in == null) {
+                throw new IOException("Missing resource corpus/" + name);
+            }
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] repeat(byte[] source, int length) {
+        byte[] result = new byte[length];
+        for (int offset = 0; offset < length; offset += source.length) {
+            System.arraycopy(source, 0, result, offset,
+                    Math.min(source.length, length - offset));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,315 @@
+package jackpal.androidterm.emulatorview;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free produce-consumer byte array.
+ * Only allows one producer and one consumer.
+ * <p>
+ * Unlike {@link ByteQueue}, neither side ever takes a monitor: the producer
+ * owns the tail index and the consumer owns the head index, and each only
+ * reads the other's index (the copying calls work from a locally cached copy,
+ * refreshed only when the cache says there isn't enough data or room).  The
+ * indices are free-running counters; the capacity is rounded up to a power of
+ * two so that a counter is turned into an array offset with a mask.
+ * <p>
+ * The non-blocking {@link #offer offer} and {@link #poll poll} calls are
+ * wait-free.  The blocking {@link #write write} and {@link #read read} calls
+ * only park the calling thread when the queue is full or empty, respectively.
+ * <p>
+ * The consumer can also work on the queue's storage in place: {@link
+ * #getReadOffset} and {@link #getReadableLength} describe the next contiguous
+ * run of readable bytes in {@link #array}, and {@link #commitRead} releases
+ * them once they have been processed.  The producer has the matching
+ * {@link #getWriteOffset}, {@link #getWritableLength} and {@link #commitWrite}.
+ */
+final class ByteRingBuffer {
+    /**
+     * A counter on a cache line of its own, so that the producer and the
+     * consumer don't keep invalidating each other's caches when they update
+     * their own index.  The padding relies on fields of the same type being
+     * laid out in declaration order, which holds for both Dalvik/ART and
+     * HotSpot.
+     */
+    private static final class PaddedIndex {
+        long p0, p1, p2, p3, p4, p5, p6;
+        /** The index owned by this side of the queue. */
+        volatile long value;
+        /** This side's last known value of the other side's index. */
+        long cachedOther;
+        long q0, q1, q2, q3, q4, q5, q6;
+    }
+
+    private final byte[] mBuffer;
+    private final int mCapacity;
+    private final int mMask;
+
+    /** Next position to read; only advanced by the consumer. */
+    private final PaddedIndex mHead = new PaddedIndex();
+    /** Next position to write; only advanced by the producer. */
+    private final PaddedIndex mTail = new PaddedIndex();
+
+    /** Threads parked waiting for data or space, if any. */
+    private volatile Thread mConsumerWaiter;
+    private volatile Thread mProducerWaiter;
+
+    public ByteRingBuffer(int size) {
+        if (size <= 0 || size > (1 << 30)) {
+            throw new IllegalArgumentException("size: " + size);
+        }
+        int capacity = Integer.highestOneBit(size);
+        if (capacity < size) {
+            capacity <<= 1;
+        }
+        mBuffer = new byte[capacity];
+        mCapacity = capacity;
+        mMask = capacity - 1;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * The queue's backing storage, for in-place access together with
+     * {@link #getReadOffset}/{@link #getWriteOffset}.
+     */
+    byte[] array() {
+        return mBuffer;
+    }
+
+    public int getBytesAvailable() {
+        return (int) (mTail.value - mHead.value);
+    }
+
+    public int getFreeSpace() {
+        return mCapacity - getBytesAvailable();
+    }
+
+    // Consumer side
+
+    /**
+     * Read up to <code>length</code> bytes without blocking.
+     *
+     * @return The number of bytes read, possibly zero.
+     */
+    public int poll(byte[] buffer, int offset, int length) {
+        checkBounds(buffer, offset, length);
+        PaddedIndex head = mHead;
+        long position = head.value;
+        int available = (int) (head.cachedOther - position);
+        if (available < length) {
+            head.cachedOther = mTail.value;
+            available = (int) (head.cachedOther - position);
+        }
+        int count = Math.min(available, length);
+        if (count == 0) {
+            return 0;
+        }
+        int index = (int) position & mMask;
+        int firstRun = Math.min(count, mCapacity - index);
+        System.arraycopy(mBuffer, index, buffer, offset, firstRun);
+        if (firstRun < count) {
+            System.arraycopy(mBuffer, 0, buffer, offset + firstRun, count - firstRun);
+        }
+        publishHead(position + count);
+        return count;
+    }
+
+    /**
+     * Read up to <code>length</code> bytes, blocking until at least one byte
+     * is available.
+     *
+     * @return The number of bytes read.
+     */
+    public int read(byte[] buffer, int offset, int length)
+        throws InterruptedException {
+        checkBounds(buffer, offset, length);
+        if (length == 0) {
+            return 0;
+        }
+        waitForData();
+        return poll(buffer, offset, length);
+    }
+
+    /**
+     * Block until there is at least one byte to read.
+     */
+    void waitForData() throws InterruptedException {
+        if (getReadableLength() > 0) {
+            return;
+        }
+        mConsumerWaiter = Thread.currentThread();
+        try {
+            while (getBytesAvailable() == 0) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            mConsumerWaiter = null;
+        }
+    }
+
+    /**
+     * @return The offset in {@link #array} of the next byte to be read.
+     */
+    int getReadOffset() {
+        return (int) mHead.value & mMask;
+    }
+
+    /**
+     * @return The number of bytes which can be read starting at
+     *         {@link #getReadOffset} without wrapping around the end of
+     *         {@link #array}.
+     */
+    int getReadableLength() {
+        PaddedIndex head = mHead;
+        long position = head.value;
+        long tail = head.cachedOther = mTail.value;
+        int index = (int) position & mMask;
+        return (int) Math.min(tail - position, mCapacity - index);
+    }
+
+    /**
+     * Release <code>count</code> bytes, previously obtained through
+     * {@link #getReadOffset}/{@link #getReadableLength}, to the producer.
+     */
+    void commitRead(int count) {
+        PaddedIndex head = mHead;
+        long position = head.value;
+        if (count < 0 || count > head.cachedOther - position) {
+            throw new IllegalArgumentException("count: " + count);
+        }
+        publishHead(position + count);
+    }
+
+    private void publishHead(long position) {
+        mHead.value = position;
+        Thread waiter = mProducerWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    // Producer side
+
+    /**
+     * Write up to <code>length</code> bytes without blocking.
+     *
+     * @return The number of bytes written, possibly zero.
+     */
+    public int offer(byte[] buffer, int offset, int length) {
+        checkBounds(buffer, offset, length);
+        PaddedIndex tail = mTail;
+        long position = tail.value;
+        int free = mCapacity - (int) (position - tail.cachedOther);
+        if (free < length) {
+            tail.cachedOther = mHead.value;
+            free = mCapacity - (int) (position - tail.cachedOther);
+        }
+        int count = Math.min(free, length);
+        if (count == 0) {
+            return 0;
+        }
+        int index = (int) position & mMask;
+        int firstRun = Math.min(count, mCapacity - index);
+        System.arraycopy(buffer, offset, mBuffer, index, firstRun);
+        if (firstRun < count) {
+            System.arraycopy(buffer, offset + firstRun, mBuffer, 0, count - firstRun);
+        }
+        publishTail(position + count);
+        return count;
+    }
+
+    /**
+     * Attempt to write the specified portion of the provided buffer to
+     * the queue, blocking until there is room for at least one byte.  Returns
+     * the number of bytes actually written to the queue; it is the caller's
+     * responsibility to check whether all of the data was written and repeat
+     * the call to write() if necessary.
+     */
+    public int write(byte[] buffer, int offset, int length)
+        throws InterruptedException {
+        checkBounds(buffer, offset, length);
+        if (length == 0) {
+            return 0;
+        }
+        waitForSpace();
+        return offer(buffer, offset, length);
+    }
+
+    /**
+     * Block until there is room for at least one byte.
+     */
+    void waitForSpace() throws InterruptedException {
+        if (getWritableLength() > 0) {
+            return;
+        }
+        mProducerWaiter = Thread.currentThread();
+        try {
+            while (getFreeSpace() == 0) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            mProducerWaiter = null;
+        }
+    }
+
+    /**
+     * @return The offset in {@link #array} at which the next byte should be
+     *         written.
+     */
+    int getWriteOffset() {
+        return (int) mTail.value & mMask;
+    }
+
+    /**
+     * @return The number of bytes which can be written starting at
+     *         {@link #getWriteOffset} without wrapping around the end of
+     *         {@link #array}.
+     */
+    int getWritableLength() {
+        PaddedIndex tail = mTail;
+        long position = tail.value;
+        long head = tail.cachedOther = mHead.value;
+        int index = (int) position & mMask;
+        return (int) Math.min(mCapacity - (position - head), mCapacity - index);
+    }
+
+    /**
+     * Publish <code>count</code> bytes, previously stored through
+     * {@link #getWriteOffset}/{@link #getWritableLength}, to the consumer.
+     */
+    void commitWrite(int count) {
+        PaddedIndex tail = mTail;
+        long position = tail.value;
+        if (count < 0 || count > mCapacity - (position - tail.cachedOther)) {
+            throw new IllegalArgumentException("count: " + count);
+        }
+        publishTail(position + count);
+    }
+
+    private void publishTail(long position) {
+        mTail.value = position;
+        Thread waiter = mConsumerWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    private static void checkBounds(byte[] buffer, int offset, int length) {
+        if (length + offset > buffer.length) {
+            throw
+                new IllegalArgumentException("length + offset > buffer.length");
+        }
+        if (length < 0) {
+            throw
+                new IllegalArgumentException("length < 0");
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package jackpal.androidterm.emulatorview;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Logging for the emulator core, in the style of android.util.Log, which
+ * writes to the log of the current {@link EmulatorPlatform}.
+ */
+final class EmulatorLog {
+    private EmulatorLog() {
+    }
+
+    public static void d(String tag, String message) {
+        EmulatorPlatform.get().log(EmulatorPlatform.DEBUG, tag, message);
+    }
+
+    public static void i(String tag, String message) {
+        EmulatorPlatform.get().log(EmulatorPlatform.INFO, tag, message);
+    }
+
+    public static void w(String tag, String message) {
+        EmulatorPlatform.get().log(EmulatorPlatform.WARN, tag, message);
+    }
+
+    public static void e(String tag, String message) {
+        EmulatorPlatform.get().log(EmulatorPlatform.ERROR, tag, message);
+    }
+
+    public static void e(String tag, String message, Throwable tr) {
+        StringWriter trace = new StringWriter();
+        PrintWriter writer = new PrintWriter(trace);
+        tr.printStackTrace(writer);
+        writer.flush();
+        e(tag, message + '\n' + trace);
+    }
+}
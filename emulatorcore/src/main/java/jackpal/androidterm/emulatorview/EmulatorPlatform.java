@@ -0,0 +1,72 @@
+package jackpal.androidterm.emulatorview;
+
+/**
+ * The few things the emulator core needs from the platform it runs on: a log,
+ * and what the platform's fonts do with some characters whose width the
+ * Unicode tables leave open.
+ * <p>
+ * The default implementation needs nothing but the Java class library, so
+ * that the core can be tested and benchmarked on a plain JVM.  On Android,
+ * the emulatorview module installs one backed by the Android APIs before
+ * any emulator is created.
+ */
+abstract class EmulatorPlatform {
+    /* Log priorities, with the same values as android.util.Log's */
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static volatile EmulatorPlatform sPlatform = new JavaPlatform();
+
+    public static EmulatorPlatform get() {
+        return sPlatform;
+    }
+
+    public static void set(EmulatorPlatform platform) {
+        if (platform == null) {
+            throw new IllegalArgumentException("platform is null");
+        }
+        sPlatform = platform;
+    }
+
+    /**
+     * Write a message to the log.
+     *
+     * @param priority One of DEBUG, INFO, WARN or ERROR.
+     */
+    public abstract void log(int priority, String tag, String message);
+
+    /**
+     * Whether the fonts draw a Hangul conjoining medial vowel or final
+     * consonant as part of the syllable block before it (width 0), instead
+     * of as a wide character of its own (width 2).
+     */
+    public abstract boolean composesHangulJamo();
+
+    /**
+     * Whether a BMP character is East Asian fullwidth or wide, for when the
+     * platform's width data is used instead of the built in tables.
+     */
+    public abstract boolean isEastAsianWide(char c);
+
+    private static class JavaPlatform extends EmulatorPlatform {
+        private static final String[] PRIORITY_NAMES = { "D", "I", "W", "E" };
+
+        @Override
+        public void log(int priority, String tag, String message) {
+            System.err.println(PRIORITY_NAMES[priority - DEBUG] + "/" + tag + ": " + message);
+        }
+
+        @Override
+        public boolean composesHangulJamo() {
+            return true;
+        }
+
+        @Override
+        public boolean isEastAsianWide(char c) {
+            // The class library has no East Asian width data of its own
+            return UnicodeTranscript.isDoubleWidth(c);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package jackpal.androidterm.emulatorview;
+
+/**
+ * A record of what the escape sequence parser did lately, kept so that there
+ * is something to go on when a program confuses the emulator.  It holds the
+ * most recent input bytes, and the most recent parser events -- escape state
+ * changes, unknown sequences and parameters, exceptions -- each as a few
+ * ints.  Recording never allocates; the text is only built by
+ * {@link #dump}.
+ * <p>
+ * Event positions are offsets in the input stream, as counted by
+ * {@link #recordBytes}.  Not thread safe: the owner records and dumps under
+ * its own lock.
+ */
+final class ParserTrace {
+    public static final int EVENT_STATE = 1;
+    public static final int EVENT_UNKNOWN_SEQUENCE = 2;
+    public static final int EVENT_UNIMPLEMENTED_SEQUENCE = 3;
+    public static final int EVENT_UNKNOWN_PARAMETER = 4;
+    public static final int EVENT_UNKNOWN_SGR = 5;
+    public static final int EVENT_INVALID_COLOR = 6;
+    public static final int EVENT_EXCEPTION = 7;
+
+    /* Each event is a header (type, escape state, byte), a position and two values */
+    private static final int EVENT_INTS = 4;
+
+    private final byte[] mBytes;
+    private long mBytesRecorded;
+
+    private final int[] mEvents;
+    private final int mEventMask;
+    private long mEventsRecorded;
+
+    /**
+     * @param byteCapacity How many of the most recent input bytes to keep.
+     * @param eventCapacity How many of the most recent events to keep; must
+     *        be a power of two.
+     */
+    public ParserTrace(int byteCapacity, int eventCapacity) {
+        if (byteCapacity <= 0 || eventCapacity <= 0
+                || (eventCapacity & (eventCapacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity: " + byteCapacity
+                    + ", " + eventCapacity);
+        }
+        mBytes = new byte[byteCapacity];
+        mEvents = new int[eventCapacity * EVENT_INTS];
+        mEventMask = eventCapacity - 1;
+    }
+
+    /**
+     * Record bytes received by the parser, which advance the input position
+     * by count.
+     */
+    public void recordBytes(byte[] buffer, int offset, int count) {
+        int capacity = mBytes.length;
+        if (count > capacity) {
+            offset += count - capacity;
+            mBytesRecorded += count - capacity;
+            count = capacity;
+        }
+        int start = (int) (mBytesRecorded % capacity);
+        int firstPart = Math.min(count, capacity - start);
+        System.arraycopy(buffer, offset, mBytes, start, firstPart);
+        System.arraycopy(buffer, offset + firstPart, mBytes, 0, count - firstPart);
+        mBytesRecorded += count;
+    }
+
+    /**
+     * Record an event.
+     *
+     * @param type One of the EVENT_ constants.
+     * @param position The input position at which the event happened.
+     * @param state The escape state.
+     * @param b The byte being processed, which is shown for state changes,
+     *        sequences and exceptions.
+     * @param value1 For EVENT_STATE the escape state before the change, for
+     *        unknown sequences the first parameter, otherwise the offending
+     *        value.
+     * @param value2 For unknown sequences the second parameter, otherwise
+     *        unused.
+     */
+    public void record(int type, long position, int state, byte b, int value1, int value2) {
+        int index = (int) (mEventsRecorded & mEventMask) * EVENT_INTS;
+        int[] events = mEvents;
+        events[index] = (type << 24) | ((state & 0xffff) << 8) | (b & 0xff);
+        events[index + 1] = (int) position;
+        events[index + 2] = value1;
+        events[index + 3] = value2;
+        mEventsRecorded++;
+    }
+
+    /**
+     * Describe the most recent event, or return null if there is none.
+     */
+    public String describeLastEvent() {
+        if (mEventsRecorded == 0) {
+            return null;
+        }
+        StringBuilder out = new StringBuilder();
+        appendEvent(out, (int) ((mEventsRecorded - 1) & mEventMask) * EVENT_INTS);
+        return out.toString();
+    }
+
+    /**
+     * Describe everything in the trace: the recent input, then the recent
+     * events, oldest first.
+     */
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        int capacity = mBytes.length;
+        int count = (int) Math.min(mBytesRecorded, capacity);
+        long first = mBytesRecorded - count;
+        out.append("Input from offset ").append(first).append(" to ")
+                .append(mBytesRecorded).append(": '");
+        byte[] bytes = new byte[count];
+        int start = (int) (first % capacity);
+        int firstPart = Math.min(count, capacity - start);
+        System.arraycopy(mBytes, start, bytes, 0, firstPart);
+        System.arraycopy(mBytes, 0, bytes, firstPart, count - firstPart);
+        out.append(EmulatorDebug.bytesToString(bytes, 0, count)).append("'\n");
+
+        long events = Math.min(mEventsRecorded, mEventMask + 1);
+        out.append("Last ").append(events).append(" of ").append(mEventsRecorded)
+                .append(" events:\n");
+        for (long i = mEventsRecorded - events; i < mEventsRecorded; ++i) {
+            out.append("  ");
+            appendEvent(out, (int) (i & mEventMask) * EVENT_INTS);
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    private void appendEvent(StringBuilder out, int index) {
+        int header = mEvents[index];
+        int type = header >>> 24;
+        int state = (header >> 8) & 0xffff;
+        int b = header & 0xff;
+        int value1 = mEvents[index + 2];
+        int value2 = mEvents[index + 3];
+
+        // Positions are kept modulo 2^32
+        out.append('@').append(mEvents[index + 1] & 0xffffffffL).append(' ');
+        switch (type) {
+        case EVENT_STATE:
+            out.append("state ").append(value1).append(" -> ").append(state);
+            break;
+        case EVENT_UNKNOWN_SEQUENCE:
+        case EVENT_UNIMPLEMENTED_SEQUENCE:
+            out.append(type == EVENT_UNKNOWN_SEQUENCE ? "unknown" : "unimplemented")
+                    .append(" sequence in state ").append(state)
+                    .append(", args ").append(value1).append(';').append(value2);
+            break;
+        case EVENT_UNKNOWN_PARAMETER:
+            out.append("unknown parameter ").append(value1);
+            break;
+        case EVENT_UNKNOWN_SGR:
+            out.append("unknown SGR code ").append(value1);
+            break;
+        case EVENT_INVALID_COLOR:
+            out.append("invalid color ").append(value1);
+            break;
+        case EVENT_EXCEPTION:
+            out.append("exception in state ").append(state);
+            break;
+        default:
+            out.append("event ").append(type);
+            break;
+        }
+        if (type <= EVENT_UNIMPLEMENTED_SEQUENCE || type == EVENT_EXCEPTION) {
+            out.append(String.format(" at 0x%02x", b));
+            if (b >= 32 && b < 127) {
+                out.append(" '").append((char) b).append('\'');
+            }
+        }
+    }
+}
@@ -49,6 +49,19 @@ interface Screen {
      */
     void set(int x, int y, byte b, int style);
 
+    /**
+     * Store a run of printable ASCII characters into a single row of the
+     * screen, starting at location (x, y).  The run must fit into the row.
+     *
+     * @param x X coordinate (also known as column) of the first character
+     * @param y Y coordinate (also known as row)
+     * @param text An array holding the ASCII characters to store
+     * @param offset The index of the first character in the array
+     * @param count The number of characters to store
+     * @param style the text style
+     */
+    void set(int x, int y, byte[] text, int offset, int count, int style);
+
     /**
      * Scroll the screen down one line. To scroll the whole screen of a 24 line
      * screen, the arguments would be (0, 24).
@@ -59,6 +72,18 @@ interface Screen {
      */
     void scroll(int topMargin, int bottomMargin, int style);
 
+    /**
+     * Scroll the screen down several lines at once, with the same effect as
+     * scrolling it down one line that many times.
+     *
+     * @param topMargin First line that is scrolled.
+     * @param bottomMargin One line after the last line that is scrolled.
+     * @param count The number of lines to scroll, at most bottomMargin -
+     *        topMargin.
+     * @param style the style for the newly exposed lines.
+     */
+    void scroll(int topMargin, int bottomMargin, int count, int style);
+
     /**
      * Block copy characters from one position in the screen to another. The two
      * positions can overlap. All characters of the source and destination must
@@ -0,0 +1,308 @@
+package jackpal.androidterm.emulatorview;
+
+/**
+ * A run of consecutive transcript rows, packed into a byte array once they
+ * have scrolled far enough above the screen that they're unlikely to be
+ * looked at again.  Immutable; {@link UnicodeTranscript} unpacks a chunk
+ * again when one of its rows is wanted.
+ * <p>
+ * Each row is stored as:
+ * <ul>
+ * <li>its kind: blank, basic or full;</li>
+ * <li>for a basic line, the number of characters up to the last non-blank
+ *   one, then those characters in UTF-8 (each UTF-16 unit on its own, so
+ *   that any char[] survives);</li>
+ * <li>for a full line, the characters used in the same way, then the
+ *   column offsets as runs of (count, offset);</li>
+ * <li>its styles as runs of (count, style), or a count of 0 if the row
+ *   had no style row.</li>
+ * </ul>
+ * Counts, offsets and styles are written as variable-length integers.
+ */
+final class ScrollbackChunk {
+    private static final int KIND_BLANK = 0;
+    private static final int KIND_BASIC = 1;
+    private static final int KIND_FULL = 2;
+
+    private final byte[] mData;
+    private final int mFirstRow;
+    private final int mRows;
+
+    private ScrollbackChunk(byte[] data, int firstRow, int rows) {
+        mData = data;
+        mFirstRow = firstRow;
+        mRows = rows;
+    }
+
+    /**
+     * @param row A row of the transcript's circular buffer which is in this
+     *        chunk.
+     * @param totalRows The size of the circular buffer.
+     * @return The index of the row within the chunk.
+     */
+    public int indexOf(int row, int totalRows) {
+        int index = row - mFirstRow;
+        return index < 0 ? index + totalRows : index;
+    }
+
+    /**
+     * @return A chunk of the same rows, which have moved so that the first
+     *         is at firstRow of the circular buffer.
+     */
+    public ScrollbackChunk moveTo(int firstRow) {
+        return new ScrollbackChunk(mData, firstRow, mRows);
+    }
+
+    /**
+     * Pack rows of a transcript's circular buffer.
+     *
+     * @param lines The lines of the buffer: null, char[] or FullUnicodeLine.
+     * @param colors The style rows of the buffer.
+     * @param firstRow The first row to pack.
+     * @param rows How many rows to pack, wrapping around the end of the
+     *        buffer.
+     * @param columns The width of the rows.
+     * @param writer A buffer to pack into, which may be reused afterwards.
+     */
+    public static ScrollbackChunk pack(Object[] lines, StyleRow[] colors,
+            int firstRow, int rows, int columns, Writer writer) {
+        writer.reset();
+        int totalRows = lines.length;
+        for (int i = 0; i < rows; ++i) {
+            int row = (firstRow + i) % totalRows;
+            packRow(lines[row], colors[row], columns, writer);
+        }
+        byte[] data = new byte[writer.mLength];
+        System.arraycopy(writer.mBuffer, 0, data, 0, data.length);
+        return new ScrollbackChunk(data, firstRow, rows);
+    }
+
+    /**
+     * Append one row to a writer, in the format rows of a chunk are stored
+     * in.
+     *
+     * @param line The line: null, char[] or FullUnicodeLine.
+     * @param color The style row, or null.
+     * @param columns The width of the row.
+     * @param writer The buffer to append to.
+     */
+    static void packRow(Object line, StyleRow color, int columns, Writer writer) {
+        if (line instanceof char[]) {
+            char[] text = (char[]) line;
+            int length = columns;
+            while (length > 0 && text[length - 1] == ' ') {
+                --length;
+            }
+            writer.writeInt(KIND_BASIC);
+            writer.writeChars(text, length);
+        } else if (line instanceof FullUnicodeLine) {
+            FullUnicodeLine fullLine = (FullUnicodeLine) line;
+            writer.writeInt(KIND_FULL);
+            writer.writeChars(fullLine.getLine(), fullLine.getSpaceUsed());
+            int column = 1;
+            while (column < columns) {
+                int offset = fullLine.findStartOfColumn(column) - column;
+                int end = column + 1;
+                while (end < columns
+                        && fullLine.findStartOfColumn(end) - end == offset) {
+                    ++end;
+                }
+                writer.writeInt(end - column);
+                writer.writeInt(offset);
+                column = end;
+            }
+        } else {
+            writer.writeInt(KIND_BLANK);
+        }
+
+        if (color == null) {
+            writer.writeInt(0);
+            return;
+        }
+        for (int column = 0; column < columns; ) {
+            int end = color.getRunEnd(column);
+            writer.writeInt(end - column);
+            writer.writeInt(color.get(column));
+            column = end;
+        }
+    }
+
+    /**
+     * Unpack every row of the chunk into new lines and style rows.
+     *
+     * @param columns The width of the rows.
+     * @param lines Receives the lines, indexed by row within the chunk.
+     * @param colors Receives the style rows.
+     */
+    public void unpack(int columns, Object[] lines, StyleRow[] colors) {
+        Reader reader = new Reader(mData);
+        for (int i = 0; i < mRows; ++i) {
+            unpackRow(reader, columns, lines, colors, i);
+        }
+    }
+
+    /**
+     * Read one row written by {@link #packRow} into new lines and style
+     * rows.
+     *
+     * @param reader The reader, positioned at the start of the row.
+     * @param columns The width of the row.
+     * @param lines Receives the line at index.
+     * @param colors Receives the style row at index.
+     * @param index Where in lines and colors to put the row.
+     */
+    static void unpackRow(Reader reader, int columns, Object[] lines,
+            StyleRow[] colors, int index) {
+        int kind = reader.readInt();
+        if (kind == KIND_BASIC) {
+            char[] text = new char[columns];
+            int length = reader.readChars(text);
+            for (int j = length; j < columns; ++j) {
+                text[j] = ' ';
+            }
+            lines[index] = text;
+        } else if (kind == KIND_FULL) {
+            int length = reader.readInt();
+            // Leave the spare room a new line would have
+            char[] text = new char[Math.max(length,
+                    (int) (FullUnicodeLine.SPARE_CAPACITY_FACTOR * columns))];
+            reader.readChars(text, length);
+            short[] offsets = new short[columns];
+            int column = 1;
+            while (column < columns) {
+                int count = reader.readInt();
+                short offset = (short) reader.readInt();
+                for (int j = 0; j < count; ++j) {
+                    offsets[column++] = offset;
+                }
+            }
+            lines[index] = new FullUnicodeLine(columns, text, length, offsets);
+        } else {
+            lines[index] = null;
+        }
+
+        int count = reader.readInt();
+        if (count == 0) {
+            colors[index] = null;
+            return;
+        }
+        StyleRow color = new StyleRow(reader.readInt(), columns);
+        for (int column = count; column < columns; column += count) {
+            count = reader.readInt();
+            color.set(column, count, reader.readInt());
+        }
+        colors[index] = color;
+    }
+
+    /**
+     * A growable buffer to pack rows into.
+     */
+    static final class Writer {
+        private byte[] mBuffer = new byte[1024];
+        private int mLength;
+
+        void reset() {
+            mLength = 0;
+        }
+
+        /** @return The buffer, of which the first getLength() bytes are used. */
+        byte[] getData() {
+            return mBuffer;
+        }
+
+        int getLength() {
+            return mLength;
+        }
+
+        void writeInt(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7f) != 0) {
+                mBuffer[mLength++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            mBuffer[mLength++] = (byte) value;
+        }
+
+        void writeChars(char[] text, int length) {
+            writeInt(length);
+            ensureCapacity(3 * length);
+            byte[] buffer = mBuffer;
+            int position = mLength;
+            for (int i = 0; i < length; ++i) {
+                char c = text[i];
+                if (c < 0x80) {
+                    buffer[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[position++] = (byte) (0xc0 | (c >> 6));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3f));
+                } else {
+                    buffer[position++] = (byte) (0xe0 | (c >> 12));
+                    buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            mLength = position;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (mLength + extra > mBuffer.length) {
+                byte[] buffer = new byte[Math.max(2 * mBuffer.length, mLength + extra)];
+                System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+                mBuffer = buffer;
+            }
+        }
+    }
+
+    /**
+     * Reads back what a Writer wrote.
+     */
+    static final class Reader {
+        private final byte[] mData;
+        private int mPosition;
+
+        Reader(byte[] data) {
+            mData = data;
+        }
+
+        /** Start reading from the beginning of the data again. */
+        void reset() {
+            mPosition = 0;
+        }
+
+        int readInt() {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = mData[mPosition++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        /* Read a count and that many characters, returning the count */
+        int readChars(char[] text) {
+            int length = readInt();
+            readChars(text, length);
+            return length;
+        }
+
+        void readChars(char[] text, int length) {
+            byte[] data = mData;
+            int position = mPosition;
+            for (int i = 0; i < length; ++i) {
+                int b = data[position++] & 0xff;
+                if (b < 0x80) {
+                    text[i] = (char) b;
+                } else if (b < 0xe0) {
+                    text[i] = (char) (((b & 0x1f) << 6) | (data[position++] & 0x3f));
+                } else {
+                    text[i] = (char) (((b & 0x0f) << 12) | ((data[position++] & 0x3f) << 6)
+                            | (data[position++] & 0x3f));
+                }
+            }
+            mPosition = position;
+        }
+    }
+}
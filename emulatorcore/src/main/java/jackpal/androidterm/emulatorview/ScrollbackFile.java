@@ -0,0 +1,346 @@
+package jackpal.androidterm.emulatorview;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Rows which have been pushed out of a {@link UnicodeTranscript}, kept in a
+ * file instead of being thrown away, so that a session can have as much
+ * scrollback as there is disk to hold it without using more memory.
+ * <p>
+ * Each row is appended to a data file as its line wrap flag and width,
+ * followed by the row in the format of a {@link ScrollbackChunk}.  Rows keep
+ * the width they were written with when the screen is resized, and are
+ * padded or clipped to the width they're read at.  An index file next to it
+ * holds the offset and length of every row, so that any row can be found
+ * without reading the ones before it.  Rows are read through windows of the
+ * files mapped into memory.
+ * <p>
+ * Rows are appended to a buffer in memory and written out a batch at a
+ * time.  Like the transcript, a ScrollbackFile must only be used from one
+ * thread at a time.
+ */
+final class ScrollbackFile {
+    private static final String TAG = "ScrollbackFile";
+
+    /* Each index entry is the row's offset, then its length */
+    private static final int INDEX_ENTRY_SIZE = 12;
+
+    /* Write out pending rows once there are this many of them ... */
+    private static final int FLUSH_ROWS = 256;
+    /* ... or this many bytes of them */
+    private static final int FLUSH_SIZE = 64 * 1024;
+
+    private static final int DATA_WINDOW_SIZE = 1024 * 1024;
+    private static final int INDEX_WINDOW_SIZE = INDEX_ENTRY_SIZE * 16 * 1024;
+
+    private final File mDataFile;
+    private final File mIndexFile;
+    private RandomAccessFile mData;
+    private RandomAccessFile mIndex;
+
+    /* Rows and bytes already in the files */
+    private long mFlushedRows;
+    private long mFlushedLength;
+
+    /* Rows not written out yet */
+    private final ScrollbackChunk.Writer mPending = new ScrollbackChunk.Writer();
+    private final ByteBuffer mPendingIndex =
+            ByteBuffer.allocate(INDEX_ENTRY_SIZE * FLUSH_ROWS);
+    private int mPendingRows;
+
+    private final Window mDataWindow = new Window(DATA_WINDOW_SIZE);
+    private final Window mIndexWindow = new Window(INDEX_WINDOW_SIZE);
+    private byte[] mRowData = new byte[256];
+    private ScrollbackChunk.Reader mRowReader = new ScrollbackChunk.Reader(mRowData);
+
+    private boolean mFailed;
+
+    /**
+     * Create an empty scrollback file.  The rows go in the given file, and
+     * their index in a file of the same name ending in ".index".  Both are
+     * replaced if they exist already.
+     */
+    public ScrollbackFile(File file) throws IOException {
+        mDataFile = file;
+        mIndexFile = new File(file.getPath() + ".index");
+        mData = new RandomAccessFile(mDataFile, "rw");
+        try {
+            mIndex = new RandomAccessFile(mIndexFile, "rw");
+        } catch (IOException e) {
+            mData.close();
+            throw e;
+        }
+        mData.setLength(0);
+        mIndex.setLength(0);
+    }
+
+    /**
+     * @return The number of rows in the file.  This stops growing if the
+     *         file can't be written to.
+     */
+    public long getRowCount() {
+        return mFlushedRows + mPendingRows;
+    }
+
+    /**
+     * Add a row after the last one.
+     *
+     * @param line The line: null, char[] or FullUnicodeLine.
+     * @param color The style row, or null.
+     * @param lineWrap Whether the line wraps onto the next one.
+     * @param columns The width of the row.
+     */
+    public void append(Object line, StyleRow color, boolean lineWrap, int columns) {
+        if (mFailed) {
+            return;
+        }
+        ScrollbackChunk.Writer pending = mPending;
+        int start = pending.getLength();
+        pending.writeInt(lineWrap ? 1 : 0);
+        pending.writeInt(columns);
+        ScrollbackChunk.packRow(line, color, columns, pending);
+        mPendingIndex.putLong(mFlushedLength + start);
+        mPendingIndex.putInt(pending.getLength() - start);
+        ++mPendingRows;
+        if (mPendingRows == FLUSH_ROWS || pending.getLength() >= FLUSH_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Read a row back.  If it can't be read, it comes back blank.
+     *
+     * @param row The row, counting from 0 for the oldest.
+     * @param columns The width to read the row at, which needn't be the
+     *        width it was appended with.
+     * @param lines Receives the line at index 0.
+     * @param colors Receives the style row at index 0.
+     * @return The row's line wrap flag.
+     */
+    public boolean read(long row, int columns, Object[] lines, StyleRow[] colors) {
+        lines[0] = null;
+        colors[0] = null;
+        if (row < 0 || row >= getRowCount()) {
+            throw new IllegalArgumentException("row " + row);
+        }
+        if (row >= mFlushedRows) {
+            // Rare -- only the newest rows are still pending
+            flush();
+            if (row >= mFlushedRows) {
+                return false;
+            }
+        }
+
+        try {
+            long entry = row * INDEX_ENTRY_SIZE;
+            MappedByteBuffer index = mIndexWindow.map(mIndex.getChannel(),
+                    entry, INDEX_ENTRY_SIZE, mFlushedRows * INDEX_ENTRY_SIZE);
+            int indexPosition = (int) (entry - mIndexWindow.mStart);
+            long offset = index.getLong(indexPosition);
+            int length = index.getInt(indexPosition + 8);
+
+            MappedByteBuffer data = mDataWindow.map(mData.getChannel(),
+                    offset, length, mFlushedLength);
+            if (mRowData.length < length) {
+                mRowData = new byte[Math.max(length, 2 * mRowData.length)];
+                mRowReader = new ScrollbackChunk.Reader(mRowData);
+            }
+            data.position((int) (offset - mDataWindow.mStart));
+            data.get(mRowData, 0, length);
+        } catch (IOException e) {
+            EmulatorLog.e(TAG, "Failed to read scrollback", e);
+            return false;
+        }
+
+        ScrollbackChunk.Reader reader = mRowReader;
+        reader.reset();
+        boolean lineWrap = reader.readInt() != 0;
+        int rowColumns = reader.readInt();
+        ScrollbackChunk.unpackRow(reader, rowColumns, lines, colors, 0);
+        if (rowColumns != columns) {
+            fitRow(rowColumns, columns, lines, colors);
+        }
+        return lineWrap;
+    }
+
+    /* Pad or clip a row, as unpacked at the width it was appended with, to columns */
+    private static void fitRow(int rowColumns, int columns, Object[] lines,
+            StyleRow[] colors) {
+        int shared = Math.min(rowColumns, columns);
+        Object line = lines[0];
+        if (line instanceof char[]) {
+            char[] text = new char[columns];
+            System.arraycopy((char[]) line, 0, text, 0, shared);
+            Arrays.fill(text, shared, columns, ' ');
+            lines[0] = text;
+        } else if (line instanceof FullUnicodeLine) {
+            lines[0] = fitLine((FullUnicodeLine) line, rowColumns, columns);
+        }
+
+        StyleRow color = colors[0];
+        if (color != null) {
+            // Padding takes the style of the last column, as an erased line would
+            StyleRow fitted = new StyleRow(color.get(shared - 1), columns);
+            for (int column = 0; column < shared; ) {
+                int end = Math.min(color.getRunEnd(column), shared);
+                fitted.set(column, end - column, color.get(column));
+                column = end;
+            }
+            colors[0] = fitted;
+        }
+    }
+
+    private static FullUnicodeLine fitLine(FullUnicodeLine line, int rowColumns,
+            int columns) {
+        char[] oldText = line.getLine();
+        int oldSpaceUsed = line.getSpaceUsed();
+        int spaceUsed;
+        if (columns > rowColumns) {
+            spaceUsed = oldSpaceUsed + columns - rowColumns;
+        } else {
+            spaceUsed = line.findStartOfColumn(columns);
+        }
+
+        char[] text = new char[Math.max(spaceUsed + 1,
+                (int) (FullUnicodeLine.SPARE_CAPACITY_FACTOR * columns))];
+        if (columns > rowColumns) {
+            System.arraycopy(oldText, 0, text, 0, oldSpaceUsed);
+            Arrays.fill(text, oldSpaceUsed, spaceUsed, ' ');
+        } else {
+            System.arraycopy(oldText, 0, text, 0, spaceUsed);
+            if (line.findStartOfColumn(columns - 1) == spaceUsed) {
+                // The last column held the first half of a wide character
+                text[spaceUsed++] = ' ';
+            }
+        }
+
+        short[] offset = new short[columns];
+        for (int column = 1; column < columns; ++column) {
+            if (column < rowColumns) {
+                offset[column] = (short) (line.findStartOfColumn(column) - column);
+            } else {
+                offset[column] = (short) (oldSpaceUsed - rowColumns);
+            }
+        }
+        return new FullUnicodeLine(columns, text, spaceUsed, offset);
+    }
+
+    /**
+     * Close and delete the files.
+     */
+    public void close() {
+        forgetRows();
+        mFailed = true;
+        try {
+            mData.close();
+            mIndex.close();
+        } catch (IOException e) {
+            // Nothing more we can do
+        }
+        mDataFile.delete();
+        mIndexFile.delete();
+    }
+
+    private void forgetRows() {
+        mPending.reset();
+        mPendingIndex.clear();
+        mPendingRows = 0;
+        mFlushedRows = 0;
+        mFlushedLength = 0;
+        mDataWindow.release();
+        mIndexWindow.release();
+    }
+
+    /* Write out the pending rows */
+    private void flush() {
+        if (mFailed || mPendingRows == 0) {
+            return;
+        }
+        ScrollbackChunk.Writer pending = mPending;
+        ByteBuffer pendingIndex = mPendingIndex;
+        try {
+            write(mData.getChannel(),
+                    ByteBuffer.wrap(pending.getData(), 0, pending.getLength()),
+                    mFlushedLength);
+            pendingIndex.flip();
+            write(mIndex.getChannel(), pendingIndex, mFlushedRows * INDEX_ENTRY_SIZE);
+        } catch (IOException e) {
+            fail("Failed to write scrollback", e);
+            return;
+        }
+        mFlushedLength += pending.getLength();
+        mFlushedRows += mPendingRows;
+        pending.reset();
+        pendingIndex.clear();
+        mPendingRows = 0;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /* Stop using the files, keeping the rows already in them readable */
+    private void fail(String message, IOException e) {
+        EmulatorLog.e(TAG, message, e);
+        mFailed = true;
+        mPending.reset();
+        mPendingIndex.clear();
+        mPendingRows = 0;
+    }
+
+    /**
+     * A region of a file mapped into memory, moved along the file as
+     * different parts of it are wanted.
+     */
+    private static final class Window {
+        private final int mSize;
+        private MappedByteBuffer mBuffer;
+        private long mStart;
+
+        Window(int size) {
+            mSize = size;
+        }
+
+        /**
+         * Make sure the window covers part of the file, mapping another
+         * region if need be.
+         *
+         * @param position Where the part wanted starts.
+         * @param length How long the part wanted is.
+         * @param fileLength How much of the file has been written.
+         * @return The mapped region, which starts at mStart in the file.
+         */
+        MappedByteBuffer map(FileChannel channel, long position, int length,
+                long fileLength) throws IOException {
+            MappedByteBuffer buffer = mBuffer;
+            if (buffer != null && position >= mStart
+                    && position + length <= mStart + buffer.capacity()) {
+                return buffer;
+            }
+            long start = position - position % mSize;
+            if (position + length > start + mSize) {
+                // The part wanted straddles a window boundary
+                start = position;
+            }
+            long size = Math.min(Math.max(mSize, length), fileLength - start);
+            mBuffer = buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            mStart = start;
+            return buffer;
+        }
+
+        /* The mapping itself goes when the buffer is collected */
+        void release() {
+            mBuffer = null;
+            mStart = 0;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package jackpal.androidterm.emulatorview;
+
+/**
+ * Utility class for dealing with text style lines.
+ *
+ * We pack color and formatting information for a particular character into an
+ * int -- see the TextStyle class for details.  The simplest way of storing
+ * that information for a screen row would be to use an array of int -- but
+ * given that we only use the lower three bytes of the int to store information,
+ * that effectively wastes one byte per character -- nearly 8 KB per 100 lines
+ * with an 80-column transcript.
+ *
+ * Most rows don't need even that.  A row starts out as a single solid style.
+ * Once it gets a second style, it holds a sorted list of runs -- the column
+ * each run starts at, and its style -- which suits the few spans of color in
+ * a prompt or the output of ls --color.  Only when a row breaks up into more
+ * runs than would take less space stored column by column do we use an array
+ * of bytes, storing the bytes of each int consecutively in little-endian
+ * order.
+ */
+final class StyleRow {
+    private static final int INITIAL_RUN_CAPACITY = 4;
+
+    private int mStyle;
+    private int mColumns;
+
+    /* The runs, if mRunCount > 0: mRunStarts[0] is 0 and the starts rise */
+    private int[] mRunStarts;
+    private int[] mRunStyles;
+    private int mRunCount;
+
+    /** Initially null, will be allocated when needed. */
+    private byte[] mData;
+    /** The data of a reused row, to be refilled when needed again. */
+    private byte[] mSpareData;
+
+    StyleRow(int style, int columns) {
+        mStyle = style;
+        mColumns = columns;
+    }
+
+    /**
+     * Make this a row of one style again, so that it can be reused.
+     */
+    void reset(int style) {
+        mStyle = style;
+        mRunCount = 0;
+        if (mData != null) {
+            mSpareData = mData;
+            mData = null;
+        }
+    }
+
+    void set(int column, int style) {
+        set(column, 1, style);
+    }
+
+    void set(int column, int count, int style) {
+        if (count <= 0) {
+            return;
+        }
+        if (mData != null) {
+            for (int i = column; i < column + count; i++) {
+                setStyle(i, style);
+            }
+            return;
+        }
+        if (mRunCount == 0) {
+            if (style == mStyle) {
+                return;
+            }
+            // Start out with one run covering the row
+            if (mRunStarts == null) {
+                mRunStarts = new int[INITIAL_RUN_CAPACITY];
+                mRunStyles = new int[INITIAL_RUN_CAPACITY];
+            }
+            mRunStarts[0] = 0;
+            mRunStyles[0] = mStyle;
+            mRunCount = 1;
+        }
+        setRuns(column, column + count, style);
+    }
+
+    int get(int column) {
+        if (mData != null) {
+            return getStyle(column);
+        }
+        if (mRunCount == 0) {
+            return mStyle;
+        }
+        return mRunStyles[findRun(column)];
+    }
+
+    /**
+     * @return The first column after column which may have a different
+     *         style, so that callers can step through a row a run at a time.
+     */
+    int getRunEnd(int column) {
+        if (mData != null) {
+            int style = getStyle(column);
+            int end = column + 1;
+            while (end < mColumns && getStyle(end) == style) {
+                end++;
+            }
+            return end;
+        }
+        if (mRunCount == 0) {
+            return mColumns;
+        }
+        int run = findRun(column) + 1;
+        return run < mRunCount ? mRunStarts[run] : mColumns;
+    }
+
+    /**
+     * @return The first column of the run of the same style which ends at
+     *         column.
+     */
+    int getRunStart(int column) {
+        if (mData != null) {
+            int style = getStyle(column);
+            int start = column;
+            while (start > 0 && getStyle(start - 1) == style) {
+                start--;
+            }
+            return start;
+        }
+        if (mRunCount == 0) {
+            return 0;
+        }
+        return mRunStarts[findRun(column)];
+    }
+
+    boolean isSolidStyle() {
+        return mData == null && mRunCount == 0;
+    }
+
+    int getSolidStyle() {
+        if (!isSolidStyle()) {
+            throw new IllegalArgumentException("Not a solid style");
+        }
+        return mStyle;
+    }
+
+    void copy(int start, StyleRow dst, int offset, int len) {
+        // fast case
+        if (mData == null && mRunCount == 0) {
+            dst.set(offset, len, mStyle);
+            return;
+        }
+        if (mData != null) {
+            dst.ensureData();
+            System.arraycopy(mData, 3*start, dst.mData, 3*offset, 3*len);
+            return;
+        }
+        // Copy a run at a time, in the order which doesn't overwrite runs
+        // still to be read when copying within the row
+        int end = start + len;
+        if (dst != this || offset <= start) {
+            for (int column = start; column < end; ) {
+                int runEnd = Math.min(getRunEnd(column), end);
+                dst.set(offset + column - start, runEnd - column, get(column));
+                column = runEnd;
+            }
+        } else {
+            for (int column = end; column > start; ) {
+                int runStart = Math.max(getRunStart(column - 1), start);
+                dst.set(offset + runStart - start, column - runStart, get(column - 1));
+                column = runStart;
+            }
+        }
+    }
+
+    void ensureData() {
+        if (mData == null) {
+            allocate();
+        }
+    }
+
+    /* Binary search for the run containing column */
+    private int findRun(int column) {
+        int[] starts = mRunStarts;
+        int low = 0;
+        int high = mRunCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (starts[mid] <= column) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /* Set columns start to end - 1 to style, splitting and merging runs */
+    private void setRuns(int start, int end, int style) {
+        int first = findRun(start);
+        int last = end - 1 == start ? first : findRun(end - 1);
+        int count = mRunCount;
+        int[] starts = mRunStarts;
+        int[] styles = mRunStyles;
+        int lastEnd = last + 1 < count ? starts[last + 1] : mColumns;
+        if (first == last && styles[first] == style) {
+            return;
+        }
+        if (first == last && start == starts[first] && end < lastEnd
+                && first > 0 && styles[first - 1] == style) {
+            // Fast path -- text written after a run of the same style
+            starts[first] = end;
+            return;
+        }
+
+        // Runs first to last are replaced by what's left of first to the
+        // left, the new run, and what's left of last to the right.  The new
+        // run merges with a neighbor of the same style.
+        if (styles[first] == style) {
+            start = starts[first];
+        }
+        if (styles[last] == style) {
+            end = lastEnd;
+        }
+        boolean keepLeft = starts[first] < start;
+        boolean keepRight = end < lastEnd;
+        boolean mergeLeft = !keepLeft && first > 0 && styles[first - 1] == style;
+        boolean mergeRight = !keepRight && last + 1 < count && styles[last + 1] == style;
+        int leftStart = starts[first];
+        int leftStyle = styles[first];
+        int rightStyle = styles[last];
+        int removeEnd = mergeRight ? last + 2 : last + 1;
+        int added = (keepLeft ? 1 : 0) + (mergeLeft ? 0 : 1) + (keepRight ? 1 : 0);
+        int newCount = count - (removeEnd - first) + added;
+
+        if (newCount == 1) {
+            // The whole row is one style again
+            mStyle = style;
+            mRunCount = 0;
+            return;
+        }
+        if (newCount > getMaxRuns()) {
+            allocate();
+            for (int i = start; i < end; i++) {
+                setStyle(i, style);
+            }
+            return;
+        }
+        if (newCount > starts.length) {
+            int capacity = Math.min(2 * starts.length, getMaxRuns());
+            int[] newStarts = new int[capacity];
+            int[] newStyles = new int[capacity];
+            System.arraycopy(starts, 0, newStarts, 0, count);
+            System.arraycopy(styles, 0, newStyles, 0, count);
+            mRunStarts = starts = newStarts;
+            mRunStyles = styles = newStyles;
+        }
+        System.arraycopy(starts, removeEnd, starts, first + added, count - removeEnd);
+        System.arraycopy(styles, removeEnd, styles, first + added, count - removeEnd);
+        int run = first;
+        if (keepLeft) {
+            starts[run] = leftStart;
+            styles[run] = leftStyle;
+            run++;
+        }
+        if (!mergeLeft) {
+            starts[run] = start;
+            styles[run] = style;
+            run++;
+        }
+        if (keepRight) {
+            starts[run] = end;
+            styles[run] = rightStyle;
+        }
+        mRunCount = newCount;
+    }
+
+    /* Past this many runs, storing a style per column takes less space */
+    private int getMaxRuns() {
+        return Math.max(INITIAL_RUN_CAPACITY, 3 * mColumns / 8);
+    }
+
+    private void allocate() {
+        if (mSpareData != null) {
+            mData = mSpareData;
+            mSpareData = null;
+        } else {
+            mData = new byte[3*mColumns];
+        }
+        if (mRunCount == 0) {
+            for (int i = 0; i < mColumns; i++) {
+                setStyle(i, mStyle);
+            }
+            return;
+        }
+        for (int run = 0; run < mRunCount; run++) {
+            int runEnd = run + 1 < mRunCount ? mRunStarts[run + 1] : mColumns;
+            int style = mRunStyles[run];
+            for (int i = mRunStarts[run]; i < runEnd; i++) {
+                setStyle(i, style);
+            }
+        }
+        mRunCount = 0;
+    }
+
+    private int getStyle(int column) {
+        int index = 3 * column;
+        byte[] line = mData;
+        return line[index] & 0xff | (line[index+1] & 0xff) << 8
+                | (line[index+2] & 0xff) << 16;
+    }
+
+    private void setStyle(int column, int value) {
+        int index = 3 * column;
+        byte[] line = mData;
+        line[index] = (byte) (value & 0xff);
+        line[index+1] = (byte) ((value >> 8) & 0xff);
+        line[index+2] = (byte) ((value >> 16) & 0xff);
+    }
+
+
+}
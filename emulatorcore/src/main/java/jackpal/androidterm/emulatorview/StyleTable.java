@@ -0,0 +1,195 @@
+package jackpal.androidterm.emulatorview;
+
+/**
+ * The styles of one session that don't fit in a packed {@link TextStyle}:
+ * those with a 24-bit RGB foreground or background color, as set by
+ * SGR 38;2 and 48;2.
+ * <p>
+ * Each distinct (foreground, background, effect) tuple is interned once and
+ * given a compact id, and the style stored in the {@link StyleRow} is that id,
+ * marked by a foreground color index of {@link TextStyle#ciInterned}.  Styles
+ * made only of palette colors are still packed as before and never enter the
+ * table, so text without truecolor costs nothing extra.
+ * <p>
+ * Ids live as long as the session, since the transcript may refer to any of
+ * them.  When the table is full, RGB colors are matched to the nearest
+ * color of the xterm 256-color palette instead.
+ * <p>
+ * Not thread safe: the emulator interns and the renderers look up on the
+ * same thread.
+ */
+final class StyleTable {
+    /** Fifteen bits of the packed style are free to hold an id */
+    static final int MAX_STYLES = 1 << 15;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /* The interned tuples, indexed by id */
+    private int[] mForeColors = new int[INITIAL_CAPACITY];
+    private int[] mBackColors = new int[INITIAL_CAPACITY];
+    private byte[] mEffects = new byte[INITIAL_CAPACITY];
+    private int mSize;
+
+    /* Open addressing hash of ids + 1, 0 for an empty slot */
+    private int[] mHash = new int[INITIAL_CAPACITY * 2];
+
+    /* The last tuple looked up, since runs of text share a style */
+    private int mLastForeColor = -1;
+    private int mLastBackColor = -1;
+    private int mLastEffect = -1;
+    private int mLastStyle;
+
+    /**
+     * Encode a style.
+     *
+     * @param foreColor A palette index or an RGB color from {@link TextStyle#rgb}.
+     * @param backColor A palette index or an RGB color from {@link TextStyle#rgb}.
+     * @param effect The TextStyle effect bits.
+     * @return A style to store in a {@link StyleRow}: a packed TextStyle, or
+     *         the id of an interned style.
+     */
+    int encode(int foreColor, int backColor, int effect) {
+        if (!TextStyle.isRgb(foreColor) && !TextStyle.isRgb(backColor)) {
+            return TextStyle.encode(foreColor, backColor, effect);
+        }
+        effect &= 0xff;
+        if (foreColor == mLastForeColor && backColor == mLastBackColor
+                && effect == mLastEffect) {
+            return mLastStyle;
+        }
+        int style = intern(foreColor, backColor, effect);
+        mLastForeColor = foreColor;
+        mLastBackColor = backColor;
+        mLastEffect = effect;
+        mLastStyle = style;
+        return style;
+    }
+
+    /**
+     * @return The foreground of a style: a palette index or an RGB color.
+     */
+    int decodeForeColor(int style) {
+        if (TextStyle.isInterned(style)) {
+            return mForeColors[TextStyle.decodeInternedId(style)];
+        }
+        return TextStyle.decodeForeColor(style);
+    }
+
+    /**
+     * @return The background of a style: a palette index or an RGB color.
+     */
+    int decodeBackColor(int style) {
+        if (TextStyle.isInterned(style)) {
+            return mBackColors[TextStyle.decodeInternedId(style)];
+        }
+        return TextStyle.decodeBackColor(style);
+    }
+
+    /**
+     * @return The TextStyle effect bits of a style.
+     */
+    int decodeEffect(int style) {
+        if (TextStyle.isInterned(style)) {
+            return mEffects[TextStyle.decodeInternedId(style)] & 0xff;
+        }
+        return TextStyle.decodeEffect(style);
+    }
+
+    /**
+     * @return The number of interned styles.
+     */
+    int size() {
+        return mSize;
+    }
+
+    private int intern(int foreColor, int backColor, int effect) {
+        int mask = mHash.length - 1;
+        int slot = hash(foreColor, backColor, effect) & mask;
+        int entry;
+        while ((entry = mHash[slot]) != 0) {
+            int id = entry - 1;
+            if (mForeColors[id] == foreColor && mBackColors[id] == backColor
+                    && (mEffects[id] & 0xff) == effect) {
+                return TextStyle.encodeInterned(id);
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (mSize == MAX_STYLES) {
+            return TextStyle.encode(toPalette(foreColor), toPalette(backColor), effect);
+        }
+        int id = mSize++;
+        if (id == mForeColors.length) {
+            int capacity = Math.min(2 * id, MAX_STYLES);
+            int[] foreColors = new int[capacity];
+            System.arraycopy(mForeColors, 0, foreColors, 0, id);
+            mForeColors = foreColors;
+            int[] backColors = new int[capacity];
+            System.arraycopy(mBackColors, 0, backColors, 0, id);
+            mBackColors = backColors;
+            byte[] effects = new byte[capacity];
+            System.arraycopy(mEffects, 0, effects, 0, id);
+            mEffects = effects;
+        }
+        mForeColors[id] = foreColor;
+        mBackColors[id] = backColor;
+        mEffects[id] = (byte) effect;
+        mHash[slot] = id + 1;
+        if (2 * mSize > mHash.length) {
+            rehash();
+        }
+        return TextStyle.encodeInterned(id);
+    }
+
+    private void rehash() {
+        int[] hash = new int[mHash.length * 2];
+        int mask = hash.length - 1;
+        for (int id = 0; id < mSize; id++) {
+            int slot = hash(mForeColors[id], mBackColors[id], mEffects[id] & 0xff) & mask;
+            while (hash[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            hash[slot] = id + 1;
+        }
+        mHash = hash;
+    }
+
+    private static int hash(int foreColor, int backColor, int effect) {
+        int h = foreColor * 31 + backColor;
+        h = h * 31 + effect;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return The index of the xterm 256-color palette closest to a color,
+     *         or the color itself if it is already a palette index.
+     */
+    static int toPalette(int color) {
+        if (!TextStyle.isRgb(color)) {
+            return color;
+        }
+        int r = (color >> 16) & 0xff;
+        int g = (color >> 8) & 0xff;
+        int b = color & 0xff;
+        if (r == g && g == b) {
+            // The grayscale ramp runs from 8 to 238 in steps of 10
+            if (r < 4) {
+                return 16;
+            } else if (r > 243) {
+                return 231;
+            }
+            return 232 + Math.min((r - 3) / 10, 23);
+        }
+        return 16 + 36 * toCubeLevel(r) + 6 * toCubeLevel(g) + toCubeLevel(b);
+    }
+
+    /* The color cube levels are 0, 95, 135, 175, 215 and 255 */
+    private static int toCubeLevel(int value) {
+        if (value < 48) {
+            return 0;
+        } else if (value < 115) {
+            return 1;
+        }
+        return (value - 35) / 40;
+    }
+}
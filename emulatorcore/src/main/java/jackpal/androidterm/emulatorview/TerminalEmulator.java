@@ -17,16 +17,7 @@
 package jackpal.androidterm.emulatorview;
 
 import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CodingErrorAction;
 import java.util.Locale;
-import java.util.LinkedList;
-import java.util.Queue;
-
-import android.util.Log;
 
 /**
  * Renders text into a screen. Contains all the terminal-specific knowledge and
@@ -36,10 +27,6 @@
  * video, color) alternate screen cursor key and keypad escape sequences.
  */
 class TerminalEmulator {
-    public void setKeyListener(TermKeyListener l) {
-        mKeyListener = l;
-    }
-    private TermKeyListener mKeyListener;
     /**
      * The cursor row. Numbered 0..mRows-1.
      */
@@ -64,13 +51,15 @@ public void setKeyListener(TermKeyListener l) {
      * Stores the characters that appear on the screen of the emulated terminal.
      */
     private TranscriptScreen mMainBuffer;
+    /* Created when it's first switched to */
     private TranscriptScreen mAltBuffer;
     private TranscriptScreen mScreen;
+    private ColorScheme mColorScheme;
 
     /**
      * The terminal session this emulator is bound to.
      */
-    private TermSession mSession;
+    private TerminalHost mHost;
 
     /**
      * Keeps track of the current argument of the current escape sequence.
@@ -155,6 +144,148 @@ public void setKeyListener(TermKeyListener l) {
      */
     private static final int ESC_RIGHT_SQUARE_BRACKET_ESC = 9;
 
+    private static final int ESC_STATE_COUNT = 10;
+
+    // Byte classes: bytes which every escape processing state treats alike
+
+    private static final int CLASS_NUL = 0;
+    private static final int CLASS_BEL = 1;
+    private static final int CLASS_BS = 2;
+    private static final int CLASS_HT = 3;
+    private static final int CLASS_LF = 4; // LF, VT, FF
+    private static final int CLASS_CR = 5;
+    private static final int CLASS_SO = 6;
+    private static final int CLASS_SI = 7;
+    private static final int CLASS_CAN = 8; // CAN, SUB
+    private static final int CLASS_ESC = 9;
+    private static final int CLASS_C0 = 10; // Remaining C0 controls
+    private static final int CLASS_DIGIT = 11;
+    private static final int CLASS_SEMICOLON = 12;
+    private static final int CLASS_PRINTABLE = 13; // Other ASCII, and DEL
+    private static final int CLASS_C1 = 14;
+    private static final int CLASS_HIGH = 15; // 0xa0-0xff outside UTF-8 mode
+    private static final int CLASS_COUNT = 16;
+
+    // Parser actions
+
+    private static final int ACTION_IGNORE = 0;
+    private static final int ACTION_PRINT = 1;
+    private static final int ACTION_BACKSPACE = 2;
+    private static final int ACTION_TAB = 3;
+    private static final int ACTION_LINEFEED = 4;
+    private static final int ACTION_CARRIAGE_RETURN = 5;
+    private static final int ACTION_SHIFT_OUT = 6;
+    private static final int ACTION_SHIFT_IN = 7;
+    private static final int ACTION_CANCEL = 8;
+    private static final int ACTION_ESCAPE = 9;
+    private static final int ACTION_C1 = 10;
+    private static final int ACTION_PARAM_DIGIT = 11;
+    private static final int ACTION_PARAM_SEPARATOR = 12;
+    private static final int ACTION_OSC_END = 13;
+    private static final int ACTION_OSC_ESCAPE = 14;
+    // Actions from here on finish the sequence unless the handler continues it
+    private static final int ACTION_ESC_DISPATCH = 15;
+    private static final int ACTION_POUND_DISPATCH = 16;
+    private static final int ACTION_SELECT_G0 = 17;
+    private static final int ACTION_SELECT_G1 = 18;
+    private static final int ACTION_CSI_DISPATCH = 19;
+    private static final int ACTION_DEC_PRIVATE_DISPATCH = 20;
+    private static final int ACTION_PERCENT_DISPATCH = 21;
+    private static final int ACTION_OSC_PUT = 22;
+    private static final int ACTION_OSC_ESC_DISPATCH = 23;
+
+    /**
+     * The class of each byte value.
+     */
+    private static final byte[] BYTE_CLASS = new byte[256];
+
+    /**
+     * The parser's transition table: the action to take for each escape
+     * processing state and byte class, indexed by
+     * state * CLASS_COUNT + class.  Actions which change the state do so
+     * themselves, through the handlers they call.
+     */
+    private static final byte[] PARSE_ACTION = new byte[ESC_STATE_COUNT * CLASS_COUNT];
+
+    static {
+        for (int b = 0; b < 256; ++b) {
+            int byteClass;
+            if (b >= '0' && b <= '9') {
+                byteClass = CLASS_DIGIT;
+            } else if (b == ';') {
+                byteClass = CLASS_SEMICOLON;
+            } else if (b >= 32 && b < 128) {
+                byteClass = CLASS_PRINTABLE;
+            } else if (b >= 0x80 && b < 0xa0) {
+                byteClass = CLASS_C1;
+            } else if (b >= 0xa0) {
+                byteClass = CLASS_HIGH;
+            } else {
+                switch (b) {
+                case 0: byteClass = CLASS_NUL; break;
+                case 7: byteClass = CLASS_BEL; break;
+                case 8: byteClass = CLASS_BS; break;
+                case 9: byteClass = CLASS_HT; break;
+                case 10: case 11: case 12: byteClass = CLASS_LF; break;
+                case 13: byteClass = CLASS_CR; break;
+                case 14: byteClass = CLASS_SO; break;
+                case 15: byteClass = CLASS_SI; break;
+                case 24: case 26: byteClass = CLASS_CAN; break;
+                case 27: byteClass = CLASS_ESC; break;
+                default: byteClass = CLASS_C0; break;
+                }
+            }
+            BYTE_CLASS[b] = (byte) byteClass;
+        }
+
+        // Bytes which can end or continue a sequence go to the handler for
+        // the current state, which collects or dispatches them
+        int[] stateAction = new int[ESC_STATE_COUNT];
+        stateAction[ESC_NONE] = ACTION_IGNORE;
+        stateAction[ESC] = ACTION_ESC_DISPATCH;
+        stateAction[ESC_POUND] = ACTION_POUND_DISPATCH;
+        stateAction[ESC_SELECT_LEFT_PAREN] = ACTION_SELECT_G0;
+        stateAction[ESC_SELECT_RIGHT_PAREN] = ACTION_SELECT_G1;
+        stateAction[ESC_LEFT_SQUARE_BRACKET] = ACTION_CSI_DISPATCH;
+        stateAction[ESC_LEFT_SQUARE_BRACKET_QUESTION_MARK] = ACTION_DEC_PRIVATE_DISPATCH;
+        stateAction[ESC_PERCENT] = ACTION_PERCENT_DISPATCH;
+        stateAction[ESC_RIGHT_SQUARE_BRACKET] = ACTION_OSC_PUT;
+        stateAction[ESC_RIGHT_SQUARE_BRACKET_ESC] = ACTION_OSC_ESC_DISPATCH;
+
+        for (int state = 0; state < ESC_STATE_COUNT; ++state) {
+            int action = stateAction[state];
+            boolean inSequence = state != ESC_NONE;
+            boolean inOSC = state == ESC_RIGHT_SQUARE_BRACKET;
+            boolean inCSI = state == ESC_LEFT_SQUARE_BRACKET
+                    || state == ESC_LEFT_SQUARE_BRACKET_QUESTION_MARK;
+
+            setParseAction(state, CLASS_NUL, ACTION_IGNORE);
+            // BEL terminates an OSC string, and is otherwise ignored
+            setParseAction(state, CLASS_BEL, inOSC ? ACTION_OSC_END : ACTION_IGNORE);
+            setParseAction(state, CLASS_BS, ACTION_BACKSPACE);
+            setParseAction(state, CLASS_HT, ACTION_TAB);
+            setParseAction(state, CLASS_LF, ACTION_LINEFEED);
+            setParseAction(state, CLASS_CR, ACTION_CARRIAGE_RETURN);
+            setParseAction(state, CLASS_SO, ACTION_SHIFT_OUT);
+            setParseAction(state, CLASS_SI, ACTION_SHIFT_IN);
+            setParseAction(state, CLASS_CAN, inSequence ? ACTION_CANCEL : ACTION_IGNORE);
+            // ESC starts an escape sequence unless we're parsing a string
+            setParseAction(state, CLASS_ESC, inOSC ? ACTION_OSC_ESCAPE : ACTION_ESCAPE);
+            setParseAction(state, CLASS_C0, action);
+            setParseAction(state, CLASS_DIGIT,
+                    inCSI ? ACTION_PARAM_DIGIT : inSequence ? action : ACTION_PRINT);
+            setParseAction(state, CLASS_SEMICOLON,
+                    inCSI ? ACTION_PARAM_SEPARATOR : inSequence ? action : ACTION_PRINT);
+            setParseAction(state, CLASS_PRINTABLE, inSequence ? action : ACTION_PRINT);
+            setParseAction(state, CLASS_C1, ACTION_C1);
+            setParseAction(state, CLASS_HIGH, action);
+        }
+    }
+
+    private static void setParseAction(int state, int byteClass, int action) {
+        PARSE_ACTION[state * CLASS_COUNT + byteClass] = (byte) action;
+    }
+
     /**
      * True if the current escape sequence should continue, false if the current
      * escape sequence should be terminated. Used when parsing a single
@@ -241,6 +372,14 @@ public void setKeyListener(TermKeyListener l) {
      */
     private int mMouseTrackingMode;
 
+    /**
+     * Set while the client is drawing a frame in synchronized output mode
+     * (DECSET 2026), during which the screen shouldn't be presented.  Read
+     * by the thread which presents the screen without taking the emulator
+     * lock.
+     */
+    private volatile boolean mSynchronizedOutput;
+
     // Modes set with Set Mode / Reset Mode
 
     /**
@@ -291,18 +430,40 @@ public void setKeyListener(TermKeyListener l) {
     private boolean mJustWrapped = false;
 
     /**
-     * Used for debugging, counts how many chars have been processed.
+     * Counts how many chars have been processed: the input position, for
+     * the parser trace.
+     */
+    private long mProcessedCharCount;
+
+    /**
+     * While a run of text or a burst of lines is being processed in one go,
+     * the index just past its end, so that append() can skip all of it if it
+     * fails part way; -1 otherwise.
+     */
+    private int mBatchEnd = -1;
+
+    /* Sizes of the parser trace */
+    private static final int TRACE_BYTES = 4096;
+    private static final int TRACE_EVENTS = 256;
+
+    /**
+     * The recent input and parser events, for diagnosing problems.
      */
-    private int mProcessedCharCount;
+    private final ParserTrace mTrace = new ParserTrace(TRACE_BYTES, TRACE_EVENTS);
 
     /**
-     * Foreground color, 0..255
+     * The styles with RGB colors used in this session.
+     */
+    private final StyleTable mStyles = new StyleTable();
+
+    /**
+     * Foreground color, 0..255, or an RGB color from TextStyle.rgb()
      */
     private int mForeColor;
     private int mDefaultForeColor;
 
     /**
-     * Background color, 0..255
+     * Background color, 0..255, or an RGB color from TextStyle.rgb()
      */
     private int mBackColor;
     private int mDefaultBackColor;
@@ -392,11 +553,40 @@ public void setKeyListener(TermKeyListener l) {
     private boolean mUTF8Mode = false;
     private boolean mUTF8EscapeUsed = false;
     private int mUTF8ToFollow = 0;
-    private ByteBuffer mUTF8ByteBuffer;
-    private CharBuffer mInputCharBuffer;
-    private CharsetDecoder mUTF8Decoder;
+    /* Continuation bytes expected after the current sequence's lead byte */
+    private int mUTF8Length;
+    /* The bits of the current sequence decoded so far */
+    private int mUTF8CodePoint;
     private UpdateCallback mUTF8ModeNotify;
 
+    /*
+     * UTF-8 decoding tables.  UTF8_FOLLOWING gives, for each byte value, the
+     * number of continuation bytes which follow it as a lead byte, or -1 if it
+     * can't start a sequence.  A sequence which decodes to less than the
+     * minimum for its length (an overlong form), to a surrogate, or to more
+     * than U+10FFFF is malformed.
+     */
+    private static final byte[] UTF8_FOLLOWING = new byte[256];
+    private static final int[] UTF8_MIN_CODE_POINT = { 0, 0x80, 0x800, 0x10000 };
+
+    static {
+        for (int b = 0; b < 256; ++b) {
+            int following;
+            if (b < 0x80) {
+                following = 0;
+            } else if ((b & 0xe0) == 0xc0) { // 0b110 -- two-byte sequence
+                following = 1;
+            } else if ((b & 0xf0) == 0xe0) { // 0b1110 -- three-byte sequence
+                following = 2;
+            } else if ((b & 0xf8) == 0xf0) { // 0b11110 -- four-byte sequence
+                following = 3;
+            } else {
+                following = -1;
+            }
+            UTF8_FOLLOWING[b] = (byte) following;
+        }
+    }
+
     /** This is not accurate, but it makes the terminal more useful on
      * small screens.
      */
@@ -405,29 +595,22 @@ public void setKeyListener(TermKeyListener l) {
     /**
      * Construct a terminal emulator that uses the supplied screen
      *
-     * @param session the terminal session the emulator is attached to
+     * @param host the terminal session the emulator is attached to
      * @param screen the screen to render characters into.
      * @param columns the number of columns to emulate
      * @param rows the number of rows to emulate
      * @param scheme the default color scheme of this emulator
      */
-    public TerminalEmulator(TermSession session, TranscriptScreen screen, int columns, int rows, ColorScheme scheme) {
-        mSession = session;
+    public TerminalEmulator(TerminalHost host, TranscriptScreen screen, int columns, int rows, ColorScheme scheme) {
+        mHost = host;
         mMainBuffer = screen;
         mScreen = mMainBuffer;
-        mAltBuffer = new TranscriptScreen(columns, 1024, rows, scheme);
         mRows = rows;
         mColumns = columns;
         mTabStop = new boolean[mColumns];
 
         setColorScheme(scheme);
 
-        mUTF8ByteBuffer = ByteBuffer.allocate(4);
-        mInputCharBuffer = CharBuffer.allocate(2);
-        mUTF8Decoder = Charset.forName("UTF-8").newDecoder();
-        mUTF8Decoder.onMalformedInput(CodingErrorAction.REPLACE);
-        mUTF8Decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
-
         reset();
     }
 
@@ -435,6 +618,14 @@ public TranscriptScreen getScreen() {
         return mScreen;
     }
 
+    /**
+     * @return The table which resolves the styles of this session's screens,
+     *         for use by the renderers.
+     */
+    public StyleTable getStyleTable() {
+        return mStyles;
+    }
+
     public void updateSize(int columns, int rows) {
         if (mRows == rows && mColumns == columns) {
             return;
@@ -649,6 +840,16 @@ public final int getMouseTrackingMode() {
         return mMouseTrackingMode;
     }
 
+    /**
+     * Whether the client is in the middle of drawing a frame, in synchronized
+     * output mode (DECSET 2026).  While it is, the screen may be half drawn.
+     *
+     * @return true between the begin and end of a synchronized update.
+     */
+    public final boolean isSynchronizedOutput() {
+        return mSynchronizedOutput;
+    }
+
     private void setDefaultTabStops() {
         for (int i = 0; i < mColumns; i++) {
             mTabStop[i] = (i & 7) == 0 && i != 0;
@@ -663,45 +864,195 @@ private void setDefaultTabStops() {
      * @param length the number of bytes in the array to process
      */
     public void append(byte[] buffer, int base, int length) {
-        if (EmulatorDebug.LOG_CHARACTERS_FLAG) {
-            Log.d(EmulatorDebug.LOG_TAG, "In: '" + EmulatorDebug.bytesToString(buffer, base, length) + "'");
-        }
-        for (int i = 0; i < length; i++) {
-            byte b = buffer[base + i];
+        mTrace.recordBytes(buffer, base, length);
+        int end = base + length;
+        int i = base;
+        boolean dumped = false;
+        while (i < end) {
+            long startCount = mProcessedCharCount;
             try {
-                process(b);
-                mProcessedCharCount++;
+                processBytes(buffer, i, end);
+                return;
             } catch (Exception e) {
-                Log.e(EmulatorDebug.LOG_TAG, "Exception while processing character "
-                        + Integer.toString(mProcessedCharCount) + " code "
-                        + Integer.toString(b), e);
+                // Skip the byte which failed, or the whole run or burst of
+                // lines it was part of, since some of that may already be on
+                // the screen; then carry on after it
+                int failed = i + (int) (mProcessedCharCount - startCount);
+                int resume = mBatchEnd > failed ? mBatchEnd : failed + 1;
+                mBatchEnd = -1;
+                byte b = buffer[failed];
+                mTrace.record(ParserTrace.EVENT_EXCEPTION, mProcessedCharCount,
+                        mEscapeState, b, 0, 0);
+                String message = "Exception while processing character "
+                        + mProcessedCharCount + " code " + b;
+                if (!dumped) {
+                    // Once per chunk is enough to see what led up to it
+                    message += "\n" + mTrace.dump();
+                    dumped = true;
+                }
+                EmulatorLog.e(EmulatorDebug.LOG_TAG, message, e);
+                mProcessedCharCount += resume - failed;
+                i = resume;
+            }
+        }
+    }
+
+    /**
+     * Describe the recent input and what the parser made of it, to help
+     * diagnose a program which confuses the emulator.
+     */
+    public String dumpTrace() {
+        return mTrace.dump();
+    }
+
+    /**
+     * Process buffer[start] to buffer[end - 1], counting each byte in
+     * mProcessedCharCount once it has been processed.
+     */
+    private void processBytes(byte[] buffer, int start, int end) {
+        int i = start;
+        while (i < end) {
+            byte b = buffer[i];
+            if (isPrintableAscii(b) && mEscapeState == ESC_NONE
+                    && mUTF8ToFollow == 0 && !mUseAlternateCharSet
+                    && !mInsertMode) {
+                // Plain text: put the whole run up to the next control
+                // character on the screen at once
+                int runEnd = i + 1;
+                while (runEnd < end && isPrintableAscii(buffer[runEnd])) {
+                    runEnd++;
+                }
+                mBatchEnd = runEnd;
+                emitRun(buffer, i, runEnd - i);
+                mBatchEnd = -1;
+                mProcessedCharCount += runEnd - i;
+                i = runEnd;
+                continue;
             }
+            if (isLinefeed(b) && mCursorRow == mBottomMargin - 1) {
+                // Do all the scrolling for a burst of lines at once
+                int burstEnd = processLinefeedBurst(buffer, i, end);
+                mBatchEnd = -1;
+                if (burstEnd > i) {
+                    mProcessedCharCount += burstEnd - i;
+                    i = burstEnd;
+                    continue;
+                }
+            }
+            process(b);
+            mProcessedCharCount++;
+            i++;
         }
     }
 
+    private static boolean isPrintableAscii(byte b) {
+        return b >= 32 && b < 127;
+    }
+
+    private static boolean isLinefeed(byte b) {
+        return b == 10 || b == 11 || b == 12; // LF, VT, FF
+    }
+
+    /**
+     * Process a burst of lines at the bottom margin, starting with the
+     * linefeed at buffer[start], scrolling the screen once for all of them
+     * rather than once per linefeed.
+     *
+     * @return The index of the first byte not processed: start, having done
+     *         nothing, if there's no burst to process.
+     */
+    private int processLinefeedBurst(byte[] buffer, int start, int end) {
+        if (mEscapeState != ESC_NONE || mUTF8ToFollow != 0) {
+            return start;
+        }
+        int lines = countScrollingLinefeeds(buffer, start, end);
+        if (lines < 2) {
+            return start;
+        }
+
+        /* Each line goes on the row it would have been scrolled up to by the
+           linefeeds which follow it */
+        scroll(lines);
+        int row = mBottomMargin - lines;
+        setCursorRow(row);
+        int lastRow = mBottomMargin - 1;
+        int i = start + 1;
+        while (row < lastRow) {
+            byte b = buffer[i];
+            if (isLinefeed(b)) {
+                setCursorRow(++row);
+                i++;
+            } else if (b == 13) {
+                setCursorCol(0);
+                i++;
+            } else {
+                // Plain text, which is always followed by a CR or linefeed
+                int runEnd = i + 1;
+                while (isPrintableAscii(buffer[runEnd])) {
+                    runEnd++;
+                }
+                emitRun(buffer, i, runEnd - i);
+                i = runEnd;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Count the linefeeds, starting with the one at buffer[start], which will
+     * each scroll the screen: those separated only by carriage returns and
+     * plain text which doesn't reach the right edge.  Counts no more than the
+     * height of the scrolling region.  Sets mBatchEnd to the index just past
+     * the last of them.
+     */
+    private int countScrollingLinefeeds(byte[] buffer, int start, int end) {
+        int maxLines = mBottomMargin - mTopMargin;
+        boolean plainText = !mUseAlternateCharSet && !mInsertMode;
+        int lastColumn = mColumns - 1;
+        int col = mCursorCol;
+        int lines = 0;
+        int burstEnd = start;
+        for (int i = start; i < end; i++) {
+            byte b = buffer[i];
+            if (isLinefeed(b)) {
+                burstEnd = i + 1;
+                if (++lines == maxLines) {
+                    break;
+                }
+            } else if (b == 13) {
+                col = 0;
+            } else if (plainText && isPrintableAscii(b) && col < lastColumn) {
+                col++;
+            } else {
+                break;
+            }
+        }
+        mBatchEnd = burstEnd;
+        return lines;
+    }
+
     private void process(byte b) {
         process(b, true);
     }
 
-    private static Queue<Integer> mEscSeq = new LinkedList<Integer>();
-    public void setEscCtrlMode() {
+    /**
+     * Raise a control event with the last parameter of the current
+     * sequence.
+     */
+    private void setEscCtrlMode() {
         int esc = 0;
         for (int i = 0; i <= mArgIndex; i++) {
             esc = mArgs[i];
         }
         setOSCMode(esc);
-        return;
     }
 
-    public void setOSCMode(int esc) {
-        mEscSeq.offer(esc);
-        mUTF8ModeNotify.onUpdate();
-        return;
-    }
-
-    public int getEscCtrlMode() {
-        if (mEscSeq.size() == 0) return -1;
-        return mEscSeq.poll();
+    /**
+     * Raise a control event for the view, which the session delivers on the
+     * main thread.
+     */
+    private void setOSCMode(int esc) {
+        mHost.postControlEvent(esc);
     }
 
     private void process(byte b, boolean doUTF8) {
@@ -710,127 +1061,135 @@ private void process(byte b, boolean doUTF8) {
             return;
         }
 
-        // Handle C1 control characters
-        if ((b & 0x80) == 0x80 && (b & 0x7f) <= 0x1f) {
-            /* ESC ((code & 0x7f) + 0x40) is the two-byte escape sequence
-               corresponding to a particular C1 code */
-            process((byte) 27, false);
-            process((byte) ((b & 0x7f) + 0x40), false);
-            return;
-        }
-
-        switch (b) {
-        case 0: // NUL
-            // Do nothing
+        int state = mEscapeState;
+        int action = PARSE_ACTION[state * CLASS_COUNT + BYTE_CLASS[b & 0xff]];
+        switch (action) {
+        case ACTION_IGNORE:
             break;
 
-        case 7: // BEL
-            /* If in an OSC sequence, BEL may terminate a string; otherwise do
-             * nothing */
-            if (mEscapeState == ESC_RIGHT_SQUARE_BRACKET) {
-                doEscRightSquareBracket(b);
-            }
+        case ACTION_PRINT:
+            emit(b);
             break;
 
-        case 8: // BS
+        case ACTION_BACKSPACE:
             setCursorCol(Math.max(0, mCursorCol - 1));
             break;
 
-        case 9: // HT
+        case ACTION_TAB:
             // Move to next tab stop, but not past edge of screen
             setCursorCol(nextTabStop(mCursorCol));
             break;
 
-        case 13:
-            setCursorCol(0);
+        case ACTION_LINEFEED:
+            doLinefeed();
             break;
 
-        case 10: // CR
-        case 11: // VT
-        case 12: // LF
-            doLinefeed();
+        case ACTION_CARRIAGE_RETURN:
+            setCursorCol(0);
             break;
 
-        case 14: // SO:
+        case ACTION_SHIFT_OUT:
             setAltCharSet(true);
             break;
 
-        case 15: // SI:
+        case ACTION_SHIFT_IN:
             setAltCharSet(false);
             break;
 
+        case ACTION_CANCEL:
+            mEscapeState = ESC_NONE;
+            emit((byte) 127);
+            break;
 
-        case 24: // CAN
-        case 26: // SUB
-            if (mEscapeState != ESC_NONE) {
-                mEscapeState = ESC_NONE;
-                emit((byte) 127);
-            }
+        case ACTION_ESCAPE:
+            startEscapeSequence(ESC);
             break;
 
-        case 27: // ESC
-            // Starts an escape sequence unless we're parsing a string
-            if (mEscapeState != ESC_RIGHT_SQUARE_BRACKET) {
-                startEscapeSequence(ESC);
-            } else {
-                doEscRightSquareBracket(b);
-            }
+        case ACTION_C1:
+            /* ESC ((code & 0x7f) + 0x40) is the two-byte escape sequence
+               corresponding to a particular C1 code */
+            process((byte) 27, false);
+            process((byte) ((b & 0x7f) + 0x40), false);
+            break;
+
+        case ACTION_PARAM_DIGIT:
+            collectParamDigit(b);
+            break;
+
+        case ACTION_PARAM_SEPARATOR:
+            nextParam();
+            break;
+
+        case ACTION_OSC_END:
+            doOSC();
+            break;
+
+        case ACTION_OSC_ESCAPE:
+            // Probably the start of an Esc \ string terminator
+            mEscapeState = ESC_RIGHT_SQUARE_BRACKET_ESC;
             break;
 
         default:
-            mContinueSequence = false;
-            switch (mEscapeState) {
-            case ESC_NONE:
-                if (b >= 32) {
-                    emit(b);
-                }
-                break;
+            dispatch(action, b);
+            break;
+        }
 
-            case ESC:
-                doEsc(b);
-                break;
+        if (mEscapeState != state) {
+            mTrace.record(ParserTrace.EVENT_STATE, mProcessedCharCount, mEscapeState, b, state, 0);
+        }
+    }
 
-            case ESC_POUND:
-                doEscPound(b);
-                break;
+    /**
+     * Hand a byte which ends or continues an escape sequence to the handler
+     * for the current state.  The sequence is finished afterwards unless the
+     * handler asks for it to continue.
+     */
+    private void dispatch(int action, byte b) {
+        mContinueSequence = false;
+        switch (action) {
+        case ACTION_ESC_DISPATCH:
+            doEsc(b);
+            break;
 
-            case ESC_SELECT_LEFT_PAREN:
-                doEscSelectLeftParen(b);
-                break;
+        case ACTION_POUND_DISPATCH:
+            doEscPound(b);
+            break;
 
-            case ESC_SELECT_RIGHT_PAREN:
-                doEscSelectRightParen(b);
-                break;
+        case ACTION_SELECT_G0:
+            doEscSelectLeftParen(b);
+            break;
 
-            case ESC_LEFT_SQUARE_BRACKET:
-                doEscLeftSquareBracket(b); // CSI
-                break;
+        case ACTION_SELECT_G1:
+            doEscSelectRightParen(b);
+            break;
 
-            case ESC_LEFT_SQUARE_BRACKET_QUESTION_MARK:
-                doEscLSBQuest(b); // CSI ?
-                break;
+        case ACTION_CSI_DISPATCH:
+            doEscLeftSquareBracket(b); // CSI
+            break;
 
-            case ESC_PERCENT:
-                doEscPercent(b);
-                break;
+        case ACTION_DEC_PRIVATE_DISPATCH:
+            doEscLSBQuest(b); // CSI ?
+            break;
 
-            case ESC_RIGHT_SQUARE_BRACKET:
-                doEscRightSquareBracket(b);
-                break;
+        case ACTION_PERCENT_DISPATCH:
+            doEscPercent(b);
+            break;
 
-            case ESC_RIGHT_SQUARE_BRACKET_ESC:
-                doEscRightSquareBracketEsc(b);
-                break;
+        case ACTION_OSC_PUT:
+            collectOSCArgs(b);
+            break;
 
-            default:
-                unknownSequence(b);
-                break;
-            }
-            if (!mContinueSequence) {
-                mEscapeState = ESC_NONE;
-            }
+        case ACTION_OSC_ESC_DISPATCH:
+            doEscRightSquareBracketEsc(b);
+            break;
+
+        default:
+            unknownSequence(b);
             break;
         }
+        if (!mContinueSequence) {
+            mEscapeState = ESC_NONE;
+        }
     }
 
     private boolean handleUTF8Sequence(byte b) {
@@ -844,7 +1203,6 @@ private boolean handleUTF8Sequence(byte b) {
                 /* Not a UTF-8 continuation byte (doesn't begin with 0b10)
                    Replace the entire sequence with the replacement char */
                 mUTF8ToFollow = 0;
-                mUTF8ByteBuffer.clear();
                 emit(UNICODE_REPLACEMENT_CHAR);
 
                 /* The Unicode standard (section 3.9, definition D93) requires
@@ -853,44 +1211,34 @@ private boolean handleUTF8Sequence(byte b) {
                 return handleUTF8Sequence(b);
             }
 
-            mUTF8ByteBuffer.put(b);
+            mUTF8CodePoint = (mUTF8CodePoint << 6) | (b & 0x3f);
             if (--mUTF8ToFollow == 0) {
-                // Sequence complete -- decode and emit it
-                ByteBuffer byteBuf = mUTF8ByteBuffer;
-                CharBuffer charBuf = mInputCharBuffer;
-                CharsetDecoder decoder = mUTF8Decoder;
-
-                byteBuf.rewind();
-                decoder.reset();
-                decoder.decode(byteBuf, charBuf, true);
-                decoder.flush(charBuf);
-
-                char[] chars = charBuf.array();
-                if (chars[0] >= 0x80 && chars[0] <= 0x9f) {
+                // Sequence complete -- emit it
+                int codePoint = mUTF8CodePoint;
+                if (codePoint < UTF8_MIN_CODE_POINT[mUTF8Length]
+                        || codePoint > Character.MAX_CODE_POINT
+                        || (codePoint >= 0xd800 && codePoint <= 0xdfff)) {
+                    emit(UNICODE_REPLACEMENT_CHAR);
+                } else if (codePoint >= 0x80 && codePoint <= 0x9f) {
                     /* Sequence decoded to a C1 control character which needs
                        to be sent through process() again */
-                    process((byte) chars[0], false);
+                    process((byte) codePoint, false);
                 } else {
-                    emit(chars);
+                    emit(codePoint);
                 }
-
-                byteBuf.clear();
-                charBuf.clear();
             }
         } else {
-            if ((b & 0xe0) == 0xc0) { // 0b110 -- two-byte sequence
-                mUTF8ToFollow = 1;
-            } else if ((b & 0xf0) == 0xe0) { // 0b1110 -- three-byte sequence
-                mUTF8ToFollow = 2;
-            } else if ((b & 0xf8) == 0xf0) { // 0b11110 -- four-byte sequence
-                mUTF8ToFollow = 3;
-            } else {
+            int following = UTF8_FOLLOWING[b & 0xff];
+            if (following <= 0) {
                 // Not a valid UTF-8 sequence start -- replace this char
                 emit(UNICODE_REPLACEMENT_CHAR);
                 return true;
             }
 
-            mUTF8ByteBuffer.put(b);
+            mUTF8ToFollow = following;
+            mUTF8Length = following;
+            // The lead byte's payload is the bits below its length prefix
+            mUTF8CodePoint = b & (0x3f >> following);
         }
 
         return true;
@@ -948,7 +1296,7 @@ private void doEscLSBQuest(byte b) {
             mDecFlags |= mask;
             switch (arg) {
             case 1:
-                mKeyListener.setCursorKeysApplicationMode(true);
+                mHost.setCursorKeysApplicationMode(true);
                 break;
             case 1049:
                 doSaveCursor();
@@ -957,9 +1305,10 @@ private void doEscLSBQuest(byte b) {
                 break;
             case 47:
             case 1047:
-                if (mAltBuffer != null) {
-                    mScreen = mAltBuffer;
-                }
+                mScreen = getAltBuffer();
+                break;
+            case 2026:
+                mSynchronizedOutput = true;
                 break;
             }
             if (arg >= 1000 && arg <= 1003) {
@@ -971,12 +1320,10 @@ private void doEscLSBQuest(byte b) {
             mDecFlags &= ~mask;
             switch (arg) {
             case 1:
-                mKeyListener.setCursorKeysApplicationMode(false);
+                mHost.setCursorKeysApplicationMode(false);
                 break;
             case 1049:
-                if (mAltBuffer != null) {
-                    mScreen = mAltBuffer;
-                }
+                mScreen = getAltBuffer();
                 doRestoreCursor();
                 break;
             case 47:
@@ -988,6 +1335,9 @@ private void doEscLSBQuest(byte b) {
                  * implement an escape sequence that does that. */
                 mScreen = mMainBuffer;
                 break;
+            case 2026:
+                mSynchronizedOutput = false;
+                break;
             }
             if (arg >= 1000 && arg <= 1003) {
                 mMouseTrackingMode = 0;
@@ -1003,7 +1353,7 @@ private void doEscLSBQuest(byte b) {
             break;
 
         default:
-            parseArg(b);
+            unknownSequence(b);
             break;
         }
 
@@ -1389,7 +1739,7 @@ private void doEscLeftSquareBracket(byte b) {
             case 5: // Device status report (DSR):
                     // Answer is ESC [ 0 n (Terminal OK).
                 byte[] dsr = { (byte) 27, (byte) '[', (byte) '0', (byte) 'n' };
-                mSession.write(dsr, 0, dsr.length);
+                mHost.write(dsr, 0, dsr.length);
                 break;
 
             case 6: // Cursor position report (CPR):
@@ -1397,7 +1747,7 @@ private void doEscLeftSquareBracket(byte b) {
                     // the cursor location.
                 byte[] cpr = String.format(Locale.US, "\033[%d;%dR",
                                  mCursorRow + 1, mCursorCol + 1).getBytes();
-                mSession.write(cpr, 0, cpr.length);
+                mHost.write(cpr, 0, cpr.length);
                 break;
 
             default:
@@ -1435,7 +1785,7 @@ private void doEscLeftSquareBracket(byte b) {
             setEscCtrlMode();
             break;
         default:
-            parseArg(b);
+            unknownSequence(b);
             break;
         }
     }
@@ -1495,6 +1845,12 @@ private void selectGraphicRendition() {
                     mForeColor = color;
                 }
                 i += 2;
+            } else if (code == 38 && i+4 <= mArgIndex && mArgs[i+1] == 2) { // foreground RGB color
+                int color = getRgbColor(i+2);
+                if (color >= 0) {
+                    mForeColor = color;
+                }
+                i += 4;
             } else if (code == 39) { // set default text color
                 mForeColor = mDefaultForeColor;
             } else if (code >= 40 && code <= 47) { // background color
@@ -1506,6 +1862,12 @@ private void selectGraphicRendition() {
                     mBackColor = color;
                 }
                 i += 2;
+            } else if (code == 48 && i+4 <= mArgIndex && mArgs[i+1] == 2) { // background RGB color
+                int color = getRgbColor(i+2);
+                if (color >= 0) {
+                    mBackColor = color;
+                }
+                i += 4;
             } else if (code == 49) { // set default background color
                 mBackColor = mDefaultBackColor;
             } else if (code >= 90 && code <= 97) { // bright foreground color
@@ -1513,9 +1875,7 @@ private void selectGraphicRendition() {
             } else if (code >= 100 && code <= 107) { // bright background color
                 mBackColor = code - 100 + 8;
             } else {
-                if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
-                    Log.w(EmulatorDebug.LOG_TAG, String.format("SGR unknown code %d", code));
-                }
+                traceEvent(ParserTrace.EVENT_UNKNOWN_SGR, (byte) 'm', code, 0);
             }
         }
     }
@@ -1523,10 +1883,7 @@ private void selectGraphicRendition() {
     private boolean checkColor(int color) {
         boolean result = isValidColor(color);
         if (!result) {
-            if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
-                Log.w(EmulatorDebug.LOG_TAG,
-                        String.format("Invalid color %d", color));
-            }
+            traceEvent(ParserTrace.EVENT_INVALID_COLOR, (byte) 'm', color, 0);
         }
         return result;
     }
@@ -1535,18 +1892,27 @@ private boolean isValidColor(int color) {
         return color >= 0 && color < TextStyle.ciColorLength;
     }
 
-    private void doEscRightSquareBracket(byte b) {
-        switch (b) {
-        case 0x7:
-            doOSC();
-            break;
-        case 0x1b: // Esc, probably start of Esc \ sequence
-            continueSequence(ESC_RIGHT_SQUARE_BRACKET_ESC);
-            break;
-        default:
-            collectOSCArgs(b);
-            break;
+    /**
+     * Read the red, green and blue arguments of SGR 38;2 or 48;2.
+     *
+     * @param index The index in mArgs of the red component.
+     * @return The color as a TextStyle RGB color, or -1 if a component is
+     *         out of range.
+     */
+    private int getRgbColor(int index) {
+        int color = 0;
+        for (int i = index; i < index + 3; i++) {
+            int component = mArgs[i];
+            if (component < 0) {
+                // Omitted, as in 38;2;;;255
+                component = 0;
+            } else if (component > 255) {
+                traceEvent(ParserTrace.EVENT_INVALID_COLOR, (byte) 'm', component, 0);
+                return -1;
+            }
+            color = (color << 8) | component;
         }
+        return TextStyle.ciRgb | color;
     }
 
     private void doEscRightSquareBracketEsc(byte b) {
@@ -1587,7 +1953,7 @@ private void doOSC() { // Operating System Controls
 
     private void changeTitle(int parameter, String title) {
         if (parameter == 0 || parameter == 2) {
-            mSession.setTitle(title);
+            mHost.setTitle(title);
         }
     }
 
@@ -1612,7 +1978,7 @@ private int getEffect() {
     }
 
     private int getStyle() {
-        return TextStyle.encode(getForeColor(), getBackColor(),  getEffect());
+        return mStyles.encode(getForeColor(), getBackColor(),  getEffect());
     }
 
     private void doSetMode(boolean newValue) {
@@ -1672,7 +2038,7 @@ private void sendDeviceAttributes() {
                 */
                 };
 
-        mSession.write(attributes, 0, attributes.length);
+        mHost.write(attributes, 0, attributes.length);
     }
 
     private void scroll() {
@@ -1681,32 +2047,32 @@ private void scroll() {
         mScreen.scroll(mTopMargin, mBottomMargin, getStyle());
     }
 
+    private void scroll(int lines) {
+        mScrollCounter += lines;
+        mScreen.scroll(mTopMargin, mBottomMargin, lines, getStyle());
+    }
+
     /**
-     * Process the next ASCII character of a parameter.
-     *
-     * @param b The next ASCII character of the paramater sequence.
-     */
-    private void parseArg(byte b) {
-        if (b >= '0' && b <= '9') {
-            if (mArgIndex < mArgs.length) {
-                int oldValue = mArgs[mArgIndex];
-                int thisDigit = b - '0';
-                int value;
-                if (oldValue >= 0) {
-                    value = oldValue * 10 + thisDigit;
-                } else {
-                    value = thisDigit;
-                }
-                mArgs[mArgIndex] = value;
-            }
-            continueSequence();
-        } else if (b == ';') {
-            if (mArgIndex < mArgs.length) {
-                mArgIndex++;
+     * Add the next decimal digit to the current parameter.
+     */
+    private void collectParamDigit(byte b) {
+        if (mArgIndex < mArgs.length) {
+            int oldValue = mArgs[mArgIndex];
+            int thisDigit = b - '0';
+            if (oldValue >= 0) {
+                mArgs[mArgIndex] = oldValue * 10 + thisDigit;
+            } else {
+                mArgs[mArgIndex] = thisDigit;
             }
-            continueSequence();
-        } else {
-            unknownSequence(b);
+        }
+    }
+
+    /**
+     * Move on to the next parameter, after a ';'.
+     */
+    private void nextParam() {
+        if (mArgIndex < mArgs.length) {
+            mArgIndex++;
         }
     }
 
@@ -1783,60 +2149,24 @@ private int nextOSCInt(int delimiter) {
     }
 
     private void unimplementedSequence(byte b) {
-        if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
-            logError("unimplemented", b);
-        }
+        traceEvent(ParserTrace.EVENT_UNIMPLEMENTED_SEQUENCE, b, mArgs[0], mArgs[1]);
         finishSequence();
     }
 
     private void unknownSequence(byte b) {
-        if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
-            logError("unknown", b);
-        }
+        traceEvent(ParserTrace.EVENT_UNKNOWN_SEQUENCE, b, mArgs[0], mArgs[1]);
         finishSequence();
     }
 
     private void unknownParameter(int parameter) {
-        if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
-            StringBuilder buf = new StringBuilder();
-            buf.append("Unknown parameter");
-            buf.append(parameter);
-            logError(buf.toString());
-        }
+        traceEvent(ParserTrace.EVENT_UNKNOWN_PARAMETER, (byte) 0, parameter, 0);
     }
 
-    private void logError(String errorType, byte b) {
+    private void traceEvent(int type, byte b, int value1, int value2) {
+        mTrace.record(type, mProcessedCharCount, mEscapeState, b, value1, value2);
         if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
-            StringBuilder buf = new StringBuilder();
-            buf.append(errorType);
-            buf.append(" sequence ");
-            buf.append(" EscapeState: ");
-            buf.append(mEscapeState);
-            buf.append(" char: '");
-            buf.append((char) b);
-            buf.append("' (");
-            buf.append(b);
-            buf.append(")");
-            boolean firstArg = true;
-            for (int i = 0; i <= mArgIndex; i++) {
-                int value = mArgs[i];
-                if (value >= 0) {
-                    if (firstArg) {
-                        firstArg = false;
-                        buf.append("args = ");
-                    }
-                    buf.append(String.format("%d; ", value));
-                }
-            }
-            logError(buf.toString());
-        }
-    }
-
-    private void logError(String error) {
-        if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
-            Log.e(EmulatorDebug.LOG_TAG, error);
+            EmulatorLog.w(EmulatorDebug.LOG_TAG, mTrace.describeLastEvent());
         }
-        finishSequence();
     }
 
     private void finishSequence() {
@@ -1860,14 +2190,7 @@ private void emit(int c, int style) {
 
         if (autoWrap) {
             if (mCursorCol == mColumns - 1 && (mAboutToAutoWrap || width == 2)) {
-                mScreen.setLineWrap(mCursorRow);
-                mCursorCol = 0;
-                mJustWrapped = true;
-                if (mCursorRow + 1 < mBottomMargin) {
-                    mCursorRow++;
-                } else {
-                    scroll();
-                }
+                wrapLine();
             }
         }
 
@@ -1905,6 +2228,53 @@ private void emit(int c, int style) {
         }
     }
 
+    /* Continue on the next line, as when a character runs off the right edge */
+    private void wrapLine() {
+        mScreen.setLineWrap(mCursorRow);
+        mCursorCol = 0;
+        mJustWrapped = true;
+        if (mCursorRow + 1 < mBottomMargin) {
+            mCursorRow++;
+        } else {
+            scroll();
+        }
+    }
+
+    /**
+     * Send a run of printable ASCII characters to the screen, with the same
+     * effect as emitting them one at a time, but filling each row in one go.
+     * Not for use in insert mode.
+     */
+    private void emitRun(byte[] text, int offset, int count) {
+        boolean autoWrap = autoWrapEnabled();
+        int style = getStyle();
+        int lastColumn = mColumns - 1;
+
+        while (count > 0) {
+            if (autoWrap && mCursorCol == lastColumn && mAboutToAutoWrap) {
+                wrapLine();
+            }
+
+            int col = mCursorCol;
+            int n = Math.min(count, mColumns - col);
+            mScreen.set(col, mCursorRow, text, offset, n, style);
+            mJustWrapped = false;
+
+            int lastCol = col + n - 1;
+            if (autoWrap) {
+                mAboutToAutoWrap = (lastCol == lastColumn);
+                if (mAboutToAutoWrap) {
+                    mScreen.setLineWrap(mCursorRow);
+                }
+            }
+            mCursorCol = Math.min(lastCol + 1, lastColumn);
+
+            offset += n;
+            count -= n;
+        }
+        mLastEmittedCharWidth = 1;
+    }
+
     private void emit(int c) {
         emit(c, getStyle());
     }
@@ -1917,19 +2287,6 @@ private void emit(byte b) {
         }
     }
 
-    /**
-     * Send a UTF-16 char or surrogate pair to the screen.
-     *
-     * @param c A char[2] containing either a single UTF-16 char or a surrogate pair to be sent to the screen.
-     */
-    private void emit(char[] c) {
-        if (Character.isHighSurrogate(c[0])) {
-            emit(Character.toCodePoint(c[0], c[1]));
-        } else {
-            emit((int) c[0]);
-        }
-    }
-
     /**
      * Send an array of UTF-16 chars to the screen.
      *
@@ -1993,6 +2350,13 @@ public void reset() {
         mDecFlags |= K_SHOW_CURSOR_MASK;
         mSavedDecFlags = 0;
         mInsertMode = false;
+        mSynchronizedOutput = false;
+        // Leave the alternate screen, and free it until it's wanted again
+        mScreen = mMainBuffer;
+        if (mAltBuffer != null) {
+            mAltBuffer.finish();
+            mAltBuffer = null;
+        }
         mTopMargin = 0;
         mBottomMargin = mRows;
         mAboutToAutoWrap = false;
@@ -2010,8 +2374,6 @@ public void reset() {
         setUTF8Mode(mDefaultUTF8Mode);
         mUTF8EscapeUsed = false;
         mUTF8ToFollow = 0;
-        mUTF8ByteBuffer.clear();
-        mInputCharBuffer.clear();
     }
 
     public void setDefaultUTF8Mode(boolean defaultToUTF8Mode) {
@@ -2024,8 +2386,6 @@ public void setDefaultUTF8Mode(boolean defaultToUTF8Mode) {
     public void setUTF8Mode(boolean utf8Mode) {
         if (utf8Mode && !mUTF8Mode) {
             mUTF8ToFollow = 0;
-            mUTF8ByteBuffer.clear();
-            mInputCharBuffer.clear();
         }
         mUTF8Mode = utf8Mode;
         if (mUTF8ModeNotify != null) {
@@ -2042,6 +2402,7 @@ public void setUTF8ModeUpdateCallback(UpdateCallback utf8ModeNotify) {
     }
 
     public void setColorScheme(ColorScheme scheme) {
+        mColorScheme = scheme;
         mDefaultForeColor = TextStyle.ciForeground;
         mDefaultBackColor = TextStyle.ciBackground;
         mMainBuffer.setColorScheme(scheme);
@@ -2054,6 +2415,17 @@ public String getSelectedText(int x1, int y1, int x2, int y2) {
         return mScreen.getSelectedText(x1, y1, x2, y2);
     }
 
+    /**
+     * @return The alternate screen, created to fit the screen the first time
+     *         it's asked for.  It keeps no transcript of its own.
+     */
+    private TranscriptScreen getAltBuffer() {
+        if (mAltBuffer == null) {
+            mAltBuffer = new TranscriptScreen(mColumns, mRows, mRows, mColorScheme);
+        }
+        return mAltBuffer;
+    }
+
     public void finish() {
         if (mAltBuffer != null) {
             mAltBuffer.finish();
@@ -0,0 +1,32 @@
+package jackpal.androidterm.emulatorview;
+
+/**
+ * What a {@link TerminalEmulator} needs from the session it is attached to:
+ * a way to answer the emulation client, and somewhere to report the changes
+ * which escape sequences make outside the screen.
+ */
+interface TerminalHost {
+    /**
+     * Send bytes to the emulation client, such as the reply to a status
+     * report request.
+     */
+    void write(byte[] data, int offset, int count);
+
+    /**
+     * Change the title, as requested by an OSC sequence.
+     */
+    void setTitle(String title);
+
+    /**
+     * Report a change of mode to whoever draws the terminal.  Called on the
+     * emulation thread, which may not be the thread that draws.
+     *
+     * @param event One of the TerminalEmulator control event codes.
+     */
+    void postControlEvent(int event);
+
+    /**
+     * Switch the cursor keys between normal and application mode (DECCKM).
+     */
+    void setCursorKeysApplicationMode(boolean enabled);
+}
@@ -21,6 +21,14 @@ final class TextStyle {
 
     final static int ciColorLength = ciCursorBackground + 1;
 
+    // A foreground index which marks a style interned in a StyleTable; the
+    // background and the stored effect bits then hold the id.
+    final static int ciInterned = 0x1ff;
+
+    // Colors with this bit set are 24-bit RGB rather than palette indices.
+    // They are never packed, only interned.
+    final static int ciRgb = 1 << 24;
+
     final static int kNormalTextStyle = encode(ciForeground, ciBackground, fxNormal);
 
     static int encode(int foreColor, int backColor, int effect) {
@@ -39,6 +47,26 @@ static int decodeEffect(int encodedColor) {
         return (encodedColor >> 18) & 0xff;
     }
 
+    static int encodeInterned(int id) {
+        return ((id >> 9) << 18) | (ciInterned << 9) | (id & 0x1ff);
+    }
+
+    static boolean isInterned(int encodedColor) {
+        return decodeForeColor(encodedColor) == ciInterned;
+    }
+
+    static int decodeInternedId(int encodedColor) {
+        return ((encodedColor >> 9) & ~0x1ff) | (encodedColor & 0x1ff);
+    }
+
+    static int rgb(int red, int green, int blue) {
+        return ciRgb | (red << 16) | (green << 8) | blue;
+    }
+
+    static boolean isRgb(int color) {
+        return (color & ciRgb) != 0;
+    }
+
     private TextStyle() {
         // Prevent instantiation
         throw new UnsupportedOperationException();
@@ -16,18 +16,14 @@
 
 package jackpal.androidterm.emulatorview;
 
-import java.util.Arrays;
-
-import android.graphics.Canvas;
-import android.text.SpannableString;
-import android.text.TextPaint;
-import android.text.style.CharacterStyle;
+import java.io.File;
+import java.io.IOException;
 
 /**
  * A TranscriptScreen is a screen that remembers data that's been scrolled. The
  * old data is stored in a ring buffer to minimize the amount of copying that
- * needs to be done. The transcript does its own drawing, to avoid having to
- * expose its internal data structures.
+ * needs to be done. The transcript is drawn by TranscriptPainter, in the
+ * emulatorview module, through the package-private row accessors below.
  */
 class TranscriptScreen implements Screen {
     /**
@@ -48,6 +44,16 @@ class TranscriptScreen implements Screen {
 
     private UnicodeTranscript mData;
 
+    /**
+     * How many rows above the screen are kept unpacked.
+     */
+    private int mPackThreshold = UnicodeTranscript.DEFAULT_PACK_THRESHOLD;
+
+    /**
+     * Where rows pushed out of the transcript are kept, or null.
+     */
+    private ScrollbackFile mScrollbackFile;
+
     /**
      * Create a transcript screen.
      *
@@ -68,6 +74,11 @@ private void init(int columns, int totalRows, int screenRows, int style) {
         mScreenRows = screenRows;
 
         mData = new UnicodeTranscript(columns, totalRows, screenRows, style);
+        mData.setPackThreshold(mPackThreshold);
+        if (mScrollbackFile != null) {
+            // The rows in the file keep the width they were written with
+            mData.setScrollbackFile(mScrollbackFile);
+        }
         mData.blockSet(0, 0, mColumns, mScreenRows, ' ', style);
     }
 
@@ -84,6 +95,41 @@ public void finish() {
          * memory being leaked down.
          */
         mData = null;
+        if (mScrollbackFile != null) {
+            mScrollbackFile.close();
+            mScrollbackFile = null;
+        }
+    }
+
+    /**
+     * Set how many rows of the transcript above the screen are kept as they
+     * are.  Older rows are packed to save memory, and unpacked again when
+     * they're looked at.
+     *
+     * @param rows The number of rows, or -1 to never pack rows.
+     */
+    public void setPackThreshold(int rows) {
+        mPackThreshold = rows;
+        mData.setPackThreshold(rows);
+    }
+
+    /**
+     * Keep rows pushed out of the transcript in a file, so that they can
+     * still be scrolled back to, instead of discarding them.  Rows written
+     * before the screen is resized to a different width are padded or
+     * clipped to the new width.  The file is deleted when the screen is
+     * finished.
+     *
+     * @param file The file to use, which is replaced if it exists, or null
+     *        to discard old rows again.
+     */
+    public void setScrollbackFile(File file) throws IOException {
+        ScrollbackFile scrollbackFile = file != null ? new ScrollbackFile(file) : null;
+        if (mScrollbackFile != null) {
+            mScrollbackFile.close();
+        }
+        mScrollbackFile = scrollbackFile;
+        mData.setScrollbackFile(scrollbackFile);
     }
 
     public void setLineWrap(int row) {
@@ -107,6 +153,10 @@ public void set(int x, int y, byte b, int style) {
         mData.setChar(x, y, b, style);
     }
 
+    public void set(int x, int y, byte[] text, int offset, int count, int style) {
+        mData.setChars(x, y, text, offset, count, style);
+    }
+
     /**
      * Scroll the screen down one line. To scroll the whole screen of a 24 line
      * screen, the arguments would be (0, 24).
@@ -119,6 +169,18 @@ public void scroll(int topMargin, int bottomMargin, int style) {
         mData.scroll(topMargin, bottomMargin, style);
     }
 
+    /**
+     * Scroll the screen down several lines at once.
+     *
+     * @param topMargin First line that is scrolled.
+     * @param bottomMargin One line after the last line that is scrolled.
+     * @param count The number of lines to scroll.
+     * @param style the style for the newly exposed lines.
+     */
+    public void scroll(int topMargin, int bottomMargin, int count, int style) {
+        mData.scroll(topMargin, bottomMargin, count, style);
+    }
+
     /**
      * Block copy characters from one position in the screen to another. The two
      * positions can overlap. All characters of the source and destination must
@@ -154,279 +216,29 @@ public void blockSet(int sx, int sy, int w, int h, int val,
     }
 
     /**
-     * Draw a row of text. Out-of-bounds rows are blank, not errors.
-     *
-     * @param row The row of text to draw.
-     * @param canvas The canvas to draw to.
-     * @param x The x coordinate origin of the drawing
-     * @param y The y coordinate origin of the drawing
-     * @param renderer The renderer to use to draw the text
-     * @param cx the cursor X coordinate, -1 means don't draw it
-     * @param selx1 the text selection start X coordinate
-     * @param selx2 the text selection end X coordinate, if equals to selx1 don't draw selection
-     * @param imeText current IME text, to be rendered at cursor
-     * @param cursorMode the cursor mode. See TextRenderer.
-     */
-    public final void drawText(int row, Canvas canvas, float x, float y,
-            TextRenderer renderer, int curx, int selx1, int selx2, String imeText, int cursorMode, SpannableString imeSpannableString) {
-        char[] line;
-        int cx = imeText.length() > 0 ? -1 : curx;
-        StyleRow color;
-        int cursorWidth = 1;
-        try {
-            line = mData.getLine(row);
-            color = mData.getLineColor(row);
-        } catch (IllegalArgumentException e) {
-            // Out-of-bounds rows are blank.
-            return;
-        } catch (NullPointerException e) {
-            // Attempt to draw on a finished transcript
-            // XXX Figure out why this happens on Honeycomb
-            return;
-        }
-        int defaultStyle = mData.getDefaultStyle();
-
-        if (line == null) {
-            // Line is blank.
-            if (selx1 != selx2) {
-                // We need to draw a selection
-                char[] blank = new char[selx2-selx1];
-                Arrays.fill(blank, ' ');
-                renderer.drawTextRun(canvas, x, y, selx1, selx2-selx1,
-                                blank, 0, 1, true, defaultStyle,
-                                cx, 0, 1, 1, cursorMode);
-            }
-            if (cx != -1) {
-                char[] blank = new char[1];
-                Arrays.fill(blank, ' ');
-                // We need to draw the cursor
-                renderer.drawTextRun(canvas, x, y, cx, 1,
-                        blank, 0, 1, true, defaultStyle,
-                        cx, 0, 1, 1, cursorMode);
-            }
-
-            return;
-        }
-
-        int columns = mColumns;
-        int lineLen = line.length;
-        int lastStyle = 0;
-        boolean lastSelectionStyle = false;
-        int runWidth = 0;
-        int lastRunStart = -1;
-        int lastRunStartIndex = -1;
-        boolean forceFlushRun = false;
-        int column = 0;
-        int nextColumn = 0;
-        int displayCharWidth = 0;
-        int index = 0;
-        int cursorIndex = 0;
-        int cursorIncr = 0;
-        while (column < columns && index < lineLen && line[index] != '\0') {
-            int incr = 1;
-            int width;
-            if (Character.isHighSurrogate(line[index])) {
-                width = UnicodeTranscript.charWidth(line, index);
-                incr++;
-            } else {
-                width = UnicodeTranscript.charWidth(line[index]);
-            }
-            if (width > 0) {
-                // We've moved on to the next column
-                column = nextColumn;
-                displayCharWidth = width;
-            }
-            int style = color.get(column);
-            boolean selectionStyle = false;
-            if ((column >= selx1 || (displayCharWidth == 2 && column == selx1 - 1)) &&
-                    column <= selx2) {
-                // Draw selection:
-                selectionStyle = true;
-            }
-            if (style != lastStyle
-                    || selectionStyle != lastSelectionStyle
-                    || (width > 0 && forceFlushRun)) {
-                if (lastRunStart >= 0) {
-                    renderer.drawTextRun(canvas, x, y, lastRunStart, runWidth,
-                            line,
-                            lastRunStartIndex, index - lastRunStartIndex,
-                            lastSelectionStyle, lastStyle,
-                            cx, cursorIndex, cursorIncr, cursorWidth, cursorMode);
-                }
-                lastStyle = style;
-                lastSelectionStyle = selectionStyle;
-                runWidth = 0;
-                lastRunStart = column;
-                lastRunStartIndex = index;
-                forceFlushRun = false;
-            }
-            if (cx == column) {
-                if (width > 0) {
-                    cursorIndex = index;
-                    cursorIncr = incr;
-                    cursorWidth = width;
-                } else {
-                    // Combining char attaching to the char under the cursor
-                    cursorIncr += incr;
-                }
-            }
-            runWidth += width;
-            nextColumn += width;
-            index += incr;
-            if (width > 1) {
-                /* We cannot draw two or more East Asian wide characters in the
-                   same run, because we need to make each wide character take
-                   up two columns, which may not match the font's idea of the
-                   character width */
-                forceFlushRun = true;
-            }
-        }
-        if (lastRunStart >= 0) {
-            renderer.drawTextRun(canvas, x, y, lastRunStart, runWidth,
-                    line,
-                    lastRunStartIndex, index - lastRunStartIndex,
-                    lastSelectionStyle, lastStyle,
-                    cx, cursorIndex, cursorIncr, cursorWidth, cursorMode);
-        }
-
-        cx = curx;
-        if (cx >= 0 && imeText.length() > 0) {
-            int imeLength = Math.min(columns, imeText.length());
-            int imeOffset = imeText.length() - imeLength;
-            int wimeLength = Math.min(columns, getStringWidth(imeText));
-            int imePosition = Math.min(cx, columns - wimeLength);
-            int imeColor = mIMEColor == IME_AUTODETECT ? mIMEDetect : mIMEColor;
-
-            if ((imeColor <= IME_UNDERLINE) || (imeSpannableString == null)) {
-                int underline = imeSpannableString == null ? 0 : splitComposingText(imeSpannableString);
-                int textStyle = underline == 0 ? TextStyle.fxUnderline : TextStyle.fxNormal;
-                if (imeColor == IME_NONE) {
-                    underline = 0;
-                    textStyle = TextStyle.fxNormal;
-                }
-
-                renderer.drawTextRun(canvas, x, y, imePosition, imeLength, imeText.toCharArray(),
-                        imeOffset, imeLength, true, TextStyle.encode(0x0f, 0x00, textStyle),
-                        -1, 0, 0, 0, 0);
-                if (underline > 0) {
-                    imeText = imeText.substring(0, underline);
-                    int uimeLength = Math.min(columns, imeText.length());
-                    int uimeOffset = imeText.length() - uimeLength;
-                    renderer.drawTextRun(canvas, x, y, imePosition, imeLength, imeText.toCharArray(),
-                            uimeOffset, uimeLength, true, TextStyle.encode(0x0f, 0x00, TextStyle.fxUnderline),
-                            -1, 0, 0, 0, 0);
-                }
-            } else {
-                // FIXME:
-                int effect = TextStyle.fxUnderline;
-                if (imeColor == IME_GOOGLE) effect |= TextStyle.fxImeBackground;
-                renderer.drawTextRun(canvas, x, y, imePosition, imeLength, imeText.toCharArray(),
-                        imeOffset, imeLength, true, TextStyle.encode(0x0f, 0x00, effect),
-                        -1, 0, 0, 0, 0);
-                TextPaint paint = new TextPaint();
-                int length = imeSpannableString.length();
-                Object[] objs = imeSpannableString.getSpans(0, length, Object.class);
-                for (Object obj : objs) {
-                    if (!(obj instanceof CharacterStyle)) {
-                         continue;
-                    }
-                    CharacterStyle style = (CharacterStyle)obj;
-                    style.updateDrawState(paint);
-                    int bold = paint.isFakeBoldText() ? TextStyle.fxBold : 0;
-                    int underline = paint.isUnderlineText() ? TextStyle.fxUnderline: 0;
-                    int textStyle = bold+underline;
-
-                    int start = imeSpannableString.getSpanStart(style);
-                    int end = imeSpannableString.getSpanEnd(style);
-                    if (imeColor != IME_GOOGLE && (start == 0 && end == length)) {
-                        if (imeColor == IME_ATOK) {
-                            if (underline > 0) continue;
-                        } else {
-                            continue;
-                        }
-                    }
-
-                    String imeSubText = imeText.substring(start, end);
-                    int uimeLength = Math.min(columns, imeSubText.length());
-                    int uimeOffset = imeSubText.length() - uimeLength;
-                    float ofsx = renderer.getMeasureText(imeText.substring(0, start));
-
-                    textStyle += TextStyle.fxIme;
-                    renderer.setImePaint(paint);
-                    renderer.drawTextRun(canvas, x+ofsx, y, imePosition, uimeLength, imeSubText.toCharArray(),
-                            uimeOffset, uimeLength, true, TextStyle.encode(0x0f, 0x00, textStyle),
-                            -1, 0, 0, 0, 0);
-                }
-            }
-        }
-     }
-
-    private final static int IME_NONE       = 0;
-    private final static int IME_UNDERLINE  = 1;
-    private final static int IME_AUTODETECT = 2;
-    private final static int IME_ATOK       = 3;
-    private final static int IME_GOOGLE     = 4;
-    private final static int IME_DEFAULT    = 100;
-    private static int mIMEColor = 1;
-    private static int mIMEDetect = IME_AUTODETECT;
-    public void setIMEColor(int mode) {
-        mIMEColor = mode;
-    }
-
-    public void setIME(int ime) {
-        mIMEDetect = ime;
-    }
-
-    private int getStringWidth(String text) {
-        if (text.length() == 0) return 0;
-        int len = 0;
-        for (int i = 0; i < text.length(); i++) {
-            len += UnicodeTranscript.charWidth(text.codePointAt(i));
-        }
-        return len;
-    }
-
-    private int splitComposingText(SpannableString composingText) {
-       if (composingText == null) return 0;
-       int length = composingText.length();
-       if (length > 0) {
-           Object[] objs = composingText.getSpans(0, length, Object.class);
-           for (Object obj : objs) {
-               if (!(obj instanceof CharacterStyle)) {
-                    continue;
-               }
-               CharacterStyle style = (CharacterStyle)obj;
-               int start = composingText.getSpanStart(style);
-               int end = composingText.getSpanEnd(style);
-               if (start > 0) return start;
-               if (end < length) return end;
-           }
-       }
-       return 0;
-   }
-
-    /**
-     * Get the count of active rows.
+     * Get the count of active rows, including those in the scrollback file.
      *
      * @return the count of active rows.
      */
     public int getActiveRows() {
-        return mData.getActiveRows();
+        return mData.getActiveRows() + mData.getArchivedRows();
     }
 
     /**
-     * Get the count of active transcript rows.
+     * Get the count of active transcript rows, including those in the
+     * scrollback file.
      *
      * @return the count of active transcript rows.
      */
     public int getActiveTranscriptRows() {
-        return mData.getActiveTranscriptRows();
+        return mData.getActiveTranscriptRows() + mData.getArchivedRows();
     }
 
     public String getTranscriptScreenText() {
         return internalGetTranscriptText(null, 0, 0, mColumns, mScreenRows);
     }
 
+    /* Only the rows in memory -- the scrollback file may be too big for a String */
     public String getTranscriptText() {
         return internalGetTranscriptText(null, 0, -mData.getActiveTranscriptRows(), mColumns, mScreenRows);
     }
@@ -449,8 +261,9 @@ private String internalGetTranscriptText(GrowableIntArray colors, int selX1, int
         int columns = mColumns;
         char[] line;
         StyleRow rowColorBuffer = null;
-        if (selY1 < -data.getActiveTranscriptRows()) {
-            selY1 = -data.getActiveTranscriptRows();
+        int firstRow = -data.getActiveTranscriptRows() - data.getArchivedRows();
+        if (selY1 < firstRow) {
+            selY1 = firstRow;
         }
         if (selY2 >= mScreenRows) {
             selY2 = mScreenRows - 1;
@@ -567,6 +380,30 @@ public void resize(int columns, int rows, int style) {
         init(columns, mTotalRows, rows, style);
     }
 
+    int getColumns() {
+        return mColumns;
+    }
+
+    int getDefaultStyle() {
+        return mData.getDefaultStyle();
+    }
+
+    /**
+     * Get the text of a row, for drawing.  Unlike {@link #getScriptLine},
+     * this throws IllegalArgumentException for an out-of-bounds row, and
+     * NullPointerException once the transcript is finished.
+     */
+    char[] getLine(int row) {
+        return mData.getLine(row);
+    }
+
+    /**
+     * Get the styles of a row, for drawing.  Throws as {@link #getLine} does.
+     */
+    StyleRow getLineColor(int row) {
+        return mData.getLineColor(row);
+    }
+
     /**
      *
      * Return the UnicodeTranscript line at this row index.
@@ -16,10 +16,7 @@
 
 package jackpal.androidterm.emulatorview;
 
-import android.util.Log;
-
-import jackpal.androidterm.emulatorview.compat.AndroidCharacterCompat;
-import jackpal.androidterm.emulatorview.compat.AndroidCompat;
+import java.util.Arrays;
 
 /**
  * A backing store for a TranscriptScreen.
@@ -41,14 +38,41 @@
  * requires a "full" row.  "Basic" rows are converted to "full" rows when
  * needed.  There is no conversion in the other direction -- a "full" row
  * stays that way even if it contains only regular-width BMP characters.
+ *
+ * The buffer starts out just big enough for the screen, and grows by
+ * doubling as the transcript fills up, to at most the number of rows it was
+ * created with.  Clearing the transcript shrinks it again.
+ *
+ * Rows pushed out of the buffer by scrolling are kept on free lists and
+ * reused for new rows, so that steady scrolling doesn't make garbage.
+ * Reused rows are blanked when they are taken, not when they are freed.
+ *
+ * Transcript rows which have scrolled more than a threshold above the screen
+ * are packed, a chunk of rows at a time, into a ScrollbackChunk which the
+ * slots of those rows refer to in place of their lines and style rows.
+ * Reading a packed row unpacks its chunk into a small cache of recently used
+ * chunks.  Rows are only ever packed oldest first, so the packed rows are
+ * always the oldest mPackedRows rows of the transcript.
+ *
+ * Given a ScrollbackFile, rows pushed out of the buffer are appended to it
+ * instead of being lost.  They come before the transcript in the external
+ * coordinate system, and are read back from the file one row at a time.
  */
 class UnicodeTranscript {
     private static final String TAG = "UnicodeTranscript";
 
+    /** How far above the screen rows are packed, unless set otherwise */
+    public static final int DEFAULT_PACK_THRESHOLD = 256;
+
+    private static final int CHUNK_ROWS = 64;
+    private static final int UNPACKED_CHUNKS = 4;
+
     private Object[] mLines;
     private StyleRow[] mColor;
     private boolean[] mLineWrap;
+    /* The size of the buffer so far, and the size it may grow to */
     private int mTotalRows;
+    private int mMaxRows;
     private int mScreenRows;
     private int mColumns;
     private int mActiveTranscriptRows = 0;
@@ -59,15 +83,44 @@ class UnicodeTranscript {
     private char[] tmpLine;
     private StyleRow tmpColor;
 
+    /* Lines being scrolled off the screen, while the rest move */
+    private Object[] mScrollLines;
+    private StyleRow[] mScrollColor;
+    private boolean[] mScrollLineWrap;
+
+    /* Rows pushed out of the buffer, to be reused */
+    private final FreeList mFreeBasicLines = new FreeList();
+    private final FreeList mFreeFullLines = new FreeList();
+    private final FreeList mFreeColors = new FreeList();
+
+    /* Packed scrollback */
+    private int mPackThreshold = DEFAULT_PACK_THRESHOLD;
+    private int mPackedRows;
+    private ScrollbackChunk.Writer mChunkWriter;
+
+    /* Recently unpacked chunks, the most recently used first */
+    private final ScrollbackChunk[] mUnpackedChunks = new ScrollbackChunk[UNPACKED_CHUNKS];
+    private final Object[][] mUnpackedLines = new Object[UNPACKED_CHUNKS][];
+    private final StyleRow[][] mUnpackedColors = new StyleRow[UNPACKED_CHUNKS][];
+
+    /* Rows pushed out of the buffer, if they're kept */
+    private ScrollbackFile mScrollbackFile;
+    /* The row of the file last read, and its contents */
+    private long mArchivedRow = -1;
+    private final Object[] mArchivedLine = new Object[1];
+    private final StyleRow[] mArchivedColor = new StyleRow[1];
+    private boolean mArchivedLineWrap;
+
     private static int mAmbiWidth = 1;
 
     public UnicodeTranscript(int columns, int totalRows, int screenRows, int defaultStyle) {
         mColumns = columns;
-        mTotalRows = totalRows;
+        mMaxRows = totalRows;
+        mTotalRows = Math.min(screenRows, totalRows);
         mScreenRows = screenRows;
-        mLines = new Object[totalRows];
-        mColor = new StyleRow[totalRows];
-        mLineWrap = new boolean[totalRows];
+        mLines = new Object[mTotalRows];
+        mColor = new StyleRow[mTotalRows];
+        mLineWrap = new boolean[mTotalRows];
         tmpColor = new StyleRow(defaultStyle, mColumns);
 
         mDefaultStyle = defaultStyle;
@@ -85,10 +138,40 @@ public int getDefaultStyle() {
         return mDefaultStyle;
     }
 
+    /**
+     * Set how many rows above the screen the transcript keeps as they are;
+     * older rows are packed to save memory.  A negative threshold stops
+     * rows from being packed.
+     */
+    public void setPackThreshold(int rows) {
+        mPackThreshold = rows;
+    }
+
+    /**
+     * Keep the rows pushed out of the buffer from now on in a file, or stop
+     * keeping them if file is null.
+     */
+    public void setScrollbackFile(ScrollbackFile file) {
+        mScrollbackFile = file;
+        mArchivedRow = -1;
+    }
+
     public int getActiveTranscriptRows() {
         return mActiveTranscriptRows;
     }
 
+    /**
+     * @return The number of rows in the scrollback file, as far as row
+     *         numbers can reach back.
+     */
+    public int getArchivedRows() {
+        ScrollbackFile file = mScrollbackFile;
+        if (file == null) {
+            return 0;
+        }
+        return (int) Math.min(file.getRowCount(), Integer.MAX_VALUE - mMaxRows);
+    }
+
     public int getActiveRows() {
         return mActiveTranscriptRows + mScreenRows;
     }
@@ -112,7 +195,7 @@ private int externalToInternalRow(int extRow) {
         if (extRow < -mActiveTranscriptRows || extRow > mScreenRows) {
             String errorMessage = "externalToInternalRow "+ extRow +
                 " " + mScreenRows + " " + mActiveTranscriptRows;
-            Log.e(TAG, errorMessage);
+            EmulatorLog.e(TAG, errorMessage);
             throw new IllegalArgumentException(errorMessage);
         }
 
@@ -132,6 +215,10 @@ public void setLineWrap(int row) {
     }
 
     public boolean getLineWrap(int row) {
+        if (row < -mActiveTranscriptRows && row >= -mActiveTranscriptRows - getArchivedRows()) {
+            readArchivedRow(row);
+            return mArchivedLineWrap;
+        }
         return mLineWrap[externalToInternalRow(row)];
     }
 
@@ -150,13 +237,18 @@ public boolean getLineWrap(int row) {
      *         and placing it into a new transcript of the correct size.
      */
     public boolean resize(int newColumns, int newRows, int[] cursor) {
-        if (newColumns != mColumns || newRows > mTotalRows) {
+        if (newColumns != mColumns || newRows > mMaxRows) {
             return false;
         }
+        ensureCapacity(newRows);
 
         int screenRows = mScreenRows;
         int activeTranscriptRows = mActiveTranscriptRows;
         int shift = screenRows - newRows;
+        if (shift < 0) {
+            // The screen grows up into the transcript, whose rows must be live
+            unpackNewestRows(Math.min(-shift, activeTranscriptRows));
+        }
         if (shift < -activeTranscriptRows) {
             // We want to add blank lines at the bottom instead of at the top
             Object[] lines = mLines;
@@ -164,7 +256,9 @@ public boolean resize(int newColumns, int newRows, int[] cursor) {
             boolean[] lineWrap = mLineWrap;
             int screenFirstRow = mScreenFirstRow;
             int totalRows = mTotalRows;
-            for (int i = 0; i < activeTranscriptRows - shift; ++i) {
+            // Only the rows past the transcript are new -- clearing more
+            // would wrap around onto rows in use once the buffer is full
+            for (int i = 0; i < -shift - activeTranscriptRows; ++i) {
                 int index = (screenFirstRow + screenRows + i) % totalRows;
                 lines[index] = null;
                 color[index] = null;
@@ -235,6 +329,7 @@ public boolean resize(int newColumns, int newRows, int[] cursor) {
         } else {
             mActiveTranscriptRows += shift;
         }
+        mPackedRows = Math.min(mPackedRows, mActiveTranscriptRows);
         if (cursor != null) {
             cursor[1] -= shift;
         }
@@ -295,6 +390,20 @@ private void blockCopyLines(int src, int len, int shift) {
      * @param style the style for the newly exposed line.
      */
     public void scroll(int topMargin, int bottomMargin, int style) {
+        scroll(topMargin, bottomMargin, 1, style);
+    }
+
+    /**
+     * Scroll the screen down several lines at once, with the same effect as
+     * scrolling it down one line that many times.
+     *
+     * @param topMargin First line that is scrolled.
+     * @param bottomMargin One line after the last line that is scrolled.
+     * @param count The number of lines to scroll, at most the number of lines
+     *        between the margins.
+     * @param style the style for the newly exposed lines.
+     */
+    public void scroll(int topMargin, int bottomMargin, int count, int style) {
         // Separate out reasons so that stack crawls help us
         // figure out which condition was violated.
         if (topMargin > bottomMargin - 1) {
@@ -309,22 +418,61 @@ public void scroll(int topMargin, int bottomMargin, int style) {
             throw new IllegalArgumentException();
         }
 
+        if (count < 1 || count > bottomMargin - topMargin) {
+            throw new IllegalArgumentException();
+        }
+
+        // Make room for the rows about to join the transcript
+        ensureCapacity(mActiveTranscriptRows + mScreenRows + count);
+
         int screenRows = mScreenRows;
         int totalRows = mTotalRows;
 
-        if (topMargin == 0 && bottomMargin == screenRows) {
-            // Fast path -- scroll the entire screen
-            mScreenFirstRow = (mScreenFirstRow + 1) % totalRows;
-            if (mActiveTranscriptRows < totalRows - screenRows) {
-                ++mActiveTranscriptRows;
+        if (count > 1 && count > totalRows - screenRows) {
+            /* Lines moved down in the buffer would wrap around onto the ones
+               we're scrolling off the screen -- go one line at a time */
+            for (int i = 0; i < count; ++i) {
+                scroll(topMargin, bottomMargin, 1, style);
             }
+            return;
+        }
 
-            // Blank the bottom margin
-            int blankRow = externalToInternalRow(bottomMargin - 1);
-            mLines[blankRow] = null;
-            mColor[blankRow] = new StyleRow(style, mColumns);
-            mLineWrap[blankRow] = false;
+        if (count <= totalRows - screenRows) {
+            /* The rows just below the screen are about to be overwritten --
+               they're either the oldest rows of a full transcript, or not in
+               use at all */
+            int unused = totalRows - screenRows - mActiveTranscriptRows;
+            for (int i = 0; i < count; ++i) {
+                int row = (mScreenFirstRow + screenRows + i) % totalRows;
+                if (i >= unused && mScrollbackFile != null) {
+                    archiveRow(row);
+                }
+                freeRow(row);
+            }
+        } else if (topMargin == 0 && bottomMargin == screenRows) {
+            // With no transcript, the line scrolled off the screen is lost
+            if (mScrollbackFile != null) {
+                archiveRow(mScreenFirstRow);
+            }
+            freeRow(mScreenFirstRow);
+        } else {
+            /* With no transcript, there's no room below the screen to move
+               the lines under the bottom margin into -- drop the scrolled
+               lines and move the rest of the region up in place */
+            for (int i = 0; i < count; ++i) {
+                freeRow(externalToInternalRow(topMargin + i));
+            }
+            blockCopyLines(externalToInternalRow(topMargin + count),
+                    bottomMargin - topMargin - count, -count);
+            blankScrolledLines(bottomMargin, count, style);
+            return;
+        }
 
+        if (topMargin == 0 && bottomMargin == screenRows) {
+            // Fast path -- scroll the entire screen
+            mScreenFirstRow = (mScreenFirstRow + count) % totalRows;
+            addTranscriptRows(count);
+            blankScrolledLines(bottomMargin, count, style);
             return;
         }
 
@@ -332,34 +480,271 @@ public void scroll(int topMargin, int bottomMargin, int style) {
         int topMarginInt = externalToInternalRow(topMargin);
         int bottomMarginInt = externalToInternalRow(bottomMargin);
 
-        /* Save the scrolled line, move the lines above it on the screen down
-           one line, move the lines on screen below the bottom margin down
-           one line, then insert the scrolled line into the transcript */
+        /* Save the scrolled lines, move the lines above them on the screen
+           down, move the lines on screen below the bottom margin down, then
+           insert the scrolled lines into the transcript.  The lines left
+           between the margins don't need to move at all. */
         Object[] lines = mLines;
         StyleRow[] color = mColor;
         boolean[] lineWrap = mLineWrap;
-        Object scrollLine = lines[topMarginInt];
-        StyleRow scrollColor = color[topMarginInt];
-        boolean scrollLineWrap = lineWrap[topMarginInt];
-        blockCopyLines(screenFirstRow, topMargin, 1);
-        blockCopyLines(bottomMarginInt, screenRows - bottomMargin, 1);
-        lines[screenFirstRow] = scrollLine;
-        color[screenFirstRow] = scrollColor;
-        lineWrap[screenFirstRow] = scrollLineWrap;
+        if (mScrollLines == null || mScrollLines.length < count) {
+            mScrollLines = new Object[count];
+            mScrollColor = new StyleRow[count];
+            mScrollLineWrap = new boolean[count];
+        }
+        Object[] scrollLines = mScrollLines;
+        StyleRow[] scrollColor = mScrollColor;
+        boolean[] scrollLineWrap = mScrollLineWrap;
+        for (int i = 0; i < count; ++i) {
+            int row = (topMarginInt + i) % totalRows;
+            scrollLines[i] = lines[row];
+            scrollColor[i] = color[row];
+            scrollLineWrap[i] = lineWrap[row];
+        }
+        blockCopyLines(screenFirstRow, topMargin, count);
+        blockCopyLines(bottomMarginInt, screenRows - bottomMargin, count);
+        for (int i = 0; i < count; ++i) {
+            int row = (screenFirstRow + i) % totalRows;
+            lines[row] = scrollLines[i];
+            color[row] = scrollColor[i];
+            lineWrap[row] = scrollLineWrap[i];
+            scrollLines[i] = null;
+            scrollColor[i] = null;
+        }
 
         // Update the screen location
-        mScreenFirstRow = (screenFirstRow + 1) % totalRows;
-        if (mActiveTranscriptRows < totalRows - screenRows) {
-            ++mActiveTranscriptRows;
+        mScreenFirstRow = (screenFirstRow + count) % totalRows;
+        addTranscriptRows(count);
+
+        blankScrolledLines(bottomMargin, count, style);
+    }
+
+    private void addTranscriptRows(int count) {
+        int maxTranscriptRows = mMaxRows - mScreenRows;
+        int dropped = mActiveTranscriptRows + count - maxTranscriptRows;
+        if (mActiveTranscriptRows < maxTranscriptRows) {
+            mActiveTranscriptRows = Math.min(mActiveTranscriptRows + count,
+                    maxTranscriptRows);
+        }
+        if (dropped > 0) {
+            // The oldest rows, packed or not, have left the transcript
+            mPackedRows = Math.max(mPackedRows - dropped, 0);
+        }
+        packScrollback();
+    }
+
+    /**
+     * Grow the buffer to hold at least rows rows, if it may grow that far,
+     * laying out the rows in use again from the oldest at the start of the
+     * new buffer.
+     */
+    private void ensureCapacity(int rows) {
+        int totalRows = mTotalRows;
+        if (rows <= totalRows || totalRows == mMaxRows) {
+            return;
+        }
+        int newTotalRows = Math.min(mMaxRows, Math.max(rows, 2 * totalRows));
+        moveRows(newTotalRows, mActiveTranscriptRows);
+    }
+
+    /**
+     * Move the newest rows of the transcript and the screen into new arrays,
+     * starting with the oldest at row 0.
+     */
+    private void moveRows(int newTotalRows, int transcriptRows) {
+        int totalRows = mTotalRows;
+        Object[] lines = new Object[newTotalRows];
+        StyleRow[] color = new StyleRow[newTotalRows];
+        boolean[] lineWrap = new boolean[newTotalRows];
+        int first = externalToInternalRow(-transcriptRows);
+        ScrollbackChunk oldChunk = null;
+        ScrollbackChunk newChunk = null;
+        for (int i = 0; i < transcriptRows + mScreenRows; ++i) {
+            int row = (first + i) % totalRows;
+            Object line = mLines[row];
+            if (line instanceof ScrollbackChunk) {
+                // The chunk's rows have moved, so it needs to know where to
+                if (line != oldChunk) {
+                    oldChunk = (ScrollbackChunk) line;
+                    int firstRow = i - oldChunk.indexOf(row, totalRows);
+                    newChunk = oldChunk.moveTo(firstRow < 0 ? firstRow + newTotalRows : firstRow);
+                }
+                line = newChunk;
+            }
+            lines[i] = line;
+            color[i] = mColor[row];
+            lineWrap[i] = mLineWrap[row];
+        }
+        mLines = lines;
+        mColor = color;
+        mLineWrap = lineWrap;
+        mTotalRows = newTotalRows;
+        mScreenFirstRow = transcriptRows;
+        // The moved chunks are different objects from the unpacked ones
+        Arrays.fill(mUnpackedChunks, null);
+    }
+
+    /* Pack the rows which have scrolled past the threshold, a chunk at a time */
+    private void packScrollback() {
+        int threshold = mPackThreshold;
+        if (threshold < 0) {
+            return;
+        }
+        while (mActiveTranscriptRows - mPackedRows - threshold >= CHUNK_ROWS) {
+            if (mChunkWriter == null) {
+                mChunkWriter = new ScrollbackChunk.Writer();
+            }
+            int firstRow = externalToInternalRow(mPackedRows - mActiveTranscriptRows);
+            ScrollbackChunk chunk = ScrollbackChunk.pack(mLines, mColor,
+                    firstRow, CHUNK_ROWS, mColumns, mChunkWriter);
+            for (int i = 0; i < CHUNK_ROWS; ++i) {
+                int row = (firstRow + i) % mTotalRows;
+                freeRow(row);
+                mLines[row] = chunk;
+            }
+            mPackedRows += CHUNK_ROWS;
+        }
+    }
+
+    /* Unpack the packed rows among the newest rows of the transcript */
+    private void unpackNewestRows(int rows) {
+        int liveRows = mActiveTranscriptRows - mPackedRows;
+        while (liveRows < rows && mPackedRows > 0) {
+            int row = externalToInternalRow(-(liveRows + 1));
+            ScrollbackChunk chunk = (ScrollbackChunk) mLines[row];
+            int index = chunk.indexOf(row, mTotalRows);
+            useChunk(chunk);
+            mLines[row] = mUnpackedLines[0][index];
+            mColor[row] = mUnpackedColors[0][index];
+            --mPackedRows;
+            ++liveRows;
+        }
+    }
+
+    /* The line of a row, unpacking it if need be */
+    private Object getLineObject(int row) {
+        Object line = mLines[row];
+        if (line instanceof ScrollbackChunk) {
+            ScrollbackChunk chunk = (ScrollbackChunk) line;
+            useChunk(chunk);
+            return mUnpackedLines[0][chunk.indexOf(row, mTotalRows)];
+        }
+        return line;
+    }
+
+    /* The style row of a row, unpacking it if need be */
+    private StyleRow getColorObject(int row) {
+        Object line = mLines[row];
+        if (line instanceof ScrollbackChunk) {
+            ScrollbackChunk chunk = (ScrollbackChunk) line;
+            useChunk(chunk);
+            return mUnpackedColors[0][chunk.indexOf(row, mTotalRows)];
+        }
+        return mColor[row];
+    }
+
+    /**
+     * Make a chunk the first of the recently unpacked chunks, unpacking it
+     * in place of the least recently used one if it isn't there already.
+     */
+    private void useChunk(ScrollbackChunk chunk) {
+        ScrollbackChunk[] chunks = mUnpackedChunks;
+        if (chunks[0] == chunk) {
+            return;
+        }
+        int i = 1;
+        while (i < UNPACKED_CHUNKS - 1 && chunks[i] != chunk) {
+            ++i;
+        }
+        Object[] lines = mUnpackedLines[i];
+        StyleRow[] colors = mUnpackedColors[i];
+        if (chunks[i] != chunk) {
+            if (lines == null) {
+                lines = new Object[CHUNK_ROWS];
+                colors = new StyleRow[CHUNK_ROWS];
+            }
+            chunk.unpack(mColumns, lines, colors);
+        }
+        System.arraycopy(chunks, 0, chunks, 1, i);
+        System.arraycopy(mUnpackedLines, 0, mUnpackedLines, 1, i);
+        System.arraycopy(mUnpackedColors, 0, mUnpackedColors, 1, i);
+        chunks[0] = chunk;
+        mUnpackedLines[0] = lines;
+        mUnpackedColors[0] = colors;
+    }
+
+    /* Add a row leaving the buffer to the end of the scrollback file */
+    private void archiveRow(int row) {
+        mScrollbackFile.append(getLineObject(row), getColorObject(row),
+                mLineWrap[row], mColumns);
+    }
+
+    /* Read the row of the scrollback file at an external row, unless it's the last one read */
+    private void readArchivedRow(int extRow) {
+        long row = mScrollbackFile.getRowCount() + mActiveTranscriptRows + extRow;
+        if (row != mArchivedRow) {
+            mArchivedLineWrap = mScrollbackFile.read(row, mColumns,
+                    mArchivedLine, mArchivedColor);
+            mArchivedRow = row;
+        }
+    }
+
+    /* The line of an external row, which may be in the scrollback file */
+    private Object getExternalLine(int extRow) {
+        if (extRow < -mActiveTranscriptRows) {
+            readArchivedRow(extRow);
+            return mArchivedLine[0];
+        }
+        return getLineObject(externalToInternalRow(extRow));
+    }
+
+    /* The style row of an external row, which may be in the scrollback file */
+    private StyleRow getExternalColor(int extRow) {
+        if (extRow < -mActiveTranscriptRows) {
+            readArchivedRow(extRow);
+            return mArchivedColor[0];
+        }
+        return getColorObject(externalToInternalRow(extRow));
+    }
+
+    /* Blank the count lines above the bottom margin */
+    private void blankScrolledLines(int bottomMargin, int count, int style) {
+        for (int i = bottomMargin - count; i < bottomMargin; ++i) {
+            int blankRow = externalToInternalRow(i);
+            mLines[blankRow] = null;
+            mColor[blankRow] = obtainStyleRow(style);
+            mLineWrap[blankRow] = false;
         }
+    }
 
-        // Blank the bottom margin
-        int blankRow = externalToInternalRow(bottomMargin - 1);
-        lines[blankRow] = null;
-        color[blankRow] = new StyleRow(style, mColumns);
-        lineWrap[blankRow] = false;
+    /**
+     * Put a row which is no longer part of the buffer on the free lists, and
+     * clear its slot.  The row must not be referenced from any other slot.
+     */
+    private void freeRow(int row) {
+        // Packing frees a chunk of rows at once, to be reused as the screen
+        // scrolls on
+        int maxFree = mScreenRows + CHUNK_ROWS;
+        Object line = mLines[row];
+        if (line instanceof char[]) {
+            mFreeBasicLines.add(line, maxFree);
+        } else if (line instanceof FullUnicodeLine) {
+            mFreeFullLines.add(line, maxFree);
+        }
+        if (mColor[row] != null) {
+            mFreeColors.add(mColor[row], maxFree);
+        }
+        mLines[row] = null;
+        mColor[row] = null;
+    }
 
-        return;
+    private StyleRow obtainStyleRow(int style) {
+        StyleRow color = (StyleRow) mFreeColors.remove();
+        if (color == null) {
+            return new StyleRow(style, mColumns);
+        }
+        color.reset(style);
+        return color;
     }
 
     /**
@@ -476,7 +861,7 @@ public void blockCopy(int sx, int sy, int w, int h, int dx, int dy) {
      */
     public void blockSet(int sx, int sy, int w, int h, int val, int style) {
         if (sx < 0 || sx + w > mColumns || sy < 0 || sy + h > mScreenRows) {
-            Log.e(TAG, "illegal arguments! " + sx + " " + sy + " " + w + " " + h + " " + val + " " + mColumns + " " + mScreenRows);
+            EmulatorLog.e(TAG, "illegal arguments! " + sx + " " + sy + " " + w + " " + h + " " + val + " " + mColumns + " " + mScreenRows);
             throw new IllegalArgumentException();
         }
 
@@ -487,16 +872,6 @@ public void blockSet(int sx, int sy, int w, int h, int val, int style) {
         }
     }
 
-    /**
-     * Minimum API version for which we're willing to let Android try
-     * rendering conjoining Hangul jamo as composed syllable blocks.
-     *
-     * This appears to work on Android 4.1.2, 4.3, and 4.4 (real devices only;
-     * the emulator's broken for some reason), but not on 4.0.4 -- hence the
-     * choice of API 16 as the minimum.
-     */
-    static final int HANGUL_CONJOINING_MIN_SDK = 16;
-
     /**
      * Gives the display width of the code point in a monospace font.
      *
@@ -538,7 +913,7 @@ public static int charWidth(int codePoint) {
 
         if ((codePoint >= 0x1160 && codePoint <= 0x11FF) ||
                 (codePoint >= 0xD7B0 && codePoint <= 0xD7FF)) {
-            if (AndroidCompat.SDK >= HANGUL_CONJOINING_MIN_SDK) {
+            if (EmulatorPlatform.get().composesHangulJamo()) {
                     /* Treat Hangul jamo medial vowels and final consonants as
                      * combining characters with width 0 to make jamo composition
                      * work correctly.
@@ -562,10 +937,8 @@ public static int charWidth(int codePoint) {
             return vimCharWidth(codePoint);
         } else {
             if (Character.charCount(codePoint) == 1) {
-                // Android's getEastAsianWidth() only works for BMP characters
-                switch (AndroidCharacterCompat.getEastAsianWidth((char) codePoint)) {
-                case AndroidCharacterCompat.EAST_ASIAN_WIDTH_FULL_WIDTH:
-                case AndroidCharacterCompat.EAST_ASIAN_WIDTH_WIDE:
+                // The platform's width data only covers BMP characters
+                if (EmulatorPlatform.get().isEastAsianWide((char) codePoint)) {
                     return 2;
                 }
             } else {
@@ -826,6 +1199,10 @@ private static int vimCharWidth(int codePoint) {
         return 1;
     }
 
+    static boolean isDoubleWidth(int codePoint) {
+        return intable(codePoint, mDoublewidth);
+    }
+
     private static boolean intable(int c, int[][] table) {
         if (c < table[0][0]) return false;
 
@@ -875,7 +1252,8 @@ public static int charWidth(char[] chars, int index) {
      * this case, the last character requested will be followed by a NUL, and
      * the contents of the rest of the array could potentially be garbage.
      *
-     * @param row The row number to get (-mActiveTranscriptRows..mScreenRows-1)
+     * @param row The row number to get (-mActiveTranscriptRows..mScreenRows-1,
+     *        or further back into the scrollback file)
      * @param x1 The first screen position that's wanted
      * @param x2 One after the last screen position that's wanted
      * @return A char[] array containing the requested contents
@@ -892,34 +1270,34 @@ public char[] getLine(int row) {
     }
 
     private char[] getLine(int row, int x1, int x2, boolean strictBounds) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -mActiveTranscriptRows - getArchivedRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
 
         int columns = mColumns;
-        row = externalToInternalRow(row);
-        if (mLines[row] == null) {
+        Object rowLine = getExternalLine(row);
+        if (rowLine == null) {
             // Line is blank
             return null;
         }
-        if (mLines[row] instanceof char[]) {
+        if (rowLine instanceof char[]) {
             // Line contains only regular-width BMP characters
             if (x1 == 0 && x2 == columns) {
                 // Want the whole row? Easy.
-                return (char[]) mLines[row];
+                return (char[]) rowLine;
             } else {
                 if (tmpLine == null || tmpLine.length < columns + 1) {
                     tmpLine = new char[columns+1];
                 }
                 int length = x2 - x1;
-                System.arraycopy(mLines[row], x1, tmpLine, 0, length);
+                System.arraycopy(rowLine, x1, tmpLine, 0, length);
                 tmpLine[length] = 0;
                 return tmpLine;
             }
         }
 
         // Figure out how long the array needs to be
-        FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+        FullUnicodeLine line = (FullUnicodeLine) rowLine;
         char[] rawLine = line.getLine();
 
         if (x1 == 0 && x2 == columns) {
@@ -970,18 +1348,18 @@ public StyleRow getLineColor(int row) {
     }
 
     private StyleRow getLineColor(int row, int x1, int x2, boolean strictBounds) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -mActiveTranscriptRows - getArchivedRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
 
-        row = externalToInternalRow(row);
-        StyleRow color = mColor[row];
+        StyleRow color = getExternalColor(row);
         StyleRow tmp = tmpColor;
         if (color != null) {
             int columns = mColumns;
-            if (!strictBounds && mLines[row] != null &&
-                    mLines[row] instanceof FullUnicodeLine) {
-                FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+            Object rowLine = getExternalLine(row);
+            if (!strictBounds && rowLine != null &&
+                    rowLine instanceof FullUnicodeLine) {
+                FullUnicodeLine line = (FullUnicodeLine) rowLine;
                 /* If either the start or the end column is in the middle of
                  * an East Asian wide character, include the appropriate column
                  * of style information */
@@ -1003,11 +1381,11 @@ private StyleRow getLineColor(int row, int x1, int x2, boolean strictBounds) {
     }
 
     boolean isBasicLine(int row) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -mActiveTranscriptRows - getArchivedRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
 
-        return (mLines[externalToInternalRow(row)] instanceof char[]);
+        return (getExternalLine(row) instanceof char[]);
     }
 
     public boolean getChar(int row, int column) {
@@ -1030,19 +1408,19 @@ public boolean getChar(int row, int column, int charIndex) {
      * @return Whether or not there are characters following this one in the column.
      */
     public boolean getChar(int row, int column, int charIndex, char[] out, int offset) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -mActiveTranscriptRows - getArchivedRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
-        row = externalToInternalRow(row);
+        Object rowLine = getExternalLine(row);
 
-        if (mLines[row] instanceof char[]) {
+        if (rowLine instanceof char[]) {
             // Fast path: all regular-width BMP chars in the row
-            char[] line = (char[]) mLines[row];
+            char[] line = (char[]) rowLine;
             out[offset] = line[column];
             return false;
         }
 
-        FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+        FullUnicodeLine line = (FullUnicodeLine) rowLine;
         return line.getChar(column, charIndex, out, offset);
     }
 
@@ -1051,7 +1429,10 @@ private boolean isBasicChar(int codePoint) {
     }
 
     private char[] allocateBasicLine(int row, int columns) {
-        char[] line = new char[columns];
+        char[] line = (char[]) mFreeBasicLines.remove();
+        if (line == null) {
+            line = new char[columns];
+        }
 
         // Fill the line with blanks
         for (int i = 0; i < columns; ++i) {
@@ -1060,17 +1441,22 @@ private char[] allocateBasicLine(int row, int columns) {
 
         mLines[row] = line;
         if (mColor[row] == null) {
-            mColor[row] = new StyleRow(0, columns);
+            mColor[row] = obtainStyleRow(0);
         }
         return line;
     }
 
     private FullUnicodeLine allocateFullLine(int row, int columns) {
-        FullUnicodeLine line = new FullUnicodeLine(columns);
+        FullUnicodeLine line = (FullUnicodeLine) mFreeFullLines.remove();
+        if (line == null) {
+            line = new FullUnicodeLine(columns);
+        } else {
+            line.clear();
+        }
 
         mLines[row] = line;
         if (mColor[row] == null) {
-            mColor[row] = new StyleRow(0, columns);
+            mColor[row] = obtainStyleRow(0);
         }
         return line;
     }
@@ -1088,7 +1474,7 @@ public boolean setChar(int column, int row, int codePoint, int style) {
 
     public boolean setChar(int column, int row, int codePoint) {
         if (row >= mScreenRows || column >= mColumns) {
-            Log.e(TAG, "illegal arguments! " + row + " " + column + " " + mScreenRows + " " + mColumns);
+            EmulatorLog.e(TAG, "illegal arguments! " + row + " " + column + " " + mScreenRows + " " + mColumns);
             throw new IllegalArgumentException();
         }
         row = externalToInternalRow(row);
@@ -1128,289 +1514,80 @@ public boolean setChar(int column, int row, int codePoint) {
             }
 
             // Need to switch to the full-featured mode
-            mLines[row] = new FullUnicodeLine(line);
+            FullUnicodeLine fullLine = (FullUnicodeLine) mFreeFullLines.remove();
+            if (fullLine == null) {
+                fullLine = new FullUnicodeLine(line);
+            } else {
+                fullLine.setBasicLine(line);
+            }
+            mLines[row] = fullLine;
+            mFreeBasicLines.add(line, mScreenRows);
         }
 
         FullUnicodeLine line = (FullUnicodeLine) mLines[row];
         line.setChar(column, codePoint);
         return true;
     }
-}
-
-/*
- * A representation of a line that's capable of handling non-BMP characters,
- * East Asian wide characters, and combining characters.
- *
- * The text of the line is stored in an array of char[], allowing easy
- * conversion to a String and/or reuse by other string-handling functions.
- * An array of short[] is used to keep track of the difference between a column
- * and the starting index corresponding to its contents in the char[] array (so
- * if column 42 starts at index 45 in the char[] array, the offset stored is 3).
- * Column 0 always starts at index 0 in the char[] array, so we use that
- * element of the array to keep track of how much of the char[] array we're
- * using at the moment.
- */
-class FullUnicodeLine {
-    private static final float SPARE_CAPACITY_FACTOR = 1.5f;
-
-    private char[] mText;
-    private short[] mOffset;
-    private int mColumns;
-
-    public FullUnicodeLine(int columns) {
-        commonConstructor(columns);
-        char[] text = mText;
-        // Fill in the line with blanks
-        for (int i = 0; i < columns; ++i) {
-            text[i] = ' ';
-        }
-        // Store the space used
-        mOffset[0] = (short) columns;
-    }
-
-    public FullUnicodeLine(char[] basicLine) {
-        commonConstructor(basicLine.length);
-        System.arraycopy(basicLine, 0, mText, 0, mColumns);
-        // Store the space used
-        mOffset[0] = (short) basicLine.length;
-    }
-
-    private void commonConstructor(int columns) {
-        mColumns = columns;
-        mOffset = new short[columns];
-        mText = new char[(int)(SPARE_CAPACITY_FACTOR*columns)];
-    }
-
-    public int getSpaceUsed() {
-        return mOffset[0];
-    }
-
-    public char[] getLine() {
-        return mText;
-    }
-
-    public int findStartOfColumn(int column) {
-        if (column == 0) {
-            return 0;
-        } else {
-            return column + mOffset[column];
-        }
-    }
-
-    public boolean getChar(int column, int charIndex, char[] out, int offset) {
-        int pos = findStartOfColumn(column);
-        int length;
-        if (column + 1 < mColumns) {
-            length = findStartOfColumn(column + 1) - pos;
-        } else {
-            length = getSpaceUsed() - pos;
-        }
-        if (charIndex >= length) {
-            throw new IllegalArgumentException();
-        }
-        out[offset] = mText[pos + charIndex];
-        return (charIndex + 1 < length);
-    }
 
-    public void setChar(int column, int codePoint) {
-        int columns = mColumns;
-        if (column < 0 || column >= columns) {
+    /**
+     * Store a run of printable ASCII characters, all of which are basic
+     * characters, into one row.
+     */
+    public void setChars(int column, int row, byte[] text, int offset, int count, int style) {
+        if (row >= mScreenRows || column + count > mColumns) {
+            EmulatorLog.e(TAG, "illegal arguments! " + row + " " + column + " " + count + " " + mScreenRows + " " + mColumns);
             throw new IllegalArgumentException();
         }
+        row = externalToInternalRow(row);
 
-        char[] text = mText;
-        short[] offset = mOffset;
-        int spaceUsed = offset[0];
-
-        int pos = findStartOfColumn(column);
-
-        int charWidth = UnicodeTranscript.charWidth(codePoint);
-        int oldCharWidth = UnicodeTranscript.charWidth(text, pos);
-
-        if (charWidth == 2 && column == columns - 1) {
-            // A width 2 character doesn't fit in the last column.
-            codePoint = ' ';
-            charWidth = 1;
-        }
-
-        boolean wasExtraColForWideChar = false;
-        if (oldCharWidth == 2 && column > 0) {
-            /* If the previous screen column starts at the same offset in the
-             * array as this one, this column must be the second column used
-             * by an East Asian wide character */
-            wasExtraColForWideChar = (findStartOfColumn(column - 1) == pos);
+        if (mLines[row] == null) {
+            allocateBasicLine(row, mColumns);
         }
 
-        // Get the number of elements in the mText array this column uses now
-        int oldLen;
-        if (wasExtraColForWideChar && column + 1 < columns) {
-            oldLen = findStartOfColumn(column + 1) - pos;
-        } else if (column + oldCharWidth < columns) {
-            oldLen = findStartOfColumn(column+oldCharWidth) - pos;
-        } else {
-            oldLen = spaceUsed - pos;
-        }
-
-        // Find how much space this column will need
-        int newLen = Character.charCount(codePoint);
-        if (charWidth == 0) {
-            /* Combining characters are added to the contents of the column
-               instead of overwriting them, so that they modify the existing
-               contents */
-            newLen += oldLen;
-        }
-        int shift = newLen - oldLen;
-
-        // Shift the rest of the line right to make room if necessary
-        if (shift > 0) {
-            if (spaceUsed + shift > text.length) {
-                // We need to grow the array
-                char[] newText = new char[text.length + columns];
-                System.arraycopy(text, 0, newText, 0, pos);
-                System.arraycopy(text, pos + oldLen, newText, pos + newLen, spaceUsed - pos - oldLen);
-                mText = text = newText;
-            } else {
-                System.arraycopy(text, pos + oldLen, text, pos + newLen, spaceUsed - pos - oldLen);
+        if (mLines[row] instanceof char[]) {
+            // Fast path -- widen the bytes straight into the array
+            char[] line = (char[]) mLines[row];
+            for (int i = 0; i < count; ++i) {
+                line[column + i] = (char) text[offset + i];
             }
-        }
-
-        // Store the character
-        if (charWidth > 0) {
-            Character.toChars(codePoint, text, pos);
         } else {
-            /* Store a combining character at the end of the existing contents,
-               so that it modifies them */
-            Character.toChars(codePoint, text, pos + oldLen);
-        }
-
-        // Shift the rest of the line left to eliminate gaps if necessary
-        if (shift < 0) {
-            System.arraycopy(text, pos + oldLen, text, pos + newLen, spaceUsed - pos - oldLen);
-        }
-
-        // Update space used
-        if (shift != 0) {
-            spaceUsed += shift;
-            offset[0] = (short) spaceUsed;
-        }
-
-        /*
-         * Handle cases where we need to pad with spaces to preserve column
-         * alignment
-         *
-         * width 2 -> width 1: pad with a space before or after the new
-         * character, depending on which of the two previously-occupied columns
-         * we wrote into
-         *
-         * inserting width 2 character into the second column of an existing
-         * width 2 character: pad with a space before the new character
-         */
-        if (oldCharWidth == 2 && charWidth == 1 || wasExtraColForWideChar && charWidth == 2) {
-            int nextPos = pos + newLen;
-            char[] newText = text;
-            if (spaceUsed + 1 > text.length) {
-                // Array needs growing
-                newText = new char[text.length + columns];
-                System.arraycopy(text, 0, newText, 0, wasExtraColForWideChar ? pos : nextPos);
-            }
-
-            if (wasExtraColForWideChar) {
-                // Padding goes before the new character
-                System.arraycopy(text, pos, newText, pos + 1, spaceUsed - pos);
-                newText[pos] = ' ';
-            } else {
-                // Padding goes after the new character
-                System.arraycopy(text, nextPos, newText, nextPos + 1, spaceUsed - nextPos);
-                newText[nextPos] = ' ';
-            }
-
-            if (newText != text) {
-                // Update mText to point to the newly grown array
-                mText = text = newText;
+            FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+            for (int i = 0; i < count; ++i) {
+                line.setChar(column + i, text[offset + i]);
             }
-
-            // Update space used
-            spaceUsed = ++offset[0];
-
-            // Correct the offset for the just-modified column to reflect
-            // width change
-            if (wasExtraColForWideChar) {
-                ++offset[column];
-                ++pos;
-            } else {
-                if (column == 0) {
-                    offset[1] = (short) (newLen - 1);
-                } else if (column + 1 < columns) {
-                    offset[column + 1] = (short) (offset[column] + newLen - 1);
-                }
-                ++column;
-            }
-
-            ++shift;
         }
-        
-        /*
-         * Handle cases where we need to clobber the contents of the next
-         * column in order to preserve column alignment
-         *
-         * width 1 -> width 2: should clobber the contents of the next
-         * column (if next column contains wide char, need to pad with a space)
-         *
-         * inserting width 2 character into the second column of an existing
-         * width 2 character: same
-         */
-        if (oldCharWidth == 1 && charWidth == 2 || wasExtraColForWideChar && charWidth == 2) {
-            if (column == columns - 2) {
-                // Correct offset for the next column to reflect width change
-                offset[column + 1] = (short) (offset[column] - 1);
-
-                // Truncate the line after this character.
-                offset[0] = (short) (pos + newLen);
-                shift = 0;
-            } else {
-                // Overwrite the contents of the next column.
-                int nextPos = pos + newLen;
-                int nextWidth = UnicodeTranscript.charWidth(text, nextPos);
-                int nextLen;
-                if (column + nextWidth + 1 < columns) {
-                    nextLen = findStartOfColumn(column + nextWidth + 1) + shift - nextPos;
-                } else {
-                    nextLen = spaceUsed - nextPos;
-                }
 
-                if (nextWidth == 2) {
-                    text[nextPos] = ' ';
-                    // Shift the array to match
-                    if (nextLen > 1) {
-                        System.arraycopy(text, nextPos + nextLen, text, nextPos + 1, spaceUsed - nextPos - nextLen);
-                        shift -= nextLen - 1;
-                        offset[0] -= nextLen - 1;
-                    }
-                } else {
-                    // Shift the array leftwards
-                    System.arraycopy(text, nextPos + nextLen, text, nextPos, spaceUsed - nextPos - nextLen);
-                    shift -= nextLen;
+        mColor[row].set(column, count, style);
+    }
 
-                    // Truncate the line
-                    offset[0] -= nextLen;
-                }
+    /**
+     * A stack of rows which are free to be reused, holding at most a given
+     * number of them.
+     */
+    private static final class FreeList {
+        private Object[] mItems = new Object[8];
+        private int mCount;
 
-                // Correct the offset for the next column to reflect width change
-                if (column == 0) {
-                    offset[1] = -1;
-                } else {
-                    offset[column + 1] = (short) (offset[column] - 1);
-                }
-                ++column;
+        void add(Object item, int max) {
+            if (mCount >= max) {
+                return;
+            }
+            if (mCount == mItems.length) {
+                Object[] items = new Object[Math.min(2 * mCount, max)];
+                System.arraycopy(mItems, 0, items, 0, mCount);
+                mItems = items;
             }
+            mItems[mCount++] = item;
         }
 
-        // Update offset table
-        if (shift != 0) {
-            for (int i = column + 1; i < columns; ++i) {
-                offset[i] += shift;
+        /** @return A free row, or null if there is none. */
+        Object remove() {
+            if (mCount == 0) {
+                return null;
             }
+            Object item = mItems[--mCount];
+            mItems[mCount] = null;
+            return item;
         }
     }
 }
-
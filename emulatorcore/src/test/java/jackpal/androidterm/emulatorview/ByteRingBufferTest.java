@@ -0,0 +1,198 @@
+package jackpal.androidterm.emulatorview;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link ByteRingBuffer} hands bytes over in order, through the
+ * copying calls and in place, including where the data wraps around the end
+ * of the array, and with a producer and a consumer on different threads.
+ */
+public class ByteRingBufferTest extends TestCase {
+    private static final int CAPACITY = 8;
+
+    public void testCapacityIsPowerOfTwo() {
+        assertEquals(8, new ByteRingBuffer(5).getCapacity());
+        assertEquals(8, new ByteRingBuffer(8).getCapacity());
+        assertEquals(16, new ByteRingBuffer(9).getCapacity());
+    }
+
+    public void testPartialOfferWhenFull() {
+        ByteRingBuffer queue = new ByteRingBuffer(CAPACITY);
+        assertEquals(5, queue.offer(bytes(0, 5), 0, 5));
+        assertEquals(3, queue.offer(bytes(5, 5), 0, 5));
+        assertEquals(0, queue.getFreeSpace());
+        assertEquals(0, queue.offer(bytes(8, 1), 0, 1));
+
+        byte[] buffer = new byte[CAPACITY];
+        assertEquals(4, queue.poll(buffer, 0, 4));
+        assertSequence(buffer, 0, 4, 0);
+
+        // The space freed at the start of the array takes the rest
+        assertEquals(4, queue.offer(bytes(8, 6), 0, 6));
+        assertEquals(CAPACITY, queue.poll(buffer, 0, CAPACITY));
+        assertSequence(buffer, 0, CAPACITY, 4);
+        assertEquals(0, queue.poll(buffer, 0, CAPACITY));
+    }
+
+    public void testReadableLengthAtWrapBoundary() {
+        ByteRingBuffer queue = new ByteRingBuffer(CAPACITY);
+        moveIndices(queue, 6);
+        queue.offer(bytes(0, 5), 0, 5);
+        assertEquals(5, queue.getBytesAvailable());
+
+        // Only the run up to the end of the array is contiguous
+        assertEquals(6, queue.getReadOffset());
+        assertEquals(2, queue.getReadableLength());
+        assertSequence(queue.array(), 6, 2, 0);
+        queue.commitRead(2);
+
+        assertEquals(0, queue.getReadOffset());
+        assertEquals(3, queue.getReadableLength());
+        assertSequence(queue.array(), 0, 3, 2);
+        queue.commitRead(3);
+        assertEquals(0, queue.getReadableLength());
+    }
+
+    public void testCommitWriteAcrossWrap() {
+        ByteRingBuffer queue = new ByteRingBuffer(CAPACITY);
+        moveIndices(queue, 6);
+        byte[] storage = queue.array();
+
+        assertEquals(6, queue.getWriteOffset());
+        assertEquals(2, queue.getWritableLength());
+        System.arraycopy(bytes(0, 2), 0, storage, 6, 2);
+        queue.commitWrite(2);
+
+        assertEquals(0, queue.getWriteOffset());
+        assertEquals(6, queue.getWritableLength());
+        System.arraycopy(bytes(2, 3), 0, storage, 0, 3);
+        queue.commitWrite(3);
+
+        byte[] buffer = new byte[CAPACITY];
+        assertEquals(5, queue.poll(buffer, 0, CAPACITY));
+        assertSequence(buffer, 0, 5, 0);
+    }
+
+    public void testCommitReadAcrossWrap() {
+        ByteRingBuffer queue = new ByteRingBuffer(CAPACITY);
+        moveIndices(queue, 6);
+        queue.offer(bytes(0, 5), 0, 5);
+
+        // A consumer which has seen all the data may release it in one go
+        assertEquals(2, queue.getReadableLength());
+        queue.commitRead(5);
+        assertEquals(0, queue.getBytesAvailable());
+        assertEquals(3, queue.getReadOffset());
+        assertEquals(CAPACITY, queue.getFreeSpace());
+    }
+
+    public void testCommitMoreThanAvailable() {
+        ByteRingBuffer queue = new ByteRingBuffer(CAPACITY);
+        queue.offer(bytes(0, 3), 0, 3);
+        queue.getReadableLength();
+        try {
+            queue.commitRead(4);
+            fail("Released more than was readable");
+        } catch (IllegalArgumentException e) {
+        }
+
+        queue.getWritableLength();
+        try {
+            queue.commitWrite(6);
+            fail("Published more than there was room for");
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(3, queue.getBytesAvailable());
+    }
+
+    public void testTwoThreadsKeepOrder() throws Exception {
+        final ByteRingBuffer queue = new ByteRingBuffer(64);
+        final int total = 1 << 20;
+        final Throwable[] failure = new Throwable[1];
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    produce(queue, total);
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        producer.start();
+
+        // Alternate between copying reads and reads in place
+        Random random = new Random(1);
+        byte[] buffer = new byte[100];
+        int next = 0;
+        while (next < total) {
+            if (random.nextBoolean()) {
+                int read = queue.read(buffer, 0, 1 + random.nextInt(buffer.length));
+                assertSequence(buffer, 0, read, next);
+                next += read;
+            } else {
+                queue.waitForData();
+                int length = queue.getReadableLength();
+                assertSequence(queue.array(), queue.getReadOffset(), length, next);
+                queue.commitRead(length);
+                next += length;
+            }
+        }
+
+        producer.join(10000);
+        assertFalse(producer.isAlive());
+        assertNull(failure[0]);
+        assertEquals(0, queue.getBytesAvailable());
+    }
+
+    /* Write total bytes of the sequence, alternating between copying writes and writes in place */
+    private static void produce(ByteRingBuffer queue, int total)
+            throws InterruptedException {
+        Random random = new Random(2);
+        byte[] buffer = new byte[100];
+        int next = 0;
+        while (next < total) {
+            int length = Math.min(1 + random.nextInt(buffer.length), total - next);
+            if (random.nextBoolean()) {
+                fill(buffer, 0, length, next);
+                int offset = 0;
+                while (offset < length) {
+                    offset += queue.write(buffer, offset, length - offset);
+                }
+            } else {
+                queue.waitForSpace();
+                length = Math.min(length, queue.getWritableLength());
+                fill(queue.array(), queue.getWriteOffset(), length, next);
+                queue.commitWrite(length);
+            }
+            next += length;
+        }
+    }
+
+    /* Advance both indices to position, leaving the queue empty */
+    private static void moveIndices(ByteRingBuffer queue, int position) {
+        byte[] buffer = new byte[position];
+        assertEquals(position, queue.offer(buffer, 0, position));
+        assertEquals(position, queue.poll(buffer, 0, position));
+    }
+
+    private static byte[] bytes(int first, int length) {
+        byte[] data = new byte[length];
+        fill(data, 0, length, first);
+        return data;
+    }
+
+    private static void fill(byte[] data, int offset, int length, int first) {
+        for (int i = 0; i < length; ++i) {
+            data[offset + i] = (byte) (first + i);
+        }
+    }
+
+    private static void assertSequence(byte[] data, int offset, int length, int first) {
+        for (int i = 0; i < length; ++i) {
+            assertEquals((byte) (first + i), data[offset + i]);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package jackpal.androidterm.emulatorview;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link StyleRow} holds the same styles whether it is solid,
+ * made of runs or stored column by column, by comparing it with a plain array
+ * through random sets and copies.
+ */
+public class StyleRowTest extends TestCase {
+    private static final int COLUMNS = 80;
+
+    public void testRunsMergeAndSplit() {
+        StyleRow row = new StyleRow(0, COLUMNS);
+        row.set(10, 5, 1);
+        assertFalse(row.isSolidStyle());
+        assertEquals(0, row.get(9));
+        assertEquals(1, row.get(10));
+        assertEquals(15, row.getRunEnd(10));
+        assertEquals(10, row.getRunStart(14));
+        assertEquals(COLUMNS, row.getRunEnd(15));
+
+        // Writing on past the end of a run extends it
+        row.set(15, 1);
+        row.set(16, 1);
+        assertEquals(17, row.getRunEnd(10));
+
+        // Restoring the old style merges everything back into one style
+        row.set(10, 7, 0);
+        assertTrue(row.isSolidStyle());
+        assertEquals(0, row.getSolidStyle());
+    }
+
+    public void testMatchesArray() {
+        Random random = new Random(22);
+        for (int iteration = 0; iteration < 200; ++iteration) {
+            // Few styles make long runs, many styles fragment the row
+            int styles = 2 + random.nextInt(iteration % 2 == 0 ? 3 : 40);
+            StyleRow row = new StyleRow(0, COLUMNS);
+            int[] expected = new int[COLUMNS];
+            for (int step = 0; step < 100; ++step) {
+                int column = random.nextInt(COLUMNS);
+                int count = 1 + random.nextInt(COLUMNS - column);
+                if (random.nextInt(4) == 0) {
+                    int offset = random.nextInt(COLUMNS - count + 1);
+                    row.copy(column, row, offset, count);
+                    System.arraycopy(expected, column, expected, offset, count);
+                } else {
+                    if (random.nextBoolean()) {
+                        count = 1;
+                    }
+                    int style = random.nextInt(styles);
+                    row.set(column, count, style);
+                    for (int i = column; i < column + count; ++i) {
+                        expected[i] = style;
+                    }
+                }
+                assertRow(expected, row);
+            }
+            row.reset(3);
+            assertTrue(row.isSolidStyle());
+            assertEquals(3, row.get(COLUMNS - 1));
+        }
+    }
+
+    private static void assertRow(int[] expected, StyleRow row) {
+        for (int column = 0; column < COLUMNS; ++column) {
+            assertEquals(expected[column], row.get(column));
+        }
+        // The runs cover the row and each holds one style
+        for (int column = 0; column < COLUMNS; ) {
+            int end = row.getRunEnd(column);
+            assertTrue(end > column);
+            for (int i = column; i < end; ++i) {
+                assertEquals(expected[column], expected[i]);
+            }
+            assertEquals(column, row.getRunStart(end - 1));
+            column = end;
+        }
+    }
+}
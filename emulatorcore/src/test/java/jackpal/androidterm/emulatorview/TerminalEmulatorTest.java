@@ -0,0 +1,401 @@
+package jackpal.androidterm.emulatorview;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link TerminalEmulator} puts text on the screen the same way
+ * however its input is split up, and that the transcript, scrollback and
+ * alternate screen keep what was written to them.
+ */
+public class TerminalEmulatorTest extends TestCase {
+    private static final int COLUMNS = 10;
+    private static final int ROWS = 3;
+
+    private RecordingHost mHost;
+    private TranscriptScreen mScreen;
+    private TerminalEmulator mEmulator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        createEmulator(COLUMNS, ROWS, 100);
+    }
+
+    private void createEmulator(int columns, int rows, int transcriptRows) {
+        ColorScheme scheme = new ColorScheme(0xffcccccc, 0xff000000);
+        mScreen = new TranscriptScreen(columns, transcriptRows, rows, scheme);
+        mHost = new RecordingHost();
+        mEmulator = new TerminalEmulator(mHost, mScreen, columns, rows, scheme);
+    }
+
+    private void append(String text) throws UnsupportedEncodingException {
+        byte[] bytes = text.getBytes("UTF-8");
+        mEmulator.append(bytes, 0, bytes.length);
+    }
+
+    public void testRunWrapsAtRightEdge() throws Exception {
+        append("0123456789AB");
+        assertTrue(mScreen.getTranscriptScreenText().startsWith("0123456789AB"));
+        assertEquals(1, mEmulator.getCursorRow());
+        assertEquals(2, mEmulator.getCursorCol());
+    }
+
+    public void testRunWithoutAutoWrapOverwritesLastColumn() throws Exception {
+        append("\033[?7l0123456789ABC");
+        assertTrue(mScreen.getTranscriptScreenText().startsWith("012345678C\n"));
+        assertEquals(0, mEmulator.getCursorRow());
+        assertEquals(COLUMNS - 1, mEmulator.getCursorCol());
+    }
+
+    public void testRunInInsertModeShiftsLine() throws Exception {
+        append("abcdef\r\033[4hXY");
+        assertTrue(mScreen.getTranscriptScreenText().startsWith("XYabcdef\n"));
+        assertEquals(2, mEmulator.getCursorCol());
+    }
+
+    public void testRunSplitAcrossAppends() throws Exception {
+        append("01234");
+        append("56789A");
+        assertTrue(mScreen.getTranscriptScreenText().startsWith("0123456789A"));
+        assertEquals(1, mEmulator.getCursorRow());
+        assertEquals(1, mEmulator.getCursorCol());
+    }
+
+    public void testSequenceSplitAcrossAppends() throws Exception {
+        append("\033[2");
+        append(";3H");
+        assertEquals(1, mEmulator.getCursorRow());
+        assertEquals(2, mEmulator.getCursorCol());
+    }
+
+    public void testControlCharacterInsideSequence() throws Exception {
+        // The CR is carried out without ending the cursor position sequence
+        append("abc\033[3\r;4H");
+        assertEquals(2, mEmulator.getCursorRow());
+        assertEquals(3, mEmulator.getCursorCol());
+    }
+
+    public void testOscTitle() throws Exception {
+        append("\033]2;hello\007");
+        assertEquals("hello", mHost.mTitle);
+        append("\033]0;bye\033\\");
+        assertEquals("bye", mHost.mTitle);
+    }
+
+    public void testLineBurstScrollsIntoTranscript() throws Exception {
+        append("a\r\nb\r\nc\r\nd\r\ne");
+        assertEquals("a\nb\nc\nd\ne", mScreen.getTranscriptText());
+        assertEquals(ROWS - 1, mEmulator.getCursorRow());
+        assertEquals(1, mEmulator.getCursorCol());
+    }
+
+    public void testFailureInRunIsNotRepeated() throws Exception {
+        // The second row of the run fails, with the first already on screen
+        failOnTextRow(2);
+        append("0123456789ABCDEFGHIJ\r\nok");
+        // The rest of the run is dropped, and nothing is written twice
+        assertEquals("0123456789\nok", mScreen.getTranscriptScreenText());
+    }
+
+    public void testFailureInLineBurstIsNotRepeated() throws Exception {
+        // The screen has scrolled for the whole burst when its second row
+        // of text fails
+        failOnTextRow(5);
+        append("a\r\nb\r\nc\r\nd\r\ne\r\nf\r\ng");
+        // The rest of the burst is dropped, and nothing is scrolled twice
+        assertEquals("a\nb\nc\nd\nf\ng", mScreen.getTranscriptText());
+    }
+
+    /* Have the screen fail the nth time it is given a row of text at once */
+    private void failOnTextRow(final int n) {
+        ColorScheme scheme = new ColorScheme(0xffcccccc, 0xff000000);
+        mScreen = new TranscriptScreen(COLUMNS, 100, ROWS, scheme) {
+            private int mRows;
+
+            @Override
+            public void set(int x, int y, byte[] text, int offset, int count, int style) {
+                if (++mRows == n) {
+                    throw new IllegalStateException("injected failure");
+                }
+                super.set(x, y, text, offset, count, style);
+            }
+        };
+        mEmulator = new TerminalEmulator(mHost, mScreen, COLUMNS, ROWS, scheme);
+    }
+
+    public void testLineBurstInScrollRegion() throws Exception {
+        createEmulator(COLUMNS, 5, 100);
+        append("\033[2;4r\033[5;1Hstatus\033[1;1Htop\033[4;1H");
+        append("1\r\n2\r\n3\r\n4\r\n5");
+        assertEquals("top\n3\n4\n5\nstatus", mScreen.getTranscriptScreenText());
+        assertEquals(3, mEmulator.getCursorRow());
+        assertEquals(1, mEmulator.getCursorCol());
+    }
+
+    public void testSynchronizedOutputMode() throws Exception {
+        assertFalse(mEmulator.isSynchronizedOutput());
+        append("\033[?2026h\033[Hframe");
+        assertTrue(mEmulator.isSynchronizedOutput());
+        append("\033[?2026l");
+        assertFalse(mEmulator.isSynchronizedOutput());
+        append("\033[?2026h");
+        mEmulator.reset();
+        assertFalse(mEmulator.isSynchronizedOutput());
+    }
+
+    public void testReusedRowsAreBlank() throws Exception {
+        // Room for two rows of transcript, so rows are soon reused
+        createEmulator(COLUMNS, ROWS, ROWS + 2);
+        mEmulator.setDefaultUTF8Mode(true);
+        for (int i = 0; i < 10; ++i) {
+            append("\033[31mred\033[0m e\u0301" + i + "\r\n");
+        }
+        // Scroll a region, which moves its top row into the transcript, then
+        // write to the row it blanked
+        append("\033[2;3r\033[3;1H\n\033[r\033[3;1Hx");
+        assertEquals("red e\u03017\nred e\u03019\nred e\u03018\n\nx",
+                mScreen.getTranscriptText());
+
+        int normal = TextStyle.kNormalTextStyle;
+        StyleRow row = mScreen.getLineColor(ROWS - 1);
+        for (int column = 0; column < COLUMNS; ++column) {
+            assertEquals(normal, row.get(column));
+        }
+        row = mScreen.getLineColor(-1);
+        assertEquals(TextStyle.encode(1, TextStyle.ciBackground, 0), row.get(0));
+        assertEquals(normal, row.get(3));
+    }
+
+    public void testTruecolorStylesAreInterned() throws Exception {
+        append("\033[1;38;2;255;128;0;48;2;0;0;255mA\033[0;38;5;2mB"
+                + "\033[38;2;255;128;0;48;2;0;0;255;1mC");
+        StyleTable styles = mEmulator.getStyleTable();
+        StyleRow row = mScreen.getLineColor(0);
+
+        int a = row.get(0);
+        assertTrue(TextStyle.isInterned(a));
+        assertEquals(TextStyle.rgb(255, 128, 0), styles.decodeForeColor(a));
+        assertEquals(TextStyle.rgb(0, 0, 255), styles.decodeBackColor(a));
+        assertEquals(TextStyle.fxBold, styles.decodeEffect(a));
+
+        // Palette colors are packed as before
+        int b = row.get(1);
+        assertEquals(TextStyle.encode(2, TextStyle.ciBackground, TextStyle.fxNormal), b);
+
+        // The same tuple gets the same id
+        assertEquals(a, row.get(2));
+        assertEquals(1, styles.size());
+    }
+
+    public void testStyleTableFallsBackToPaletteWhenFull() {
+        StyleTable styles = new StyleTable();
+        for (int i = 0; i < StyleTable.MAX_STYLES; i++) {
+            int style = styles.encode(TextStyle.ciRgb | i, TextStyle.ciBackground, 0);
+            assertEquals(TextStyle.ciRgb | i, styles.decodeForeColor(style));
+        }
+        int style = styles.encode(TextStyle.rgb(255, 0, 0), TextStyle.ciBackground, 0);
+        assertFalse(TextStyle.isInterned(style));
+        assertEquals(196, TextStyle.decodeForeColor(style));
+    }
+
+    public void testPackedScrollbackMatchesUnpacked() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 500; ++i) {
+            text.append("\033[3").append(i % 8).append('m').append(i)
+                    .append("\033[0m \u4e2de\u0301");
+            if (i % 7 == 0) {
+                // Long enough to wrap
+                text.append(" \033[44mwrapped\033[0m onto the next row");
+            }
+            text.append("\r\n");
+        }
+
+        String[] transcripts = new String[2];
+        GrowableIntArray[] colors = new GrowableIntArray[2];
+        for (int run = 0; run < 2; ++run) {
+            createEmulator(COLUMNS, ROWS, 400);
+            mEmulator.setDefaultUTF8Mode(true);
+            // Pack everything but the row just above the screen, or nothing
+            mScreen.setPackThreshold(run == 0 ? 1 : -1);
+            append(text.toString());
+            // Grow the screen up into the packed rows
+            mScreen.fastResize(COLUMNS, ROWS + 100, null);
+            colors[run] = new GrowableIntArray(1);
+            transcripts[run] = mScreen.getTranscriptText(colors[run]);
+        }
+        assertEquals(transcripts[1], transcripts[0]);
+        assertEquals(colors[1].length(), colors[0].length());
+        for (int i = 0; i < colors[1].length(); ++i) {
+            assertEquals(colors[1].at(i), colors[0].at(i));
+        }
+    }
+
+    public void testScrollbackFileMatchesLongTranscript() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 500; ++i) {
+            text.append("\033[3").append(i % 8).append('m').append(i)
+                    .append("\033[0m \u4e2de\u0301");
+            if (i % 7 == 0) {
+                text.append(" \033[44mwrapped\033[0m onto the next row");
+            }
+            text.append("\r\n");
+        }
+
+        File file = File.createTempFile("scrollback", null);
+        String[] transcripts = new String[2];
+        GrowableIntArray[] colors = new GrowableIntArray[2];
+        int[] activeRows = new int[2];
+        for (int run = 0; run < 2; ++run) {
+            // Keep most rows in the file, or all of them in memory
+            createEmulator(COLUMNS, ROWS, run == 0 ? 200 : 2000);
+            mEmulator.setDefaultUTF8Mode(true);
+            if (run == 0) {
+                mScreen.setPackThreshold(1);
+                mScreen.setScrollbackFile(file);
+            }
+            append(text.toString());
+            activeRows[run] = mScreen.getActiveTranscriptRows();
+            colors[run] = new GrowableIntArray(1);
+            transcripts[run] = mScreen.getSelectedText(colors[run],
+                    0, -activeRows[run], COLUMNS, ROWS - 1);
+            if (run == 0) {
+                mScreen.finish();
+                assertFalse(file.exists());
+            }
+        }
+        assertEquals(activeRows[1], activeRows[0]);
+        assertEquals(transcripts[1], transcripts[0]);
+        assertEquals(colors[1].length(), colors[0].length());
+        for (int i = 0; i < colors[1].length(); ++i) {
+            assertEquals(colors[1].at(i), colors[0].at(i));
+        }
+    }
+
+    public void testScrollbackFileSurvivesResize() throws Exception {
+        File file = File.createTempFile("scrollback", null);
+        createEmulator(COLUMNS, ROWS, 20);
+        mEmulator.setDefaultUTF8Mode(true);
+        mScreen.setScrollbackFile(file);
+        append("abcdefg\u4e2d\r\n");
+        for (int i = 0; i < 50; ++i) {
+            append(i + "\r\n");
+        }
+        int rows = mScreen.getActiveTranscriptRows();
+        assertTrue(rows > 20);
+        int first = -rows;
+
+        // Narrower: the oldest row is clipped, wide character and all
+        mEmulator.updateSize(8, ROWS);
+        assertEquals(-first, mScreen.getActiveTranscriptRows());
+        assertEquals("abcdefg", mScreen.getSelectedText(0, first, 7, first));
+        assertEquals("0", mScreen.getSelectedText(0, first + 1, 7, first + 1));
+
+        // Wider: padded with blanks
+        mEmulator.updateSize(14, ROWS);
+        assertEquals(-first, mScreen.getActiveTranscriptRows());
+        assertEquals("abcdefg\u4e2d", mScreen.getSelectedText(0, first, 13, first));
+        assertEquals("0", mScreen.getSelectedText(0, first + 1, 13, first + 1));
+        mScreen.finish();
+    }
+
+    public void testAltScreen() throws Exception {
+        createEmulator(COLUMNS, ROWS, 1000);
+        for (int i = 0; i < 200; ++i) {
+            append(i + "\r\n");
+        }
+        append("main");
+        assertEquals(200 - ROWS + 1, mScreen.getActiveTranscriptRows());
+
+        // The alternate screen starts out blank, and leaves the main one be
+        append("\033[?1047h");
+        assertFalse(mEmulator.getScreen() == mScreen);
+        assertEquals("", mEmulator.getScreen().getTranscriptScreenText().trim());
+        append("alt\r\n\r\n\r\n\r\n");
+        assertEquals(0, mEmulator.getScreen().getActiveTranscriptRows());
+        append("\033[?1047l");
+        assertTrue(mEmulator.getScreen() == mScreen);
+        assertEquals("198\n199\nmain", mScreen.getTranscriptScreenText());
+        assertEquals(200 - ROWS + 1, mScreen.getActiveTranscriptRows());
+
+        // A scroll region on the alternate screen leaves the lines below it be
+        createEmulator(COLUMNS, 5, 1000);
+        append("\033[?1047h\033[5;1HSTATUS\033[1;4r\033[1;1Ha\r\nb\r\nc\r\nd\r\ne\r\nf");
+        assertEquals("c\nd\ne\nf\nSTATUS", mEmulator.getScreen().getTranscriptScreenText());
+    }
+
+    public void testUTF8TruncatedSequence() throws Exception {
+        // The byte which cuts a sequence short is decoded on its own
+        assertEquals("\ufffda", decodeUTF8(0xe4, 0xb8, 'a'));
+        // A sequence split between appends is not cut short
+        decodeUTF8(0xe4, 0xb8);
+        assertEquals("\ufffda\u4e2d", decodeUTF8(0xad));
+    }
+
+    public void testUTF8SequenceInterruptedByEscape() throws Exception {
+        assertEquals("\ufffd  x", decodeUTF8(0xe4, 0x1b, '[', '2', 'C', 'x'));
+    }
+
+    public void testUTF8StrayContinuationBytes() throws Exception {
+        assertEquals("\ufffda\ufffd", decodeUTF8(0x80, 'a', 0xbf));
+    }
+
+    public void testUTF8OverlongForms() throws Exception {
+        assertEquals("\ufffd\ufffd\ufffd",
+                decodeUTF8(0xc0, 0xaf, 0xe0, 0x80, 0xaf, 0xf0, 0x80, 0x80, 0xaf));
+    }
+
+    public void testUTF8Surrogates() throws Exception {
+        assertEquals("\ufffd\ufffd", decodeUTF8(0xed, 0xa0, 0x80, 0xed, 0xbf, 0xbf));
+    }
+
+    public void testUTF8AboveMaxCodePoint() throws Exception {
+        assertEquals("\ufffd\ufffd",
+                decodeUTF8(0xf4, 0x90, 0x80, 0x80, 0xf7, 0xbf, 0xbf, 0xbf));
+        assertEquals("\ufffd\ufffd\udbff\udfff", decodeUTF8(0xf4, 0x8f, 0xbf, 0xbf));
+    }
+
+    public void testUTF8C1Controls() throws Exception {
+        // C1 controls go through process() instead of onto the screen
+        assertEquals("a\u00adbcd",
+                decodeUTF8('a', 0xc2, 0xad, 'b', 0xc2, 0x97, 'c', 0xc2, 0x8a, 'd'));
+        // U+0085 is NEL
+        assertEquals("a\u00adbcd\ne\nf", decodeUTF8(0xc2, 0x85, 'e', 0xc2, 0x85, 'f'));
+    }
+
+    /* Append bytes in UTF-8 mode, and return the text on the screen */
+    private String decodeUTF8(int... bytes) {
+        mEmulator.setDefaultUTF8Mode(true);
+        byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; ++i) {
+            data[i] = (byte) bytes[i];
+        }
+        mEmulator.append(data, 0, data.length);
+        String text = mScreen.getTranscriptScreenText();
+        int end = text.length();
+        while (end > 0 && text.charAt(end - 1) == '\n') {
+            --end;
+        }
+        return text.substring(0, end);
+    }
+
+    /* Remembers the title, and ignores everything else */
+    private static class RecordingHost implements TerminalHost {
+        String mTitle;
+
+        public void write(byte[] data, int offset, int count) {
+        }
+
+        public void setTitle(String title) {
+            mTitle = title;
+        }
+
+        public void postControlEvent(int event) {
+        }
+
+        public void setCursorKeysApplicationMode(boolean enabled) {
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package jackpal.androidterm.emulatorview;
+
+import android.util.Log;
+
+import jackpal.androidterm.emulatorview.compat.AndroidCharacterCompat;
+import jackpal.androidterm.emulatorview.compat.AndroidCompat;
+
+/**
+ * The {@link EmulatorPlatform} for Android: logs to the Android log, and
+ * knows which versions of Android draw what.  Installed by {@link TermSession}.
+ */
+class AndroidEmulatorPlatform extends EmulatorPlatform {
+    /**
+     * Minimum API version for which we're willing to let Android try
+     * rendering conjoining Hangul jamo as composed syllable blocks.
+     *
+     * This appears to work on Android 4.1.2, 4.3, and 4.4 (real devices only;
+     * the emulator's broken for some reason), but not on 4.0.4 -- hence the
+     * choice of API 16 as the minimum.
+     */
+    static final int HANGUL_CONJOINING_MIN_SDK = 16;
+
+    @Override
+    public void log(int priority, String tag, String message) {
+        Log.println(priority, tag, message);
+    }
+
+    @Override
+    public boolean composesHangulJamo() {
+        return AndroidCompat.SDK >= HANGUL_CONJOINING_MIN_SDK;
+    }
+
+    @Override
+    public boolean isEastAsianWide(char c) {
+        switch (AndroidCharacterCompat.getEastAsianWidth(c)) {
+        case AndroidCharacterCompat.EAST_ASIAN_WIDTH_FULL_WIDTH:
+        case AndroidCharacterCompat.EAST_ASIAN_WIDTH_WIDE:
+            return true;
+        }
+        return false;
+    }
+}
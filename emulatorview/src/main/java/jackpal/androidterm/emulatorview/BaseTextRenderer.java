@@ -30,6 +30,9 @@ abstract class BaseTextRenderer implements TextRenderer {
 
     protected int[] mPalette;
 
+    /* Resolves the interned styles, and so the RGB colors, of the session */
+    protected StyleTable mStyles;
+
     protected static final int[] sXterm256Paint = {
             // 16 original colors
             // First 8 are dim
@@ -376,6 +379,42 @@ public void setReverseVideo(boolean reverseVideo) {
         mReverseVideo = reverseVideo;
     }
 
+    public void setStyleTable(StyleTable styles) {
+        mStyles = styles;
+    }
+
+    protected int decodeForeColor(int textStyle) {
+        if (mStyles == null) {
+            return TextStyle.decodeForeColor(textStyle);
+        }
+        return mStyles.decodeForeColor(textStyle);
+    }
+
+    protected int decodeBackColor(int textStyle) {
+        if (mStyles == null) {
+            return TextStyle.decodeBackColor(textStyle);
+        }
+        return mStyles.decodeBackColor(textStyle);
+    }
+
+    protected int decodeEffect(int textStyle) {
+        if (mStyles == null) {
+            return TextStyle.decodeEffect(textStyle);
+        }
+        return mStyles.decodeEffect(textStyle);
+    }
+
+    /**
+     * @param color A palette index, or an RGB color from an interned style.
+     * @return The color as ARGB.
+     */
+    protected int getColor(int color) {
+        if (TextStyle.isRgb(color)) {
+            return 0xff000000 | color;
+        }
+        return mPalette[color];
+    }
+
     private void setDefaultColors(ColorScheme scheme) {
         mPalette = cloneDefaultColors();
         mPalette[TextStyle.ciForeground] = scheme.getForeColor();
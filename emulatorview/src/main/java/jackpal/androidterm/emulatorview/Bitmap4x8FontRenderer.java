@@ -73,9 +73,9 @@ public void drawTextRun(Canvas canvas, float x, float y,
             int lineOffset, int runWidth, char[] text, int index, int count,
             boolean selectionStyle, int textStyle,
             int cursorOffset, int cursorIndex, int cursorIncr, int cursorWidth, int cursorMode) {
-        int foreColor = TextStyle.decodeForeColor(textStyle);
-        int backColor = TextStyle.decodeBackColor(textStyle);
-        int effect = TextStyle.decodeEffect(textStyle);
+        int foreColor = decodeForeColor(textStyle);
+        int backColor = decodeBackColor(textStyle);
+        int effect = decodeEffect(textStyle);
 
         boolean inverse = mReverseVideo ^
                 ((effect & (TextStyle.fxInverse | TextStyle.fxItalic)) != 0);
@@ -117,14 +117,14 @@ public void drawTextRun(Canvas canvas, float x, float y,
 
     private void drawTextRunHelper(Canvas canvas, float x, float y, int lineOffset, char[] text,
             int index, int count, int foreColor, int backColor) {
-        setColorMatrix(mPalette[foreColor], mPalette[backColor]);
+        setColorMatrix(getColor(foreColor), getColor(backColor));
         int destX = (int) x + kCharacterWidth * lineOffset;
         int destY = (int) y;
         Rect srcRect = new Rect();
         Rect destRect = new Rect();
         destRect.top = (destY - kCharacterHeight);
         destRect.bottom = destY;
-        boolean drawSpaces = mPalette[backColor] != mPalette[TextStyle.ciBackground];
+        boolean drawSpaces = getColor(backColor) != getColor(TextStyle.ciBackground);
         for (int i = 0; i < count; i++) {
             // XXX No Unicode support in bitmap font
             char c = text[i + index];
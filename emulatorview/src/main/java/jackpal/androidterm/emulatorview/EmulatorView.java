@@ -23,6 +23,7 @@
 import jackpal.androidterm.emulatorview.compat.Patterns;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 import java.util.Hashtable;
 
@@ -132,6 +133,9 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
 
     private boolean mUseCookedIme;
 
+    private boolean mMetricsOverlay;
+    private Paint mMetricsPaint;
+
     /**
      * Our terminal emulator.
      */
@@ -492,19 +496,30 @@ public void run() {
      */
     private UpdateCallback mUpdateNotify = new UpdateCallback() {
         public void onUpdate() {
-            doEscCtrl();
-            if ( mIsSelectingText ) {
-                int rowShift = mEmulator.getScrollCounter();
-                mSelY1 -= rowShift;
-                mSelY2 -= rowShift;
-                mSelYAnchor -= rowShift;
+            synchronized (mTermSession.getEmulatorLock()) {
+                if ( mIsSelectingText ) {
+                    int rowShift = mEmulator.getScrollCounter();
+                    mSelY1 -= rowShift;
+                    mSelY2 -= rowShift;
+                    mSelYAnchor -= rowShift;
+                }
+                mEmulator.clearScrollCounter();
+                ensureCursorVisible();
             }
-            mEmulator.clearScrollCounter();
-            ensureCursorVisible();
             invalidate();
         }
     };
 
+    /**
+     * Called by the TermSession with the control codes its emulator has seen
+     */
+    private TermSession.ControlEventListener mControlEventListener =
+            new TermSession.ControlEventListener() {
+        public void onControlEvents(int[] events, int count) {
+            doEscCtrl(events, count);
+        }
+    };
+
     /**
      * Create an <code>EmulatorView</code> for a {@link TermSession}.
      *
@@ -1031,7 +1046,9 @@ public void setExtGestureListener(GestureDetector.OnGestureListener listener) {
      */
     @Override
     protected int computeVerticalScrollRange() {
-        return mEmulator.getScreen().getActiveRows();
+        synchronized (mTermSession.getEmulatorLock()) {
+            return mEmulator.getScreen().getActiveRows();
+        }
     }
 
     /**
@@ -1051,7 +1068,9 @@ protected int computeVerticalScrollExtent() {
      */
     @Override
     protected int computeVerticalScrollOffset() {
-        return mEmulator.getScreen().getActiveRows() + mTopRow - mRows;
+        synchronized (mTermSession.getEmulatorLock()) {
+            return mEmulator.getScreen().getActiveRows() + mTopRow - mRows;
+        }
     }
 
     /**
@@ -1065,6 +1084,7 @@ private void initialize() {
         mEmulator = session.getEmulator();
         setHwAcceleration(mHardwareAcceleration);
         session.setUpdateCallback(mUpdateNotify);
+        session.setControlEventListener(mControlEventListener);
 
         mIMECtrlBeginBatchEditDisable = getDevBoolean(this.getContext(), "BatchEditDisable", true);
         mIMECtrlBeginBatchEditDisableHwKbdChk = getDevBoolean(this.getContext(), "BatchEditDisableHwKbdChk", false);
@@ -1147,9 +1167,11 @@ public int getVisibleColumns()
      *        negative means scroll up.
      */
     public void page(int delta) {
-        mTopRow =
-                Math.min(0, Math.max(-(mEmulator.getScreen()
-                        .getActiveTranscriptRows()), mTopRow + mRows * delta));
+        synchronized (mTermSession.getEmulatorLock()) {
+            mTopRow =
+                    Math.min(0, Math.max(-(mEmulator.getScreen()
+                            .getActiveTranscriptRows()), mTopRow + mRows * delta));
+        }
         invalidate();
     }
 
@@ -1270,9 +1292,11 @@ public boolean onScroll(MotionEvent e1, MotionEvent e2,
             return true;
         }
 
-        mTopRow =
-            Math.min(0, Math.max(-(mEmulator.getScreen()
-                    .getActiveTranscriptRows()), mTopRow + deltaRows));
+        synchronized (mTermSession.getEmulatorLock()) {
+            mTopRow =
+                Math.min(0, Math.max(-(mEmulator.getScreen()
+                        .getActiveTranscriptRows()), mTopRow + deltaRows));
+        }
         invalidate();
 
         return true;
@@ -1290,7 +1314,9 @@ public boolean onJumpTapDown(MotionEvent e1, MotionEvent e2) {
 
     public boolean onJumpTapUp(MotionEvent e1, MotionEvent e2) {
         // Scroll to top
-        mTopRow = -mEmulator.getScreen().getActiveTranscriptRows();
+        synchronized (mTermSession.getEmulatorLock()) {
+            mTopRow = -mEmulator.getScreen().getActiveTranscriptRows();
+        }
         invalidate();
         return true;
     }
@@ -1306,10 +1332,14 @@ public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX,
             mMouseTrackingFlingRunner.fling(e1, velocityX, velocityY);
         } else {
             float SCALE = 0.25f;
+            int transcriptRows;
+            synchronized (mTermSession.getEmulatorLock()) {
+                transcriptRows = mEmulator.getScreen().getActiveTranscriptRows();
+            }
             mScroller.fling(0, mTopRow,
                     -(int) (velocityX * SCALE), -(int) (velocityY * SCALE),
                     0, 0,
-                    -mEmulator.getScreen().getActiveTranscriptRows(), 0);
+                    -transcriptRows, 0);
             // onScroll(e1, e2, 0.1f * velocityX, -0.1f * velocityY);
             post(mFlingRunner);
         }
@@ -1511,7 +1541,10 @@ private void pasteClipboard() {
             return;
         }
         CharSequence paste = clip.getText();
-        mTermSession.write(paste.toString());
+        try {
+            mTermSession.writeStreamed(paste.toString().getBytes("UTF-8"), null);
+        } catch (UnsupportedEncodingException e) {
+        }
     }
 
     public void setIMECtrlBeginBatchEditDisable(boolean mode) {
@@ -1529,10 +1562,9 @@ private boolean IMECtrlBeginBatchEditDisable() {
     }
 
     @SuppressLint("NewApi")
-    private void doEscCtrl() {
-        while (true) {
-            int ctrl = mEmulator.getEscCtrlMode();
-            if (ctrl == -1) return;
+    private void doEscCtrl(int[] events, int count) {
+        for (int i = 0; i < count; i++) {
+            int ctrl = events[i];
             if ((mHaveFullHwKeyboard == false) && (ctrl <= 2)) {
                 continue;
             }
@@ -1730,11 +1762,8 @@ private int setIME(TerminalEmulator view) {
             ime = 4;
         }
         if (mIme != ime) {
-            TranscriptScreen transcriptScreen = view.getScreen();
-            if (transcriptScreen != null) {
-                transcriptScreen.setIME(ime);
-                mIme = ime;
-            }
+            TranscriptPainter.setIME(ime);
+            mIme = ime;
         }
         return ime;
     }
@@ -2074,11 +2103,60 @@ protected void onDraw(Canvas canvas) {
             return;
         }
 
+        SessionMetrics metrics = mTermSession.getMetrics();
+        long start = metrics != null ? System.nanoTime() : 0;
+
+        // Keep the emulation thread, if any, from changing the screen under us
+        synchronized (mTermSession.getEmulatorLock()) {
+            drawScreen(canvas);
+        }
+
+        if (metrics != null) {
+            metrics.onDraw(System.nanoTime() - start);
+            if (mMetricsOverlay) {
+                drawMetrics(canvas, metrics);
+            }
+        }
+    }
+
+    /* Draw the session's metrics report over the top of the screen */
+    private void drawMetrics(Canvas canvas, SessionMetrics metrics) {
+        Paint paint = mMetricsPaint;
+        if (paint == null) {
+            paint = new Paint();
+            paint.setAntiAlias(true);
+            paint.setTextSize(mCharacterHeight > 0 ? mCharacterHeight * 0.8f : 12);
+            mMetricsPaint = paint;
+        }
+        float lineHeight = -paint.ascent() + paint.descent();
+        float y = -paint.ascent();
+        for (String line : metrics.getReport().split("\n")) {
+            paint.setColor(0xC0000000);
+            canvas.drawRect(0, y + paint.ascent(), paint.measureText(line), y + paint.descent(), paint);
+            paint.setColor(0xFFFFFF00);
+            canvas.drawText(line, 0, y, paint);
+            y += lineHeight;
+        }
+    }
+
+    /**
+     * Set whether to draw the attached session's metrics over the screen.
+     * Has no effect unless metrics are enabled on the session.
+     *
+     * @see TermSession#setMetricsEnabled
+     */
+    public void setMetricsOverlay(boolean enabled) {
+        mMetricsOverlay = enabled;
+        invalidate();
+    }
+
+    private void drawScreen(Canvas canvas) {
         int w = getWidth();
         int h = getHeight();
 
         boolean reverseVideo = mEmulator.getReverseVideo();
         mTextRenderer.setReverseVideo(reverseVideo);
+        mTextRenderer.setStyleTable(mEmulator.getStyleTable());
 
         Paint backgroundPaint =
                 reverseVideo ? mForegroundPaint : mBackgroundPaint;
@@ -2115,7 +2193,7 @@ protected void onDraw(Canvas canvas) {
                     selx2 = mColumns;
                 }
             }
-            mEmulator.getScreen().drawText(i, canvas, x, y, mTextRenderer, cursorX, selx1, selx2, effectiveImeBuffer, cursorStyle, mImeSpannableString);
+            TranscriptPainter.drawText(mEmulator.getScreen(), i, canvas, x, y, mTextRenderer, cursorX, selx1, selx2, effectiveImeBuffer, cursorStyle, mImeSpannableString);
             y += mCharacterHeight;
             //if no lines to skip, create links for the line being drawn
             if(linkLinesToSkip == 0)
@@ -2166,7 +2244,9 @@ public boolean getSelectingText() {
      * @return A {@link String} with the selected text.
      */
     public String getSelectedText() {
-        return mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2);
+        synchronized (mTermSession.getEmulatorLock()) {
+            return mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2);
+        }
     }
 
     /**
@@ -2276,8 +2356,10 @@ public String getURLat(float x, float y)
 
      public String getTranscriptScreenText() {
          if (mEmulator == null) return null;
-         TranscriptScreen ts = mEmulator.getScreen();
-         if (ts == null) return null;
-         return ts.getTranscriptScreenText();
+         synchronized (mTermSession.getEmulatorLock()) {
+             TranscriptScreen ts = mEmulator.getScreen();
+             if (ts == null) return null;
+             return ts.getTranscriptScreenText();
+         }
     }
 }
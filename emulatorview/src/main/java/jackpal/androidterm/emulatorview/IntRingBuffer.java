@@ -0,0 +1,70 @@
+package jackpal.androidterm.emulatorview;
+
+/**
+ * A bounded first-in, first-out queue of ints, which never allocates once
+ * created.  Any number of threads may offer and drain; every call takes the
+ * queue's monitor, which is fine for the low rates it is meant for.
+ */
+final class IntRingBuffer {
+    private final int[] mBuffer;
+    private int mHead;
+    private int mCount;
+
+    public IntRingBuffer(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size: " + size);
+        }
+        mBuffer = new int[size];
+    }
+
+    public int getCapacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * Add a value to the end of the queue.
+     *
+     * @return false, without adding the value, if the queue is full.
+     */
+    public synchronized boolean offer(int value) {
+        if (mCount == mBuffer.length) {
+            return false;
+        }
+        int tail = mHead + mCount;
+        if (tail >= mBuffer.length) {
+            tail -= mBuffer.length;
+        }
+        mBuffer[tail] = value;
+        mCount++;
+        return true;
+    }
+
+    /**
+     * Remove values from the front of the queue, oldest first.
+     *
+     * @param dst The array to copy the values to, from its start.
+     * @return The number of values removed: as many as there were, up to
+     *         the length of dst.
+     */
+    public synchronized int drainTo(int[] dst) {
+        int count = Math.min(mCount, dst.length);
+        int firstPart = Math.min(count, mBuffer.length - mHead);
+        System.arraycopy(mBuffer, mHead, dst, 0, firstPart);
+        System.arraycopy(mBuffer, 0, dst, firstPart, count - firstPart);
+        mHead += count;
+        if (mHead >= mBuffer.length) {
+            mHead -= mBuffer.length;
+        }
+        mCount -= count;
+        return count;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    public synchronized void clear() {
+        mHead = 0;
+        mCount = 0;
+    }
+}
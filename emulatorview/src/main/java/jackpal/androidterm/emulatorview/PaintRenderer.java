@@ -60,9 +60,9 @@ public void drawTextRun(Canvas canvas, float x, float y, int lineOffset,
             int runWidth, char[] text, int index, int count,
             boolean selectionStyle, int textStyle,
             int cursorOffset, int cursorIndex, int cursorIncr, int cursorWidth, int cursorMode) {
-        int foreColor = TextStyle.decodeForeColor(textStyle);
-        int backColor = TextStyle.decodeBackColor(textStyle);
-        int effect = TextStyle.decodeEffect(textStyle);
+        int foreColor = decodeForeColor(textStyle);
+        int backColor = decodeBackColor(textStyle);
+        int effect = decodeEffect(textStyle);
 
         boolean inverse =  mReverseVideo ^
                 (effect & (TextStyle.fxInverse | TextStyle.fxItalic)) != 0;
@@ -80,11 +80,11 @@ public void drawTextRun(Canvas canvas, float x, float y, int lineOffset,
         if (blink && backColor < 8) {
             backColor += 8;
         }
-        mTextPaint.setColor(mPalette[backColor]);
+        mTextPaint.setColor(getColor(backColor));
         if ((effect & TextStyle.fxIme) != 0) {
             mTextPaint.setColor(mImePaint.bgColor);
         } else if ((effect & TextStyle.fxImeBackground) != 0) {
-            mTextPaint.setColor(mPalette[foreColor]);
+            mTextPaint.setColor(getColor(foreColor));
         }
 
         float left = x + lineOffset * mCharWidth;
@@ -113,9 +113,9 @@ public void drawTextRun(Canvas canvas, float x, float y, int lineOffset,
             int textPaintColor;
             if (foreColor < 8 && bold) {
                 // In 16-color mode, bold also implies bright foreground colors
-                textPaintColor = mPalette[foreColor+8];
+                textPaintColor = getColor(foreColor+8);
             } else {
-                textPaintColor = mPalette[foreColor];
+                textPaintColor = getColor(foreColor);
             }
             mTextPaint.setColor(textPaintColor);
             if ((effect & TextStyle.fxIme) != 0) {
@@ -132,7 +132,7 @@ public void drawTextRun(Canvas canvas, float x, float y, int lineOffset,
                     canvas.drawText(text, index, countBeforeCursor, left, textOriginY, mTextPaint);
                 }
                 // Text at cursor
-                mTextPaint.setColor(mPalette[TextStyle.ciCursorForeground]);
+                mTextPaint.setColor(getColor(TextStyle.ciCursorForeground));
                 canvas.drawText(text, cursorIndex, cursorIncr, cursorX,
                         textOriginY, mTextPaint);
                 // Text after cursor
@@ -0,0 +1,210 @@
+package jackpal.androidterm.emulatorview;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and timing histograms describing a {@link TermSession}'s I/O,
+ * parsing and drawing, for finding out why a session is slow.
+ * <p>
+ * Each value is only ever updated by a single thread (the reader, the
+ * emulation or main thread, the writer), so updates are plain stores to
+ * volatile fields, or to the elements of an {@link AtomicLongArray}.  A
+ * report taken while the session is busy may mix values from slightly
+ * different moments, but never shows torn or lost counts.
+ *
+ * @see TermSession#setMetricsEnabled
+ */
+public final class SessionMetrics {
+    /**
+     * A histogram of durations, in power-of-two buckets of microseconds.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 24;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private volatile long mCount;
+        private volatile long mTotalNanos;
+        private volatile long mMaxNanos;
+
+        void record(long nanos) {
+            long micros = nanos / 1000;
+            int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+            if (bucket >= BUCKETS) {
+                bucket = BUCKETS - 1;
+            }
+            mBuckets.set(bucket, mBuckets.get(bucket) + 1);
+            mTotalNanos += nanos;
+            if (nanos > mMaxNanos) {
+                mMaxNanos = nanos;
+            }
+            mCount++;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getTotalNanos() {
+            return mTotalNanos;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        /**
+         * @return An upper bound, in microseconds, on the given fraction
+         *         (between 0 and 1) of recorded durations.
+         */
+        public long getPercentileMicros(double fraction) {
+            long count = mCount;
+            if (count == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += mBuckets.get(i);
+                if (seen >= target) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (BUCKETS - 1);
+        }
+
+        private String describe() {
+            long count = mCount;
+            return String.format(Locale.US, "n=%d avg=%dus p50<=%dus p99<=%dus max=%dus",
+                    count, count == 0 ? 0 : mTotalNanos / count / 1000,
+                    getPercentileMicros(0.5), getPercentileMicros(0.99),
+                    mMaxNanos / 1000);
+        }
+    }
+
+    private volatile long mBytesRead;
+    private volatile long mReads;
+    private volatile long mInputStalls;
+    private volatile int mMaxInputBacklog;
+
+    private volatile long mBytesProcessed;
+    private final Histogram mParseTimes = new Histogram();
+    private volatile long mUpdates;
+
+    private volatile long mBytesWritten;
+    private volatile long mOutputStalls;
+
+    private final Histogram mDrawTimes = new Histogram();
+
+    SessionMetrics() {
+    }
+
+    /* Reader (or I/O engine) thread */
+
+    void onInputRead(int bytes, int backlog) {
+        mBytesRead += bytes;
+        mReads++;
+        if (backlog > mMaxInputBacklog) {
+            mMaxInputBacklog = backlog;
+        }
+    }
+
+    void onInputStall() {
+        mInputStalls++;
+    }
+
+    /* Thread processing input */
+
+    void onInputProcessed(int bytes, long nanos) {
+        mBytesProcessed += bytes;
+        mParseTimes.record(nanos);
+    }
+
+    /* Main thread */
+
+    void onUpdate() {
+        mUpdates++;
+    }
+
+    void onDraw(long nanos) {
+        mDrawTimes.record(nanos);
+    }
+
+    /* Writer (or I/O engine) thread */
+
+    void onOutputWritten(int bytes) {
+        mBytesWritten += bytes;
+    }
+
+    /* Any producer, holding the write queue lock */
+
+    void onOutputStall() {
+        mOutputStalls++;
+    }
+
+    /** @return Bytes read from the session's input stream. */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /** @return Read calls which returned data. */
+    public long getReads() {
+        return mReads;
+    }
+
+    /** @return Times the reader found the input queue full. */
+    public long getInputStalls() {
+        return mInputStalls;
+    }
+
+    /** @return The most input ever waiting to be processed, in bytes. */
+    public int getMaxInputBacklog() {
+        return mMaxInputBacklog;
+    }
+
+    /** @return Bytes fed to the terminal emulator. */
+    public long getBytesProcessed() {
+        return mBytesProcessed;
+    }
+
+    /** @return Time spent feeding each chunk of input to the emulator. */
+    public Histogram getParseTimes() {
+        return mParseTimes;
+    }
+
+    /** @return Screen updates sent to the view. */
+    public long getUpdates() {
+        return mUpdates;
+    }
+
+    /** @return Bytes written to the session's output stream. */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /** @return Writes which found the output queue full. */
+    public long getOutputStalls() {
+        return mOutputStalls;
+    }
+
+    /** @return Time spent drawing the session's screen. */
+    public Histogram getDrawTimes() {
+        return mDrawTimes;
+    }
+
+    /**
+     * @return A multi-line, human-readable report of all the metrics.
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "input: %d bytes in %d reads, %d stalls, max backlog %d\n",
+                mBytesRead, mReads, mInputStalls, mMaxInputBacklog));
+        report.append(String.format(Locale.US, "parse: %d bytes, %s\n",
+                mBytesProcessed, mParseTimes.describe()));
+        report.append(String.format(Locale.US, "output: %d bytes, %d stalls\n",
+                mBytesWritten, mOutputStalls));
+        report.append(String.format(Locale.US, "draw: %d updates, %s\n",
+                mUpdates, mDrawTimes.describe()));
+        return report.toString();
+    }
+}
@@ -16,6 +16,7 @@
 
 package jackpal.androidterm.emulatorview;
 
+import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -25,10 +26,15 @@
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
 
 /**
  * A terminal session, consisting of a VT100 terminal emulator and its
@@ -42,6 +48,13 @@
  * processing of input and output in {@link #processInput processInput} and
  * {@link #write(byte[], int, int) write}, will be performed on the main thread.
  * <p>
+ * Optionally, {@link #setEmulationThreadEnabled} moves the terminal emulation
+ * onto a thread of its own, so that a flood of output from the emulation
+ * client doesn't compete with input handling and drawing on the main thread.
+ * Similarly, {@link #setIoEngine} hands the stream I/O to an {@link IoEngine}
+ * shared by many sessions, instead of the session's own reader and writer
+ * threads.
+ * <p>
  * Call {@link #setTermIn} and {@link #setTermOut} to connect the input and
  * output streams to the emulator.  When all of your initialization is
  * complete, your initial screen size is known, and you're ready to
@@ -56,6 +69,12 @@
  * and closes the attached I/O streams.
  */
 public class TermSession {
+    private static final String TAG = "TermSession";
+
+    static {
+        EmulatorPlatform.set(new AndroidEmulatorPlatform());
+    }
+
     public void setKeyListener(TermKeyListener l) {
         mKeyListener = l;
     }
@@ -73,16 +92,79 @@ public void setKeyListener(TermKeyListener l) {
 
     private TranscriptScreen mTranscriptScreen;
     private TerminalEmulator mEmulator;
+    /* Where rows which scroll out of the transcript are kept, or null */
+    private File mScrollbackDirectory;
 
     private boolean mDefaultUTF8Mode;
 
     private Thread mReaderThread;
-    private ByteQueue mByteQueue;
-    private byte[] mReceiveBuffer;
+    private ByteRingBuffer mByteQueue;
+    /* Set while a NEW_INPUT message is pending, so that at most one is */
+    private final AtomicBoolean mInputScheduled = new AtomicBoolean();
+    private long mInputDrainBudget = DEFAULT_INPUT_DRAIN_BUDGET;
+
+    private boolean mEmulationThreadEnabled;
+    private Thread mEmulationThread;
+    /* Held while the emulator state is being changed or drawn */
+    private final Object mEmulatorLock = new Object();
+    /* Set while an UPDATE message is pending, so that at most one is */
+    private final AtomicBoolean mUpdateScheduled = new AtomicBoolean();
+
+    /* Written by whichever thread processes input */
+    private volatile boolean mFloodMode;
+    private long mFloodWindowStart;
+    private long mFloodWindowBytes;
+    /* Only touched on the main thread */
+    private long mLastUpdateTime;
+    private boolean mFrameScheduled;
+    /* When a synchronized update stops holding back the screen, or 0 */
+    private long mSynchronizedOutputDeadline;
 
     private Thread mWriterThread;
-    private ByteQueue mWriteQueue;
-    private Handler mWriterHandler;
+    private ByteRingBuffer mWriteQueue;
+
+    /* Output the write queue couldn't take yet; guarded by mWriteQueue */
+    private final LinkedList<PendingWrite> mPendingWrites = new LinkedList<PendingWrite>();
+    /* Streamed writes not yet handed to write() in full; guarded by mWriteQueue */
+    private final LinkedList<PendingWrite> mStreamedWrites = new LinkedList<PendingWrite>();
+    private volatile boolean mHasPendingWrites;
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+    private final boolean mExitOnEOF;
+    private IoEngine mIoEngine;
+    /* Set when the IoEngine found the input queue full and stopped reading */
+    private final AtomicBoolean mInputStalled = new AtomicBoolean();
+
+    /* Null unless metrics are enabled */
+    private volatile SessionMetrics mMetrics;
+
+    /* Control events raised by the emulator, waiting for the main thread */
+    private final IntRingBuffer mControlEvents = new IntRingBuffer(CONTROL_EVENT_QUEUE_SIZE);
+    private final int[] mControlEventBatch = new int[CONTROL_EVENT_QUEUE_SIZE];
+    private final AtomicBoolean mControlEventsScheduled = new AtomicBoolean();
+    private ControlEventListener mControlEventListener;
+
+    /* The emulator's view of this session */
+    private final TerminalHost mEmulatorHost = new TerminalHost() {
+        public void write(byte[] data, int offset, int count) {
+            TermSession.this.write(data, offset, count);
+        }
+
+        public void setTitle(String title) {
+            TermSession.this.setTitle(title);
+        }
+
+        public void postControlEvent(int event) {
+            TermSession.this.postControlEvent(event);
+        }
+
+        public void setCursorKeysApplicationMode(boolean enabled) {
+            TermKeyListener keyListener = mKeyListener;
+            if (keyListener != null) {
+                keyListener.setCursorKeysApplicationMode(enabled);
+            }
+        }
+    };
 
     private CharBuffer mWriteCharBuffer;
     private ByteBuffer mWriteByteBuffer;
@@ -91,10 +173,43 @@ public void setKeyListener(TermKeyListener l) {
     // Number of rows in the transcript
     private static final int TRANSCRIPT_ROWS = 10000;
 
+    // Size of the input queue, and bounds on how much the reader asks for at once
+    private static final int INPUT_QUEUE_SIZE = 64 * 1024;
+    private static final int MIN_READ_SIZE = 4 * 1024;
+    private static final int MAX_READ_SIZE = 32 * 1024;
+    private static final int OUTPUT_QUEUE_SIZE = 16 * 1024;
+    private static final int CONTROL_EVENT_QUEUE_SIZE = 64;
+
     private static final int NEW_INPUT = 1;
-    private static final int NEW_OUTPUT = 2;
-    private static final int FINISH = 3;
     private static final int EOF = 4;
+    private static final int UPDATE = 5;
+    private static final int DRAIN_OUTPUT = 6;
+    private static final int FRAME = 7;
+    private static final int CONTROL_EVENTS = 8;
+
+    /* Milliseconds of input processing per NEW_INPUT message */
+    private static final long DEFAULT_INPUT_DRAIN_BUDGET = 10;
+
+    /*
+     * Most bytes the emulation thread parses per hold of the emulator lock,
+     * so that onDraw never waits on more than a slice's worth of parsing.
+     */
+    private static final int EMULATION_SLICE_SIZE = 4 * 1024;
+
+    /*
+     * Flood mode: while input arrives faster than FLOOD_BYTES_PER_SECOND
+     * (measured over FLOOD_WINDOW milliseconds), or backs up to half the input
+     * queue, the screen is only updated every FLOOD_FRAME_INTERVAL milliseconds.
+     */
+    private static final long FLOOD_BYTES_PER_SECOND = 256 * 1024;
+    private static final long FLOOD_WINDOW = 100;
+    private static final long FLOOD_FRAME_INTERVAL = 100;
+
+    /*
+     * The longest a client can hold back the screen with synchronized output
+     * mode (DECSET 2026), in case it never ends the update.
+     */
+    private static final long SYNCHRONIZED_OUTPUT_TIMEOUT = 150;
 
     /**
      * Callback to be invoked when a {@link TermSession} finishes.
@@ -111,15 +226,30 @@ public interface FinishCallback {
     }
     private FinishCallback mFinishCallback;
 
-    private boolean mIsRunning = false;
+    private volatile boolean mIsRunning = false;
     private Handler mMsgHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
+            if (msg.what == DRAIN_OUTPUT) {
+                // Output may be written before the session starts running
+                mDrainScheduled.set(false);
+                drainPendingWrites();
+                return;
+            }
             if (!mIsRunning) {
                 return;
             }
             if (msg.what == NEW_INPUT) {
                 readFromProcess();
+            } else if (msg.what == UPDATE) {
+                mUpdateScheduled.set(false);
+                presentUpdate();
+            } else if (msg.what == FRAME) {
+                mFrameScheduled = false;
+                presentUpdate();
+            } else if (msg.what == CONTROL_EVENTS) {
+                mControlEventsScheduled.set(false);
+                deliverControlEvents();
             } else if (msg.what == EOF) {
                 new Handler(Looper.getMainLooper()).post(new Runnable() {
                     @Override
@@ -131,6 +261,149 @@ public void run() {
         }
     };
 
+    /**
+     * An event loop which does the I/O of one or more sessions, in place of
+     * each session's own reader and writer threads.
+     * <p>
+     * The engine moves data with {@link TermSession#readInput readInput} and
+     * {@link TermSession#writeOutput writeOutput}, which are protected; it is
+     * expected to work with a session subclass which exposes them.
+     *
+     * @see TermSession#setIoEngine
+     */
+    public interface IoEngine {
+        /**
+         * Start doing I/O for a session.  Called on the main thread when the
+         * session's emulator is initialized.
+         */
+        void start(TermSession session);
+
+        /**
+         * Called from any thread when the session has output waiting to be
+         * written, or has made room for input after its input queue filled.
+         */
+        void onSessionReady(TermSession session);
+
+        /**
+         * Stop doing I/O for a session.  Called on the main thread when the
+         * session finishes, before its streams are closed.
+         */
+        void stop(TermSession session);
+    }
+
+    /**
+     * The non-blocking source an {@link IoEngine} reads a session's input from.
+     */
+    public interface InputSource {
+        /**
+         * @return The number of bytes read, 0 if none are available right
+         *         now, or -1 at end of input.
+         */
+        int read(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    /**
+     * The non-blocking sink an {@link IoEngine} writes a session's output to.
+     */
+    public interface OutputSink {
+        /**
+         * @return The number of bytes written, 0 if no more can be taken right
+         *         now.
+         */
+        int write(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Callback reporting the progress of a {@link TermSession#writeStreamed
+     * streamed write}.  All methods are invoked on the main thread.
+     */
+    public interface WriteListener {
+        /**
+         * @param written The number of bytes handed to the terminal so far.
+         * @param total The total number of bytes to be written.
+         */
+        void onWriteProgress(int written, int total);
+
+        /**
+         * @param cancelled Whether the write was cancelled before completing.
+         */
+        void onWriteFinished(boolean cancelled);
+    }
+
+    /**
+     * Receives the private control codes which programs send to the view:
+     * n for <code>OSC 10000+n ST</code> or <code>CSI n t</code>.  Invoked on the
+     * main thread, with every code raised since the last call.
+     *
+     * @see TermSession#setControlEventListener
+     */
+    public interface ControlEventListener {
+        /**
+         * @param events The codes, oldest first, in events[0] to
+         *               events[count - 1].  The array is reused once the
+         *               call returns.
+         * @param count The number of codes.
+         */
+        void onControlEvents(int[] events, int count);
+    }
+
+    /**
+     * Output which is waiting for room in the write queue.
+     *
+     * @see TermSession#writeStreamed
+     */
+    public static final class PendingWrite {
+        private final TermSession mSession;
+        private final byte[] mData;
+        private int mOffset;
+        private final int mStart;
+        private final int mEnd;
+        private final WriteListener mListener;
+        private volatile boolean mCancelled;
+        private volatile boolean mDone;
+        /* How far the listener has been told the write got */
+        private int mReportedOffset;
+
+        private PendingWrite(TermSession session, byte[] data, int offset, int count,
+                WriteListener listener) {
+            mSession = session;
+            mData = data;
+            mStart = offset;
+            mOffset = offset;
+            mReportedOffset = offset;
+            mEnd = offset + count;
+            mListener = listener;
+        }
+
+        /* Tell the listener what the last drain did; called without any lock held */
+        private void report() {
+            if (mOffset > mReportedOffset) {
+                mReportedOffset = mOffset;
+                mListener.onWriteProgress(mOffset - mStart, mEnd - mStart);
+            }
+            if (mDone) {
+                // Only a cancelled write is done before all of it was written
+                mListener.onWriteFinished(mOffset < mEnd);
+            }
+        }
+
+        /**
+         * Drop whatever hasn't been handed to the terminal yet.
+         */
+        public void cancel() {
+            mCancelled = true;
+            // Don't wait for the queue to drain to drop it
+            mSession.scheduleDrain();
+        }
+
+        /**
+         * @return Whether the write has completed or been cancelled.
+         */
+        public boolean isDone() {
+            return mDone;
+        }
+    }
+
     private UpdateCallback mTitleChangedListener;
 
     public TermSession() {
@@ -138,34 +411,51 @@ public TermSession() {
     }
 
     public TermSession(final boolean exitOnEOF) {
+        mExitOnEOF = exitOnEOF;
         mWriteCharBuffer = CharBuffer.allocate(2);
         mWriteByteBuffer = ByteBuffer.allocate(4);
         mUTF8Encoder = Charset.forName("UTF-8").newEncoder();
         mUTF8Encoder.onMalformedInput(CodingErrorAction.REPLACE);
         mUTF8Encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
 
-        mReceiveBuffer = new byte[4 * 1024];
-        mByteQueue = new ByteQueue(4 * 1024);
+        mByteQueue = new ByteRingBuffer(INPUT_QUEUE_SIZE);
         mReaderThread = new Thread() {
-            private byte[] mBuffer = new byte[4096];
-
             @Override
             public void run() {
+                ByteRingBuffer byteQueue = mByteQueue;
+                // Read straight into the queue's storage; the emulator parses
+                // it from there too, so input is never copied
+                byte[] buffer = byteQueue.array();
+                int readSize = MIN_READ_SIZE;
                 try {
                     while(true) {
-                        int read = mTermIn.read(mBuffer);
+                        byteQueue.waitForSpace();
+                        int length = Math.min(byteQueue.getWritableLength(),
+                                readSize);
+                        int read = mTermIn.read(buffer,
+                                byteQueue.getWriteOffset(), length);
                         if (read == -1) {
                             // EOF -- process exited
                             break;
                         }
-                        int offset = 0;
-                        while (read > 0) {
-                            int written = mByteQueue.write(mBuffer,
-                                    offset, read);
-                            offset += written;
-                            read -= written;
-                            mMsgHandler.sendMessage(
-                                    mMsgHandler.obtainMessage(NEW_INPUT));
+                        byteQueue.commitWrite(read);
+                        if (!mEmulationThreadEnabled) {
+                            scheduleReadFromProcess();
+                        }
+                        SessionMetrics metrics = mMetrics;
+                        if (metrics != null) {
+                            metrics.onInputRead(read, byteQueue.getBytesAvailable());
+                            if (byteQueue.getFreeSpace() == 0) {
+                                metrics.onInputStall();
+                            }
+                        }
+
+                        // Ask for more at once while the process keeps the
+                        // reads full, and back off once it quiets down
+                        if (read == readSize) {
+                            readSize = Math.min(readSize * 2, MAX_READ_SIZE);
+                        } else if (read < readSize / 4) {
+                            readSize = Math.max(readSize / 2, MIN_READ_SIZE);
                         }
                     }
                 } catch (IOException e) {
@@ -177,54 +467,64 @@ public void run() {
         };
         mReaderThread.setName("TermSession input reader");
 
-        mWriteQueue = new ByteQueue(4096);
+        mWriteQueue = new ByteRingBuffer(OUTPUT_QUEUE_SIZE);
         mWriterThread = new Thread() {
-            private byte[] mBuffer = new byte[4096];
+            private boolean mOutputFailed;
 
             @Override
             public void run() {
-                Looper.prepare();
-
-                mWriterHandler = new Handler() {
-                    @Override
-                    public void handleMessage(Message msg) {
-                        if (msg.what == NEW_OUTPUT) {
-                            writeToOutput();
-                        } else if (msg.what == FINISH) {
-                            Looper.myLooper().quit();
-                        }
+                ByteRingBuffer writeQueue = mWriteQueue;
+                try {
+                    while (true) {
+                        // Producers unpark us as soon as there's output
+                        writeQueue.waitForData();
+                        writeToOutput(writeQueue);
                     }
-                };
-
-                // Drain anything in the queue from before we started
-                writeToOutput();
-
-                Looper.loop();
+                } catch (InterruptedException e) {
+                }
             }
 
-            private void writeToOutput() {
-                ByteQueue writeQueue = mWriteQueue;
-                byte[] buffer = mBuffer;
+            /*
+             * Write out everything in the queue, straight from its storage.
+             * Whatever piled up while we were asleep or busy goes out in one
+             * write, so keystrokes arriving together share a system call.
+             */
+            private void writeToOutput(ByteRingBuffer writeQueue) {
+                byte[] buffer = writeQueue.array();
                 OutputStream termOut = mTermOut;
 
-                int bytesAvailable = writeQueue.getBytesAvailable();
-                int bytesToWrite = Math.min(bytesAvailable, buffer.length);
-
-                if (bytesToWrite == 0) {
+                if (mOutputFailed) {
+                    discardOutput(writeQueue);
                     return;
                 }
-
                 try {
-                    writeQueue.read(buffer, 0, bytesToWrite);
-                    termOut.write(buffer, 0, bytesToWrite);
+                    int bytesToWrite;
+                    while ((bytesToWrite = writeQueue.getReadableLength()) > 0) {
+                        termOut.write(buffer, writeQueue.getReadOffset(),
+                                bytesToWrite);
+                        writeQueue.commitRead(bytesToWrite);
+                        onOutputConsumed();
+                        SessionMetrics metrics = mMetrics;
+                        if (metrics != null) {
+                            metrics.onOutputWritten(bytesToWrite);
+                        }
+                    }
                     termOut.flush();
                 } catch (IOException e) {
-                    // Ignore exception
-                    // We don't really care if the receiver isn't listening.
-                    // We just make a best effort to answer the query.
-                    e.printStackTrace();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    // The receiver isn't listening any more.  Say so once, and
+                    // from now on throw the output away so that writers
+                    // aren't left waiting for room in the queue.
+                    Log.e(TAG, "Failed to write to the terminal output", e);
+                    mOutputFailed = true;
+                    discardOutput(writeQueue);
+                }
+            }
+
+            private void discardOutput(ByteRingBuffer writeQueue) {
+                int length;
+                while ((length = writeQueue.getReadableLength()) > 0) {
+                    writeQueue.commitRead(length);
+                    onOutputConsumed();
                 }
             }
         };
@@ -235,6 +535,92 @@ protected void onProcessExit() {
         finish();
     }
 
+    /**
+     * Set whether terminal emulation should run on a dedicated thread instead
+     * of the main thread.  This must be called before the emulator is
+     * initialized.
+     * <p>
+     * With a dedicated thread, {@link #processInput processInput} is invoked
+     * on that thread while holding the session's emulator lock, which the
+     * {@link EmulatorView} also holds while drawing; the update, title and
+     * UTF-8 mode callbacks are still delivered on the main thread.
+     *
+     * @param enabled Whether to use a dedicated emulation thread.
+     */
+    public void setEmulationThreadEnabled(boolean enabled) {
+        if (mEmulator != null) {
+            throw new IllegalStateException("emulator already initialized");
+        }
+        mEmulationThreadEnabled = enabled;
+    }
+
+    /**
+     * @return Whether terminal emulation runs on a dedicated thread.
+     */
+    public boolean isEmulationThreadEnabled() {
+        return mEmulationThreadEnabled;
+    }
+
+    /**
+     * The lock guarding the emulator and transcript against concurrent
+     * access from the emulation thread.
+     */
+    Object getEmulatorLock() {
+        return mEmulatorLock;
+    }
+
+    private Thread createEmulationThread() {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                ByteRingBuffer byteQueue = mByteQueue;
+                byte[] buffer = byteQueue.array();
+                try {
+                    while (mIsRunning) {
+                        byteQueue.waitForData();
+                        int offset = byteQueue.getReadOffset();
+                        int bytesRead = Math.min(byteQueue.getReadableLength(),
+                                EMULATION_SLICE_SIZE);
+                        synchronized (mEmulatorLock) {
+                            if (!mIsRunning) {
+                                break;
+                            }
+                            timedProcessInput(buffer, offset, bytesRead);
+                        }
+                        trackInputRate(bytesRead);
+                        byteQueue.commitRead(bytesRead);
+                        onInputConsumed();
+                        scheduleUpdate();
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        thread.setName("TermSession emulation");
+        return thread;
+    }
+
+    /* Ask the main thread to call notifyUpdate, unless it has been asked already */
+    private void scheduleUpdate() {
+        if (mUpdateScheduled.compareAndSet(false, true)) {
+            mMsgHandler.sendMessage(mMsgHandler.obtainMessage(UPDATE));
+        }
+    }
+
+    /* Run a callback on the main thread */
+    private void runOnMainThread(final UpdateCallback callback) {
+        if (Looper.myLooper() == mMsgHandler.getLooper()) {
+            callback.onUpdate();
+        } else {
+            mMsgHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onUpdate();
+                }
+            });
+        }
+    }
+
     /**
      * Set the terminal emulator's window size and start terminal emulation.
      *
@@ -243,23 +629,161 @@ protected void onProcessExit() {
      */
     public void initializeEmulator(int columns, int rows) {
         mTranscriptScreen = new TranscriptScreen(columns, TRANSCRIPT_ROWS, rows, mColorScheme);
+        if (mScrollbackDirectory != null) {
+            try {
+                mTranscriptScreen.setScrollbackFile(
+                        File.createTempFile("scrollback", null, mScrollbackDirectory));
+            } catch (IOException e) {
+                // Carry on without -- old rows are discarded as usual
+            }
+        }
         setIMEColor(mIMEColor);
-        mEmulator = new TerminalEmulator(this, mTranscriptScreen, columns, rows, mColorScheme);
+        mEmulator = new TerminalEmulator(mEmulatorHost, mTranscriptScreen, columns, rows, mColorScheme);
         mEmulator.setDefaultUTF8Mode(mDefaultUTF8Mode);
-        mEmulator.setKeyListener(mKeyListener);
 
         mIsRunning = true;
-        mReaderThread.start();
-        mWriterThread.start();
+        if (mEmulationThreadEnabled) {
+            mEmulationThread = createEmulationThread();
+            mEmulationThread.start();
+        }
+        if (mIoEngine != null) {
+            mIoEngine.start(this);
+        } else {
+            mReaderThread.start();
+            mWriterThread.start();
+        }
+    }
+
+    /**
+     * Keep the rows which scroll out of the transcript in a file in a
+     * directory, such as the application's cache directory, instead of
+     * discarding them.  The file is deleted when the session finishes.  This
+     * must be called before the emulator is initialized.
+     *
+     * @param directory The directory, or null to discard old rows.
+     */
+    public void setScrollbackDirectory(File directory) {
+        if (mEmulator != null) {
+            throw new IllegalStateException("emulator already initialized");
+        }
+        mScrollbackDirectory = directory;
+    }
+
+    /**
+     * Have an {@link IoEngine} do this session's I/O instead of the session's
+     * own reader and writer threads.  This must be called before the emulator
+     * is initialized.
+     *
+     * @param engine The engine to use, or null for the session's own threads.
+     */
+    public void setIoEngine(IoEngine engine) {
+        if (mEmulator != null) {
+            throw new IllegalStateException("emulator already initialized");
+        }
+        mIoEngine = engine;
+    }
+
+    /**
+     * Read once from <code>source</code> into the input queue, and schedule
+     * processing of what was read.  For use by an {@link IoEngine}.
+     *
+     * @return The number of bytes read, 0 if the source had nothing or the
+     *         input queue is full, or -1 at end of input.  When the queue is
+     *         full, {@link #isInputStalled} is true until room is made.
+     */
+    protected final int readInput(InputSource source) throws IOException {
+        ByteRingBuffer byteQueue = mByteQueue;
+        int length = byteQueue.getWritableLength();
+        if (length == 0) {
+            SessionMetrics metrics = mMetrics;
+            if (metrics != null) {
+                metrics.onInputStall();
+            }
+            mInputStalled.set(true);
+            // Room may have been made before the flag could be seen
+            length = byteQueue.getWritableLength();
+            if (length == 0) {
+                return 0;
+            }
+            mInputStalled.set(false);
+        }
+
+        int read = source.read(byteQueue.array(), byteQueue.getWriteOffset(),
+                Math.min(length, MAX_READ_SIZE));
+        if (read == -1) {
+            if (mExitOnEOF) mMsgHandler.sendMessage(mMsgHandler.obtainMessage(EOF));
+            return -1;
+        }
+        if (read > 0) {
+            byteQueue.commitWrite(read);
+            if (!mEmulationThreadEnabled) {
+                scheduleReadFromProcess();
+            }
+            SessionMetrics metrics = mMetrics;
+            if (metrics != null) {
+                metrics.onInputRead(read, byteQueue.getBytesAvailable());
+            }
+        }
+        return read;
+    }
+
+    /**
+     * @return Whether the input queue was found full by {@link #readInput},
+     *         and no room has been made since.
+     */
+    protected final boolean isInputStalled() {
+        return mInputStalled.get();
+    }
+
+    /* Let the IoEngine know if it can read input again */
+    private void onInputConsumed() {
+        if (mIoEngine != null && mInputStalled.compareAndSet(true, false)) {
+            mIoEngine.onSessionReady(this);
+        }
+    }
+
+    /**
+     * @return Whether there is output waiting to be written.
+     */
+    protected final boolean hasPendingOutput() {
+        return mWriteQueue.getBytesAvailable() > 0;
+    }
+
+    /**
+     * Write pending output to <code>sink</code>, once.  For use by an
+     * {@link IoEngine}.
+     *
+     * @return The number of bytes written.
+     */
+    protected final int writeOutput(OutputSink sink) throws IOException {
+        ByteRingBuffer writeQueue = mWriteQueue;
+        int length = writeQueue.getReadableLength();
+        if (length == 0) {
+            return 0;
+        }
+        int written = sink.write(writeQueue.array(),
+                writeQueue.getReadOffset(), length);
+        writeQueue.commitRead(written);
+        if (written > 0) {
+            onOutputConsumed();
+            SessionMetrics metrics = mMetrics;
+            if (metrics != null) {
+                metrics.onOutputWritten(written);
+            }
+        }
+        return written;
     }
 
     /**
      * Write data to the terminal output.  The written data will be consumed by
      * the emulation client as input.
      * <p>
-     * <code>write</code> itself runs on the main thread.  The default
+     * <code>write</code> itself runs on the main thread (or, for replies to
+     * queries from the emulation client, on the emulation thread).  The default
      * implementation writes the data into a circular buffer and signals the
-     * writer thread to copy it from there to the {@link OutputStream}.
+     * writer thread to copy it from there to the {@link OutputStream}.  It
+     * never blocks: whatever doesn't fit into the buffer is copied aside and
+     * written out from the main thread as the buffer drains.
      * <p>
      * Subclasses may override this method to modify the output before writing
      * it to the stream, but implementations in derived classes should call
@@ -270,17 +794,160 @@ public void initializeEmulator(int columns, int rows) {
      * @param count The number of bytes to be written.
      */
     public void write(byte[] data, int offset, int count) {
-        try {
-            while (count > 0) {
-                int written = mWriteQueue.write(data, offset, count);
-                offset += written;
-                count -= written;
-                notifyNewOutput();
+        // The write queue only allows one producer at a time
+        synchronized (mWriteQueue) {
+            if (mPendingWrites.isEmpty()) {
+                int written = mWriteQueue.offer(data, offset, count);
+                if (written > 0) {
+                    offset += written;
+                    count -= written;
+                    notifyNewOutput();
+                }
+            }
+            if (count > 0) {
+                SessionMetrics metrics = mMetrics;
+                if (metrics != null) {
+                    metrics.onOutputStall();
+                }
+                // Keep the output in order behind what's already waiting
+                byte[] copy = new byte[count];
+                System.arraycopy(data, offset, copy, 0, count);
+                mPendingWrites.add(new PendingWrite(this, copy, 0, count, null));
+                mHasPendingWrites = true;
+                scheduleDrain();
+            }
+        }
+    }
+
+    /**
+     * Write a large amount of data to the terminal output without holding up
+     * the caller, for example when pasting.  The data is handed to the
+     * terminal from the main thread in pieces, as the emulation client reads
+     * it.  Each piece goes through {@link #write(byte[], int, int)}, so that
+     * subclasses see it as they see any other output; output written in the
+     * meantime goes out between the pieces.
+     * <p>
+     * This doesn't copy the data; the caller must leave the array alone until
+     * the write is done.
+     *
+     * @param data The data to write.
+     * @param listener A {@link WriteListener} to be told of progress, or null.
+     * @return A {@link PendingWrite} which can be used to cancel the write.
+     */
+    public PendingWrite writeStreamed(byte[] data, WriteListener listener) {
+        PendingWrite write = new PendingWrite(this, data, 0, data.length, listener);
+        synchronized (mWriteQueue) {
+            mStreamedWrites.add(write);
+            mHasPendingWrites = true;
+        }
+        scheduleDrain();
+        return write;
+    }
+
+    /* Ask the main thread to drain pending writes, unless it has been asked already */
+    private void scheduleDrain() {
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mMsgHandler.sendMessage(mMsgHandler.obtainMessage(DRAIN_OUTPUT));
+        }
+    }
+
+    /* Called by whoever empties the write queue, after making room */
+    private void onOutputConsumed() {
+        if (mHasPendingWrites) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Move as much pending output as fits into the write queue, then hand
+     * streamed writes to write() a piece at a time while there's room.  Runs
+     * on the main thread, and is rescheduled each time the queue is drained.
+     */
+    private void drainPendingWrites() {
+        // Listeners are told once the lock is released, since they may write
+        ArrayList<PendingWrite> reports = null;
+        // Hand out a queue's worth at most, so as not to hog the main thread
+        // while the consumer keeps up
+        int budget = OUTPUT_QUEUE_SIZE;
+        while (budget > 0) {
+            PendingWrite write;
+            int offset;
+            int count;
+            synchronized (mWriteQueue) {
+                if (!movePendingWrites()) {
+                    // Full; the consumer will reschedule us once it makes room
+                    break;
+                }
+                write = mStreamedWrites.peek();
+                if (write == null) {
+                    break;
+                }
+                if (write.mListener != null && (reports == null
+                        || reports.get(reports.size() - 1) != write)) {
+                    if (reports == null) {
+                        reports = new ArrayList<PendingWrite>();
+                    }
+                    reports.add(write);
+                }
+                if (write.mCancelled) {
+                    mStreamedWrites.removeFirst();
+                    write.mDone = true;
+                    continue;
+                }
+
+                offset = write.mOffset;
+                count = Math.min(mWriteQueue.getFreeSpace(), write.mEnd - offset);
+                count = Math.min(count, budget);
+                if (count == 0) {
+                    break;
+                }
+                budget -= count;
+                write.mOffset += count;
+                if (write.mOffset == write.mEnd) {
+                    mStreamedWrites.removeFirst();
+                    write.mDone = true;
+                }
+            }
+            // write() may be overridden, so it's called without the lock
+            write(write.mData, offset, count);
+        }
+
+        boolean more;
+        synchronized (mWriteQueue) {
+            more = !mPendingWrites.isEmpty() || !mStreamedWrites.isEmpty();
+            mHasPendingWrites = more;
+        }
+        if (budget == 0 && more) {
+            // The queue may have room already, so don't wait for the consumer
+            scheduleDrain();
+        }
+        if (reports != null) {
+            for (PendingWrite write : reports) {
+                write.report();
             }
-        } catch (InterruptedException e) {
         }
     }
 
+    /* Move copied output into the write queue; returns whether all of it fit */
+    private boolean movePendingWrites() {
+        LinkedList<PendingWrite> pending = mPendingWrites;
+        while (!pending.isEmpty()) {
+            PendingWrite write = pending.getFirst();
+            int written = mWriteQueue.offer(write.mData, write.mOffset,
+                    write.mEnd - write.mOffset);
+            if (written == 0) {
+                return false;
+            }
+            write.mOffset += written;
+            notifyNewOutput();
+            if (write.mOffset == write.mEnd) {
+                pending.removeFirst();
+                write.mDone = true;
+            }
+        }
+        return true;
+    }
+
     /**
      * Write the UTF-8 representation of a String to the terminal output.  The
      * written data will be consumed by the emulation client as input.
@@ -313,35 +980,41 @@ public void write(String data) {
      * @param codePoint The Unicode code point to write to the terminal.
      */
     public void write(int codePoint) {
-        ByteBuffer byteBuf = mWriteByteBuffer;
         if (codePoint < 128) {
             // Fast path for ASCII characters
-            byte[] buf = byteBuf.array();
-            buf[0] = (byte) codePoint;
-            write(buf, 0, 1);
+            write(new byte[] { (byte) codePoint }, 0, 1);
             return;
         }
 
-        CharBuffer charBuf = mWriteCharBuffer;
-        CharsetEncoder encoder = mUTF8Encoder;
-
-        charBuf.clear();
-        byteBuf.clear();
-        Character.toChars(codePoint, charBuf.array(), 0);
-        encoder.reset();
-        encoder.encode(charBuf, byteBuf, true);
-        encoder.flush(byteBuf);
-        write(byteBuf.array(), 0, byteBuf.position()-1);
+        // The encoder and its buffers are shared by every writing thread;
+        // write() itself may be overridden, so it's called without the lock
+        byte[] bytes;
+        synchronized (mWriteQueue) {
+            ByteBuffer byteBuf = mWriteByteBuffer;
+            CharBuffer charBuf = mWriteCharBuffer;
+            CharsetEncoder encoder = mUTF8Encoder;
+
+            charBuf.clear();
+            byteBuf.clear();
+            Character.toChars(codePoint, charBuf.array(), 0);
+            encoder.reset();
+            encoder.encode(charBuf, byteBuf, true);
+            encoder.flush(byteBuf);
+            bytes = new byte[byteBuf.position()-1];
+            System.arraycopy(byteBuf.array(), 0, bytes, 0, bytes.length);
+        }
+        write(bytes, 0, bytes.length);
     }
 
-    /* Notify the writer thread that there's new output waiting */
+    /*
+     * Notify the I/O engine, if any, that there's new output waiting.  (The
+     * writer thread is woken up by the write queue itself, and picks up
+     * anything written before it started once it does.)
+     */
     private void notifyNewOutput() {
-        Handler writerHandler = mWriterHandler;
-        if (writerHandler == null) {
-           /* Writer thread isn't started -- will pick up data once it does */
-           return;
+        if (mIoEngine != null) {
+            mIoEngine.onSessionReady(this);
         }
-        writerHandler.sendEmptyMessage(NEW_OUTPUT);
     }
 
     /**
@@ -410,6 +1083,10 @@ public void setUpdateCallback(UpdateCallback notify) {
      * #setUpdateCallback setUpdateCallback} that the screen has changed.
      */
     protected void notifyUpdate() {
+        SessionMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onUpdate();
+        }
         if (mNotify != null) {
             mNotify.onUpdate();
         }
@@ -430,6 +1107,49 @@ public void setTitle(String title) {
         notifyTitleChanged();
     }
 
+    /**
+     * Set a {@link ControlEventListener} to receive this session's control
+     * events.  Events raised while no listener is set are kept, up to a
+     * limit, until one is.
+     *
+     * @param listener The {@link ControlEventListener} to be invoked.
+     */
+    public void setControlEventListener(ControlEventListener listener) {
+        mControlEventListener = listener;
+        if (listener != null && !mControlEvents.isEmpty()) {
+            scheduleControlEvents();
+        }
+    }
+
+    /**
+     * Queue a control event for the {@link ControlEventListener}.  Called by
+     * the emulator, on whichever thread processes input; events which don't
+     * fit in the queue are dropped.
+     */
+    void postControlEvent(int event) {
+        if (mControlEvents.offer(event)) {
+            scheduleControlEvents();
+        }
+    }
+
+    /* Ask the main thread to deliver control events, unless it has been asked already */
+    private void scheduleControlEvents() {
+        if (mControlEventsScheduled.compareAndSet(false, true)) {
+            mMsgHandler.sendMessage(mMsgHandler.obtainMessage(CONTROL_EVENTS));
+        }
+    }
+
+    private void deliverControlEvents() {
+        ControlEventListener listener = mControlEventListener;
+        if (listener == null) {
+            return;
+        }
+        int count;
+        while ((count = mControlEvents.drainTo(mControlEventBatch)) > 0) {
+            listener.onControlEvents(mControlEventBatch, count);
+        }
+    }
+
     /**
      * Set an {@link UpdateCallback} to be invoked when the terminal emulator's
      * title is changed.
@@ -447,7 +1167,7 @@ public void setTitleChangedListener(UpdateCallback listener) {
     protected void notifyTitleChanged() {
         UpdateCallback listener = mTitleChangedListener;
         if (listener != null) {
-            listener.onUpdate();
+            runOnMainThread(listener);
         }
     }
 
@@ -468,7 +1188,9 @@ public void updateSize(int columns, int rows) {
         if (mEmulator == null) {
             initializeEmulator(columns, rows);
         } else {
-            mEmulator.updateSize(columns, rows);
+            synchronized (mEmulatorLock) {
+                mEmulator.updateSize(columns, rows);
+            }
         }
     }
 
@@ -479,35 +1201,185 @@ public void updateSize(int columns, int rows) {
      *         scrollback buffer.
      */
     public String getTranscriptText() {
-        return mTranscriptScreen.getTranscriptText();
+        synchronized (mEmulatorLock) {
+            return mTranscriptScreen.getTranscriptText();
+        }
+    }
+
+    /**
+     * Describe the recent output of the emulation client and what the
+     * terminal emulator made of it, to help diagnose a program which confuses
+     * the emulator.
+     *
+     * @return The trace, or null if the emulator hasn't been initialized.
+     */
+    public String getEmulatorTrace() {
+        synchronized (mEmulatorLock) {
+            return mEmulator == null ? null : mEmulator.dumpTrace();
+        }
+    }
+
+    /**
+     * Set how long the main thread may spend feeding queued input to the
+     * terminal emulator before it yields to let the screen be redrawn and
+     * other events be handled.  Input left over when the budget runs out is
+     * processed on the next pass through the message loop.
+     *
+     * @param millis The time budget in milliseconds (default 10).
+     */
+    public void setInputDrainBudget(long millis) {
+        mInputDrainBudget = millis;
+    }
+
+    /**
+     * Turn collection of I/O, parsing and drawing metrics for this session
+     * on or off.  Turning metrics off discards what has been collected.
+     *
+     * @param enabled Whether to collect metrics.
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        if (!enabled) {
+            mMetrics = null;
+        } else if (mMetrics == null) {
+            mMetrics = new SessionMetrics();
+        }
+    }
+
+    /**
+     * @return This session's {@link SessionMetrics}, or null if metrics are
+     *         not enabled.
+     */
+    public SessionMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /* Ask the main thread to read input, unless it has been asked already */
+    private void scheduleReadFromProcess() {
+        if (mInputScheduled.compareAndSet(false, true)) {
+            mMsgHandler.sendMessage(mMsgHandler.obtainMessage(NEW_INPUT));
+        }
     }
 
     /**
      * Look for new input from the ptty, send it to the terminal emulator.
      */
     private void readFromProcess() {
-        int bytesAvailable = mByteQueue.getBytesAvailable();
-        int bytesToRead = Math.min(bytesAvailable, mReceiveBuffer.length);
-        int bytesRead = 0;
-        try {
-            bytesRead = mByteQueue.read(mReceiveBuffer, 0, bytesToRead);
-        } catch (InterruptedException e) {
-            return;
+        /* Clear the flag before looking at the queue, so that input queued
+           from here on schedules another pass instead of getting lost */
+        mInputScheduled.set(false);
+
+        ByteRingBuffer byteQueue = mByteQueue;
+        byte[] buffer = byteQueue.array();
+        long deadline = SystemClock.uptimeMillis() + mInputDrainBudget;
+        boolean updated = false;
+        while (mIsRunning) {
+            int offset = byteQueue.getReadOffset();
+            int bytesRead = byteQueue.getReadableLength();
+            if (bytesRead == 0) {
+                break;
+            }
+
+            // Give subclasses a chance to process the read data, in place
+            timedProcessInput(buffer, offset, bytesRead);
+            byteQueue.commitRead(bytesRead);
+            trackInputRate(bytesRead);
+            onInputConsumed();
+            updated = true;
+
+            if (SystemClock.uptimeMillis() >= deadline) {
+                if (byteQueue.getBytesAvailable() > 0) {
+                    scheduleReadFromProcess();
+                }
+                break;
+            }
         }
 
-        // Give subclasses a chance to process the read data
-        processInput(mReceiveBuffer, 0, bytesRead);
+        if (updated) {
+            presentUpdate();
+        }
+    }
+
+    /*
+     * Enter or leave flood mode according to how fast input is being
+     * processed and how much of it is backed up.  Called by whichever thread
+     * processes input.
+     */
+    private void trackInputRate(int bytes) {
+        if (mByteQueue.getBytesAvailable() >= INPUT_QUEUE_SIZE / 2) {
+            mFloodMode = true;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        long elapsed = now - mFloodWindowStart;
+        mFloodWindowBytes += bytes;
+        if (elapsed >= FLOOD_WINDOW) {
+            mFloodMode = mFloodWindowBytes * 1000 / elapsed >= FLOOD_BYTES_PER_SECOND
+                    || mByteQueue.getBytesAvailable() >= INPUT_QUEUE_SIZE / 2;
+            mFloodWindowStart = now;
+            mFloodWindowBytes = 0;
+        }
+    }
+
+    /*
+     * Let the view know the screen changed -- at once normally, but no more
+     * often than every FLOOD_FRAME_INTERVAL in flood mode, so that a burst of
+     * output is parsed at full speed instead of being drawn frame by frame.
+     * While the client is in a synchronized update, the screen isn't
+     * presented until the update ends, or for SYNCHRONIZED_OUTPUT_TIMEOUT at
+     * most.  The last state is always presented.  Runs on the main thread.
+     */
+    private void presentUpdate() {
+        long now = SystemClock.uptimeMillis();
+        long next = 0;
+        if (mEmulator.isSynchronizedOutput()) {
+            if (mSynchronizedOutputDeadline == 0) {
+                mSynchronizedOutputDeadline = now + SYNCHRONIZED_OUTPUT_TIMEOUT;
+            }
+            next = mSynchronizedOutputDeadline;
+        } else {
+            mSynchronizedOutputDeadline = 0;
+        }
+        if (mFloodMode) {
+            next = Math.max(next, mLastUpdateTime + FLOOD_FRAME_INTERVAL);
+        }
+        if (now < next) {
+            if (!mFrameScheduled) {
+                mFrameScheduled = true;
+                mMsgHandler.sendMessageAtTime(mMsgHandler.obtainMessage(FRAME), next);
+            }
+            return;
+        }
+        if (mSynchronizedOutputDeadline != 0) {
+            // Timed out; hold back the next frame of a runaway update too
+            mSynchronizedOutputDeadline = now + SYNCHRONIZED_OUTPUT_TIMEOUT;
+        }
+        mLastUpdateTime = now;
         notifyUpdate();
     }
 
+    /* processInput, timed when metrics are enabled */
+    private void timedProcessInput(byte[] data, int offset, int count) {
+        SessionMetrics metrics = mMetrics;
+        if (metrics == null) {
+            processInput(data, offset, count);
+            return;
+        }
+        long start = System.nanoTime();
+        processInput(data, offset, count);
+        metrics.onInputProcessed(count, System.nanoTime() - start);
+    }
+
     /**
      * Process input and send it to the terminal emulator.  This method is
-     * invoked on the main thread whenever new data is read from the
-     * InputStream.
+     * invoked on the main thread (or the emulation thread, if enabled)
+     * whenever new data is read from the InputStream.
      * <p>
      * The default implementation sends the data straight to the terminal
      * emulator without modifying it in any way.  Subclasses can override it to
      * modify the data before giving it to the terminal.
+     * <p>
+     * <code>data</code> is the session's input queue itself, so its contents
+     * are only valid for the duration of the call.
      *
      * @param data A byte array containing the data read.
      * @param offset The offset into the buffer where the read data begins.
@@ -527,7 +1399,9 @@ protected void processInput(byte[] data, int offset, int count) {
      * @param count The length of the data to be written.
      */
     protected final void appendToEmulator(byte[] data, int offset, int count) {
-        mEmulator.append(data, offset, count);
+        synchronized (mEmulatorLock) {
+            mEmulator.append(data, offset, count);
+        }
     }
 
     /**
@@ -544,13 +1418,15 @@ public void setColorScheme(ColorScheme scheme) {
         if (mEmulator == null) {
             return;
         }
-        mEmulator.setColorScheme(scheme);
+        synchronized (mEmulatorLock) {
+            mEmulator.setColorScheme(scheme);
+        }
     }
 
     public void setIMEColor(int color) {
         mIMEColor = color;
         if (mTranscriptScreen != null) {
-            mTranscriptScreen.setIMEColor(color);
+            TranscriptPainter.setIMEColor(color);
         }
         return;
     }
@@ -571,7 +1447,9 @@ public void setDefaultUTF8Mode(boolean utf8ByDefault) {
         if (mEmulator == null) {
             return;
         }
-        mEmulator.setDefaultUTF8Mode(utf8ByDefault);
+        synchronized (mEmulatorLock) {
+            mEmulator.setDefaultUTF8Mode(utf8ByDefault);
+        }
     }
 
     /**
@@ -593,9 +1471,17 @@ public boolean getUTF8Mode() {
      *
      * @param utf8ModeNotify The {@link UpdateCallback} to be invoked.
      */
-    public void setUTF8ModeUpdateCallback(UpdateCallback utf8ModeNotify) {
+    public void setUTF8ModeUpdateCallback(final UpdateCallback utf8ModeNotify) {
         if (mEmulator != null) {
-            mEmulator.setUTF8ModeUpdateCallback(utf8ModeNotify);
+            if (mEmulationThreadEnabled && utf8ModeNotify != null) {
+                mEmulator.setUTF8ModeUpdateCallback(new UpdateCallback() {
+                    public void onUpdate() {
+                        runOnMainThread(utf8ModeNotify);
+                    }
+                });
+            } else {
+                mEmulator.setUTF8ModeUpdateCallback(utf8ModeNotify);
+            }
         }
     }
 
@@ -603,7 +1489,9 @@ public void setUTF8ModeUpdateCallback(UpdateCallback utf8ModeNotify) {
      * Reset the terminal emulator's state.
      */
     public void reset() {
-        mEmulator.reset();
+        synchronized (mEmulatorLock) {
+            mEmulator.reset();
+        }
         notifyUpdate();
     }
 
@@ -624,14 +1512,41 @@ public void setFinishCallback(FinishCallback callback) {
      */
     public void finish() {
         mIsRunning = false;
-        mEmulator.finish();
-        if (mTranscriptScreen != null) {
-            mTranscriptScreen.finish();
+        if (mEmulationThread != null) {
+            mEmulationThread.interrupt();
+        }
+        synchronized (mEmulatorLock) {
+            mEmulator.finish();
+            if (mTranscriptScreen != null) {
+                mTranscriptScreen.finish();
+            }
+        }
+
+        // Drop output which never made it out, and tell the listeners so once
+        // the lock is released
+        ArrayList<PendingWrite> dropped;
+        synchronized (mWriteQueue) {
+            for (PendingWrite write : mPendingWrites) {
+                write.mDone = true;
+            }
+            mPendingWrites.clear();
+            dropped = new ArrayList<PendingWrite>(mStreamedWrites);
+            mStreamedWrites.clear();
+            mHasPendingWrites = false;
+        }
+        for (PendingWrite write : dropped) {
+            write.mDone = true;
+            if (write.mListener != null) {
+                write.report();
+            }
         }
 
         // Stop the reader and writer threads, and close the I/O streams
-        if (mWriterHandler != null) {
-            mWriterHandler.sendEmptyMessage(FINISH);
+        if (mIoEngine != null) {
+            mIoEngine.stop(this);
+        }
+        if (mWriterThread.isAlive()) {
+            mWriterThread.interrupt();
         }
         try {
             mTermIn.close();
@@ -35,6 +35,10 @@ interface TextRenderer {
     public static final int MODE_FN_SHIFT = 6;
 
     void setReverseVideo(boolean reverseVideo);
+    /**
+     * Set the table which resolves the interned styles passed to drawTextRun.
+     */
+    void setStyleTable(StyleTable styles);
     float getCharacterWidth();
     int getCharacterHeight();
     /** @return pixels above top row of text to avoid looking cramped. */
@@ -50,7 +54,7 @@ interface TextRenderer {
      * @param index
      * @param count
      * @param selectionStyle True to draw the text using the "selected" style (for clipboard copy)
-     * @param textStyle
+     * @param textStyle A TextStyle, or the id of a style in the style table.
      * @param cursorOffset The screen character offset of the cursor (or -1 if not on this line.)
      * @param cursorIndex The index of the cursor in text chars.
      * @param cursorIncr The width of the cursor in text chars. (1 or 2)
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.util.Arrays;
+
+import android.graphics.Canvas;
+import android.text.SpannableString;
+import android.text.TextPaint;
+import android.text.style.CharacterStyle;
+
+/**
+ * Draws the rows of a {@link TranscriptScreen}, along with the cursor, the
+ * selection and any text being composed by the IME.  Kept apart from
+ * TranscriptScreen, so that the transcript itself needs nothing from Android.
+ * <p>
+ * The IME settings are shared by all transcripts.
+ */
+final class TranscriptPainter {
+    private TranscriptPainter() {
+    }
+
+    /**
+     * Draw a row of text. Out-of-bounds rows are blank, not errors.
+     *
+     * @param screen The transcript to draw from.
+     * @param row The row of text to draw.
+     * @param canvas The canvas to draw to.
+     * @param x The x coordinate origin of the drawing
+     * @param y The y coordinate origin of the drawing
+     * @param renderer The renderer to use to draw the text
+     * @param cx the cursor X coordinate, -1 means don't draw it
+     * @param selx1 the text selection start X coordinate
+     * @param selx2 the text selection end X coordinate, if equals to selx1 don't draw selection
+     * @param imeText current IME text, to be rendered at cursor
+     * @param cursorMode the cursor mode. See TextRenderer.
+     */
+    public static void drawText(TranscriptScreen screen, int row, Canvas canvas, float x, float y,
+            TextRenderer renderer, int curx, int selx1, int selx2, String imeText, int cursorMode, SpannableString imeSpannableString) {
+        char[] line;
+        int cx = imeText.length() > 0 ? -1 : curx;
+        StyleRow color;
+        int cursorWidth = 1;
+        try {
+            line = screen.getLine(row);
+            color = screen.getLineColor(row);
+        } catch (IllegalArgumentException e) {
+            // Out-of-bounds rows are blank.
+            return;
+        } catch (NullPointerException e) {
+            // Attempt to draw on a finished transcript
+            // XXX Figure out why this happens on Honeycomb
+            return;
+        }
+        int defaultStyle = screen.getDefaultStyle();
+
+        if (line == null) {
+            // Line is blank.
+            if (selx1 != selx2) {
+                // We need to draw a selection
+                char[] blank = new char[selx2-selx1];
+                Arrays.fill(blank, ' ');
+                renderer.drawTextRun(canvas, x, y, selx1, selx2-selx1,
+                                blank, 0, 1, true, defaultStyle,
+                                cx, 0, 1, 1, cursorMode);
+            }
+            if (cx != -1) {
+                char[] blank = new char[1];
+                Arrays.fill(blank, ' ');
+                // We need to draw the cursor
+                renderer.drawTextRun(canvas, x, y, cx, 1,
+                        blank, 0, 1, true, defaultStyle,
+                        cx, 0, 1, 1, cursorMode);
+            }
+
+            return;
+        }
+
+        int columns = screen.getColumns();
+        int lineLen = line.length;
+        int lastStyle = 0;
+        boolean lastSelectionStyle = false;
+        int runWidth = 0;
+        int lastRunStart = -1;
+        int lastRunStartIndex = -1;
+        boolean forceFlushRun = false;
+        int column = 0;
+        int nextColumn = 0;
+        int displayCharWidth = 0;
+        int index = 0;
+        int cursorIndex = 0;
+        int cursorIncr = 0;
+        int runStyle = 0;
+        int styleRunEnd = 0;
+        while (column < columns && index < lineLen && line[index] != '\0') {
+            int incr = 1;
+            int width;
+            if (Character.isHighSurrogate(line[index])) {
+                width = UnicodeTranscript.charWidth(line, index);
+                incr++;
+            } else {
+                width = UnicodeTranscript.charWidth(line[index]);
+            }
+            if (width > 0) {
+                // We've moved on to the next column
+                column = nextColumn;
+                displayCharWidth = width;
+            }
+            if (column >= styleRunEnd) {
+                // Step through the style row a run at a time
+                runStyle = color.get(column);
+                styleRunEnd = color.getRunEnd(column);
+            }
+            int style = runStyle;
+            boolean selectionStyle = false;
+            if ((column >= selx1 || (displayCharWidth == 2 && column == selx1 - 1)) &&
+                    column <= selx2) {
+                // Draw selection:
+                selectionStyle = true;
+            }
+            if (style != lastStyle
+                    || selectionStyle != lastSelectionStyle
+                    || (width > 0 && forceFlushRun)) {
+                if (lastRunStart >= 0) {
+                    renderer.drawTextRun(canvas, x, y, lastRunStart, runWidth,
+                            line,
+                            lastRunStartIndex, index - lastRunStartIndex,
+                            lastSelectionStyle, lastStyle,
+                            cx, cursorIndex, cursorIncr, cursorWidth, cursorMode);
+                }
+                lastStyle = style;
+                lastSelectionStyle = selectionStyle;
+                runWidth = 0;
+                lastRunStart = column;
+                lastRunStartIndex = index;
+                forceFlushRun = false;
+            }
+            if (cx == column) {
+                if (width > 0) {
+                    cursorIndex = index;
+                    cursorIncr = incr;
+                    cursorWidth = width;
+                } else {
+                    // Combining char attaching to the char under the cursor
+                    cursorIncr += incr;
+                }
+            }
+            runWidth += width;
+            nextColumn += width;
+            index += incr;
+            if (width > 1) {
+                /* We cannot draw two or more East Asian wide characters in the
+                   same run, because we need to make each wide character take
+                   up two columns, which may not match the font's idea of the
+                   character width */
+                forceFlushRun = true;
+            }
+        }
+        if (lastRunStart >= 0) {
+            renderer.drawTextRun(canvas, x, y, lastRunStart, runWidth,
+                    line,
+                    lastRunStartIndex, index - lastRunStartIndex,
+                    lastSelectionStyle, lastStyle,
+                    cx, cursorIndex, cursorIncr, cursorWidth, cursorMode);
+        }
+
+        cx = curx;
+        if (cx >= 0 && imeText.length() > 0) {
+            int imeLength = Math.min(columns, imeText.length());
+            int imeOffset = imeText.length() - imeLength;
+            int wimeLength = Math.min(columns, getStringWidth(imeText));
+            int imePosition = Math.min(cx, columns - wimeLength);
+            int imeColor = mIMEColor == IME_AUTODETECT ? mIMEDetect : mIMEColor;
+
+            if ((imeColor <= IME_UNDERLINE) || (imeSpannableString == null)) {
+                int underline = imeSpannableString == null ? 0 : splitComposingText(imeSpannableString);
+                int textStyle = underline == 0 ? TextStyle.fxUnderline : TextStyle.fxNormal;
+                if (imeColor == IME_NONE) {
+                    underline = 0;
+                    textStyle = TextStyle.fxNormal;
+                }
+
+                renderer.drawTextRun(canvas, x, y, imePosition, imeLength, imeText.toCharArray(),
+                        imeOffset, imeLength, true, TextStyle.encode(0x0f, 0x00, textStyle),
+                        -1, 0, 0, 0, 0);
+                if (underline > 0) {
+                    imeText = imeText.substring(0, underline);
+                    int uimeLength = Math.min(columns, imeText.length());
+                    int uimeOffset = imeText.length() - uimeLength;
+                    renderer.drawTextRun(canvas, x, y, imePosition, imeLength, imeText.toCharArray(),
+                            uimeOffset, uimeLength, true, TextStyle.encode(0x0f, 0x00, TextStyle.fxUnderline),
+                            -1, 0, 0, 0, 0);
+                }
+            } else {
+                // FIXME:
+                int effect = TextStyle.fxUnderline;
+                if (imeColor == IME_GOOGLE) effect |= TextStyle.fxImeBackground;
+                renderer.drawTextRun(canvas, x, y, imePosition, imeLength, imeText.toCharArray(),
+                        imeOffset, imeLength, true, TextStyle.encode(0x0f, 0x00, effect),
+                        -1, 0, 0, 0, 0);
+                TextPaint paint = new TextPaint();
+                int length = imeSpannableString.length();
+                Object[] objs = imeSpannableString.getSpans(0, length, Object.class);
+                for (Object obj : objs) {
+                    if (!(obj instanceof CharacterStyle)) {
+                         continue;
+                    }
+                    CharacterStyle style = (CharacterStyle)obj;
+                    style.updateDrawState(paint);
+                    int bold = paint.isFakeBoldText() ? TextStyle.fxBold : 0;
+                    int underline = paint.isUnderlineText() ? TextStyle.fxUnderline: 0;
+                    int textStyle = bold+underline;
+
+                    int start = imeSpannableString.getSpanStart(style);
+                    int end = imeSpannableString.getSpanEnd(style);
+                    if (imeColor != IME_GOOGLE && (start == 0 && end == length)) {
+                        if (imeColor == IME_ATOK) {
+                            if (underline > 0) continue;
+                        } else {
+                            continue;
+                        }
+                    }
+
+                    String imeSubText = imeText.substring(start, end);
+                    int uimeLength = Math.min(columns, imeSubText.length());
+                    int uimeOffset = imeSubText.length() - uimeLength;
+                    float ofsx = renderer.getMeasureText(imeText.substring(0, start));
+
+                    textStyle += TextStyle.fxIme;
+                    renderer.setImePaint(paint);
+                    renderer.drawTextRun(canvas, x+ofsx, y, imePosition, uimeLength, imeSubText.toCharArray(),
+                            uimeOffset, uimeLength, true, TextStyle.encode(0x0f, 0x00, textStyle),
+                            -1, 0, 0, 0, 0);
+                }
+            }
+        }
+     }
+
+    private final static int IME_NONE       = 0;
+    private final static int IME_UNDERLINE  = 1;
+    private final static int IME_AUTODETECT = 2;
+    private final static int IME_ATOK       = 3;
+    private final static int IME_GOOGLE     = 4;
+    private final static int IME_DEFAULT    = 100;
+    private static int mIMEColor = 1;
+    private static int mIMEDetect = IME_AUTODETECT;
+    public static void setIMEColor(int mode) {
+        mIMEColor = mode;
+    }
+
+    public static void setIME(int ime) {
+        mIMEDetect = ime;
+    }
+
+    private static int getStringWidth(String text) {
+        if (text.length() == 0) return 0;
+        int len = 0;
+        for (int i = 0; i < text.length(); i++) {
+            len += UnicodeTranscript.charWidth(text.codePointAt(i));
+        }
+        return len;
+    }
+
+    private static int splitComposingText(SpannableString composingText) {
+       if (composingText == null) return 0;
+       int length = composingText.length();
+       if (length > 0) {
+           Object[] objs = composingText.getSpans(0, length, Object.class);
+           for (Object obj : objs) {
+               if (!(obj instanceof CharacterStyle)) {
+                    continue;
+               }
+               CharacterStyle style = (CharacterStyle)obj;
+               int start = composingText.getSpanStart(style);
+               int end = composingText.getSpanEnd(style);
+               if (start > 0) return start;
+               if (end < length) return end;
+           }
+       }
+       return 0;
+   }
+}
@@ -0,0 +1,223 @@
+package jackpal.androidterm.libtermexec;
+
+import android.os.ParcelFileDescriptor;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import jackpal.androidterm.PtyPoller;
+
+/**
+ * Checks that a single thread multiplexing descriptors through
+ * {@link PtyPoller} sees every byte written to each of them, from the right
+ * descriptor, and sees each one close, as does one blocking reader thread
+ * per descriptor.  Pipes stand in for pty masters.
+ * <p>
+ * For each number of descriptors, the test also logs the average latency
+ * from a write on one end to the reader seeing it, and how much the
+ * process's resident set grew while the readers were running.
+ */
+public class PtyPollerTest extends AndroidTestCase {
+    private static final String TAG = "PtyPollerTest";
+
+    /* How long to wait for the readers to see the descriptors close */
+    private static final long JOIN_TIMEOUT = 10000;
+
+    private static final int[] SESSION_COUNTS = { 1, 4, 16, 64 };
+    private static final int MESSAGES = 2000;
+
+    public void testThreadPerSession() throws Exception {
+        for (int sessions : SESSION_COUNTS) {
+            runThreadPerSession(sessions);
+        }
+    }
+
+    public void testSinglePoller() throws Exception {
+        for (int sessions : SESSION_COUNTS) {
+            runSinglePoller(sessions);
+        }
+    }
+
+    private void runThreadPerSession(int sessions) throws Exception {
+        ParcelFileDescriptor[][] pipes = createPipes(sessions);
+        final Semaphore received = new Semaphore(0);
+        final AtomicIntegerArray counts = new AtomicIntegerArray(sessions);
+        long rssBefore = getResidentSetKb();
+
+        Thread[] readers = new Thread[sessions];
+        for (int i = 0; i < sessions; ++i) {
+            final InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pipes[i][0]);
+            final int session = i;
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[4096];
+                    try {
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            count(counts, session, buffer, read);
+                            received.release();
+                        }
+                    } catch (IOException e) {
+                    }
+                }
+            };
+            readers[i].start();
+        }
+
+        OutputStream[] outs = new OutputStream[sessions];
+        for (int i = 0; i < sessions; ++i) {
+            outs[i] = new ParcelFileDescriptor.AutoCloseOutputStream(pipes[i][1]);
+        }
+        long rssDuring = getResidentSetKb();
+        long latency = measureLatency(outs, received);
+
+        for (int i = 0; i < sessions; ++i) {
+            outs[i].close();
+        }
+        for (Thread reader : readers) {
+            reader.join(JOIN_TIMEOUT);
+            assertFalse(reader.isAlive());
+        }
+        report("thread per session", sessions, latency, rssDuring - rssBefore);
+        assertCounts(counts);
+    }
+
+    private void runSinglePoller(final int sessions) throws Exception {
+        ParcelFileDescriptor[][] pipes = createPipes(sessions);
+        final Semaphore received = new Semaphore(0);
+        final AtomicIntegerArray counts = new AtomicIntegerArray(sessions);
+        long rssBefore = getResidentSetKb();
+
+        final int[] fds = new int[sessions];
+        for (int i = 0; i < sessions; ++i) {
+            fds[i] = PtyPoller.dup(pipes[i][0].getFd());
+            pipes[i][0].close();
+        }
+        Thread poller = new Thread() {
+            @Override
+            public void run() {
+                short[] events = new short[sessions];
+                short[] revents = new short[sessions];
+                for (int i = 0; i < sessions; ++i) {
+                    events[i] = PtyPoller.POLLIN;
+                }
+                byte[] buffer = new byte[4096];
+                int open = sessions;
+                try {
+                    while (open > 0) {
+                        PtyPoller.poll(fds, events, revents, sessions, -1);
+                        for (int i = 0; i < sessions; ++i) {
+                            if (revents[i] == 0 || fds[i] < 0) {
+                                continue;
+                            }
+                            int read = PtyPoller.read(fds[i], buffer, 0, buffer.length);
+                            if (read > 0) {
+                                count(counts, i, buffer, read);
+                                received.release();
+                            } else if (read == -1) {
+                                PtyPoller.close(fds[i]);
+                                fds[i] = -1;
+                                --open;
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                }
+            }
+        };
+        poller.start();
+
+        OutputStream[] outs = new OutputStream[sessions];
+        for (int i = 0; i < sessions; ++i) {
+            outs[i] = new ParcelFileDescriptor.AutoCloseOutputStream(pipes[i][1]);
+        }
+        long rssDuring = getResidentSetKb();
+        long latency = measureLatency(outs, received);
+
+        for (int i = 0; i < sessions; ++i) {
+            outs[i].close();
+        }
+        poller.join(JOIN_TIMEOUT);
+        assertFalse(poller.isAlive());
+        report("single poller", sessions, latency, rssDuring - rssBefore);
+        assertCounts(counts);
+    }
+
+    private static ParcelFileDescriptor[][] createPipes(int count) throws IOException {
+        ParcelFileDescriptor[][] pipes = new ParcelFileDescriptor[count][];
+        for (int i = 0; i < count; ++i) {
+            pipes[i] = ParcelFileDescriptor.createPipe();
+        }
+        return pipes;
+    }
+
+    /*
+     * Average nanoseconds from writing a byte to the reader having seen it.
+     * Each descriptor gets its own number as its bytes, in turn.
+     */
+    private static long measureLatency(OutputStream[] outs, Semaphore received)
+            throws Exception {
+        byte[] message = new byte[1];
+        long total = 0;
+        for (int i = 0; i < MESSAGES; ++i) {
+            int session = i % outs.length;
+            message[0] = (byte) session;
+            long start = System.nanoTime();
+            outs[session].write(message);
+            received.acquire();
+            total += System.nanoTime() - start;
+        }
+        return total / MESSAGES;
+    }
+
+    /* Count the bytes a session's reader got, or mark the session bad if they aren't its own */
+    private static void count(AtomicIntegerArray counts, int session, byte[] buffer,
+            int length) {
+        for (int i = 0; i < length; ++i) {
+            if (buffer[i] != (byte) session) {
+                counts.set(session, -1);
+                return;
+            }
+        }
+        if (counts.get(session) >= 0) {
+            counts.addAndGet(session, length);
+        }
+    }
+
+    /* Every session got the bytes measureLatency wrote to it, and no others */
+    private static void assertCounts(AtomicIntegerArray counts) {
+        int sessions = counts.length();
+        for (int i = 0; i < sessions; ++i) {
+            int expected = MESSAGES / sessions + (i < MESSAGES % sessions ? 1 : 0);
+            assertEquals("session " + i, expected, counts.get(i));
+        }
+    }
+
+    private static long getResidentSetKb() throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+            return 0;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void report(String name, int sessions, long latencyNanos, long rssKb) {
+        Log.i(TAG, String.format("%s, %d sessions: %.1f us latency, %d KB resident",
+                name, sessions, latencyNanos / 1000.0, rssKb));
+    }
+}
@@ -0,0 +1,80 @@
+package jackpal.androidterm;
+
+import java.io.IOException;
+
+/**
+ * Thin wrappers around poll(2) and non-blocking read(2)/write(2), so that a
+ * single thread can service the pty masters of many sessions.
+ * <p>
+ * {@link java.nio.channels.Selector} can't be used for this: it only accepts
+ * sockets and pipes, not arbitrary file descriptors such as a pty master.
+ */
+public final class PtyPoller {
+    static {
+        System.loadLibrary("jackpal-termexec2");
+    }
+
+    /* Event bits, as defined by <poll.h> on Linux */
+    public static final short POLLIN = 0x0001;
+    public static final short POLLOUT = 0x0004;
+    public static final short POLLERR = 0x0008;
+    public static final short POLLHUP = 0x0010;
+    public static final short POLLNVAL = 0x0020;
+
+    private PtyPoller() {
+    }
+
+    /**
+     * Wait for events on a set of file descriptors.
+     *
+     * @param fds The descriptors to wait on.
+     * @param events The events of interest for each descriptor.
+     * @param revents Receives the events which occurred for each descriptor.
+     * @param count The number of entries in use in the arrays.
+     * @param timeoutMillis How long to wait, or -1 to wait indefinitely.
+     * @return The number of descriptors with events, or 0 on timeout or when
+     *         interrupted by a signal.
+     */
+    public static native int poll(int[] fds, short[] events, short[] revents, int count,
+                                  int timeoutMillis) throws IOException;
+
+    /**
+     * Read from a non-blocking descriptor straight into <code>buffer</code>.
+     *
+     * @return The number of bytes read, 0 if nothing is available right now,
+     *         or -1 at end of file (including a pty whose slave side is gone).
+     */
+    public static native int read(int fd, byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Write to a non-blocking descriptor.
+     *
+     * @return The number of bytes written, 0 if the descriptor can't take any
+     *         more right now.
+     */
+    public static native int write(int fd, byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Duplicate a descriptor and put it into non-blocking, close-on-exec mode.
+     * <p>
+     * Close-on-exec belongs to the new descriptor alone, but non-blocking
+     * mode is a flag of the open file description, which the duplicate
+     * shares with <code>fd</code>.  Once this returns, <code>fd</code> and
+     * any other descriptor for the same file are non-blocking too, and reads
+     * and writes on them may fail with EAGAIN (an IOException from Java
+     * streams) instead of waiting.  Only duplicate a descriptor nothing else
+     * does blocking I/O on; ioctl() calls such as setting the window size
+     * are unaffected.
+     */
+    public static native int dup(int fd) throws IOException;
+
+    public static native void close(int fd);
+
+    /**
+     * Create a non-blocking, close-on-exec pipe, for waking up a thread
+     * blocked in {@link #poll}.
+     *
+     * @return The read and write ends of the pipe, in that order.
+     */
+    public static native int[] pipe() throws IOException;
+}
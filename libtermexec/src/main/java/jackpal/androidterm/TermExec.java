@@ -92,6 +92,108 @@ public int start(@NonNull ParcelFileDescriptor ptmxFd) throws IOException {
      */
     public static native int waitFor(int processId);
 
+    /**
+     * Callback invoked when a process started by {@link #start} exits.
+     *
+     * @see #onExit
+     */
+    public interface ExitCallback {
+        /**
+         * Called on the reaper thread once the process has been reaped.
+         *
+         * @param processId The PID of the process which exited.
+         * @param exitCode The exit value of the process.
+         */
+        void onExit(int processId, int exitCode);
+    }
+
+    private static final Map<Integer, ExitCallback> exitCallbacks = new HashMap<>();
+    private static Thread reaperThread;
+
+    /**
+     * Arrange for <code>callback</code> to be invoked once the given process
+     * exits.  Unlike {@link #waitFor}, this doesn't tie up a thread per
+     * process: a single reaper thread waits for all registered processes.
+     * <p>
+     * The reaper sleeps until woken by SIGCHLD, for which the first call
+     * installs a handler; any handler installed before is still called.
+     * <p>
+     * The process must be a child of this process, and must not also be waited
+     * for by other means.
+     */
+    public static void onExit(int processId, @NonNull ExitCallback callback) {
+        synchronized (exitCallbacks) {
+            if (reaperThread == null) {
+                try {
+                    installChildSignalHandler();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Couldn't watch for child exits", e);
+                }
+                reaperThread = new Thread() {
+                    @Override
+                    public void run() {
+                        reap();
+                    }
+                };
+                reaperThread.setName("Process reaper");
+                reaperThread.setDaemon(true);
+                reaperThread.start();
+            }
+            exitCallbacks.put(processId, callback);
+        }
+        // The process may have exited before it was registered
+        wakeReaper();
+    }
+
+    private static void reap() {
+        while (true) {
+            // Wakeups are only cleared once this finds nothing, so an exit or
+            // registration while it looks still gets it to look again
+            int processId = findExitedProcess();
+            if (processId > 0) {
+                ExitCallback callback;
+                synchronized (exitCallbacks) {
+                    callback = exitCallbacks.remove(processId);
+                }
+                callback.onExit(processId, waitFor(processId));
+                continue;
+            }
+            waitForReaperWakeup();
+        }
+    }
+
+    /* Returns a registered process which has exited, or -1 if there's none */
+    private static int findExitedProcess() {
+        Integer[] processIds;
+        synchronized (exitCallbacks) {
+            processIds = exitCallbacks.keySet().toArray(new Integer[exitCallbacks.size()]);
+        }
+        for (int processId : processIds) {
+            if (hasExited(processId)) {
+                return processId;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Create the reaper's wakeup pipe, and have SIGCHLD write to it.
+     */
+    private static native void installChildSignalHandler() throws IOException;
+
+    /**
+     * Block until a child has changed state or {@link #wakeReaper} has been
+     * called since the last return, then clear the wakeup.
+     */
+    private static native void waitForReaperWakeup();
+
+    private static native void wakeReaper();
+
+    /**
+     * Check whether a child process has exited, without reaping it.
+     */
+    private static native boolean hasExited(int processId);
+
     /**
      * Send signal via the "kill" system call. Android {@link android.os.Process#sendSignal} does not
      * allow negative numbers (denoting process groups) to be used.
@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "poller.h"
+
+#include <sys/types.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <poll.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+
+static int throwIOException(JNIEnv *env, int errnum, const char *message)
+{
+    __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "%s errno %s(%d)",
+        message, strerror(errnum), errnum);
+
+    if (errnum != 0) {
+        const char *s = strerror(errnum);
+        if (strcmp(s, "Unknown error") != 0)
+            message = s;
+    }
+
+    jclass exClass;
+    const char *className = "java/io/IOException";
+
+    exClass = env->FindClass(className);
+    return env->ThrowNew(exClass, message);
+}
+
+static int setNonBlocking(int fd)
+{
+    int flags = fcntl(fd, F_GETFL);
+    if (flags < 0) {
+        return -1;
+    }
+    if (fcntl(fd, F_SETFL, flags | O_NONBLOCK) < 0) {
+        return -1;
+    }
+    return fcntl(fd, F_SETFD, FD_CLOEXEC);
+}
+
+extern "C" {
+
+JNIEXPORT jint JNICALL Java_jackpal_androidterm_PtyPoller_poll(JNIEnv *env, jclass clazz,
+    jintArray fds, jshortArray events, jshortArray revents, jint count, jint timeout)
+{
+    struct pollfd *pfds = (struct pollfd *) malloc(count * sizeof(struct pollfd));
+    if (!pfds) {
+        throwIOException(env, ENOMEM, "Couldn't allocate poll set");
+        return -1;
+    }
+
+    jint *fdElems = env->GetIntArrayElements(fds, 0);
+    jshort *eventElems = env->GetShortArrayElements(events, 0);
+    for (int i = 0; i < count; ++i) {
+        pfds[i].fd = fdElems[i];
+        pfds[i].events = eventElems[i];
+        pfds[i].revents = 0;
+    }
+    env->ReleaseShortArrayElements(events, eventElems, JNI_ABORT);
+    env->ReleaseIntArrayElements(fds, fdElems, JNI_ABORT);
+
+    int ready = poll(pfds, count, timeout);
+    if (ready < 0) {
+        int err = errno;
+        free(pfds);
+        if (err == EINTR) {
+            return 0;
+        }
+        throwIOException(env, err, "poll failed");
+        return -1;
+    }
+
+    jshort *reventElems = env->GetShortArrayElements(revents, 0);
+    for (int i = 0; i < count; ++i) {
+        reventElems[i] = pfds[i].revents;
+    }
+    env->ReleaseShortArrayElements(revents, reventElems, 0);
+    free(pfds);
+
+    return ready;
+}
+
+JNIEXPORT jint JNICALL Java_jackpal_androidterm_PtyPoller_read(JNIEnv *env, jclass clazz,
+    jint fd, jbyteArray buffer, jint offset, jint length)
+{
+    // The descriptor is non-blocking, so it is safe to read straight into
+    // the Java array
+    jbyte *bytes = (jbyte *) env->GetPrimitiveArrayCritical(buffer, 0);
+    ssize_t result;
+    do {
+        result = read(fd, bytes + offset, length);
+    } while (result < 0 && errno == EINTR);
+    int err = errno;
+    env->ReleasePrimitiveArrayCritical(buffer, bytes, 0);
+
+    if (result < 0) {
+        if (err == EAGAIN || err == EWOULDBLOCK) {
+            return 0;
+        }
+        if (err == EIO) {
+            // The pty master reports EIO once the slave side is gone
+            return -1;
+        }
+        throwIOException(env, err, "read failed");
+        return -1;
+    }
+    if (result == 0) {
+        return -1;
+    }
+    return (jint) result;
+}
+
+JNIEXPORT jint JNICALL Java_jackpal_androidterm_PtyPoller_write(JNIEnv *env, jclass clazz,
+    jint fd, jbyteArray buffer, jint offset, jint length)
+{
+    jbyte *bytes = (jbyte *) env->GetPrimitiveArrayCritical(buffer, 0);
+    ssize_t result;
+    do {
+        result = write(fd, bytes + offset, length);
+    } while (result < 0 && errno == EINTR);
+    int err = errno;
+    env->ReleasePrimitiveArrayCritical(buffer, bytes, JNI_ABORT);
+
+    if (result < 0) {
+        if (err == EAGAIN || err == EWOULDBLOCK) {
+            return 0;
+        }
+        throwIOException(env, err, "write failed");
+        return -1;
+    }
+    return (jint) result;
+}
+
+JNIEXPORT jint JNICALL Java_jackpal_androidterm_PtyPoller_dup(JNIEnv *env, jclass clazz, jint fd)
+{
+    int copy = dup(fd);
+    if (copy < 0) {
+        throwIOException(env, errno, "dup failed");
+        return -1;
+    }
+    // O_NONBLOCK lands on the open file description, so fd becomes
+    // non-blocking as well; see PtyPoller.dup()
+    if (setNonBlocking(copy) < 0) {
+        int err = errno;
+        close(copy);
+        throwIOException(env, err, "fcntl failed");
+        return -1;
+    }
+    return copy;
+}
+
+JNIEXPORT void JNICALL Java_jackpal_androidterm_PtyPoller_close(JNIEnv *env, jclass clazz, jint fd)
+{
+    close(fd);
+}
+
+JNIEXPORT jintArray JNICALL Java_jackpal_androidterm_PtyPoller_pipe(JNIEnv *env, jclass clazz)
+{
+    int fds[2];
+    if (pipe(fds) < 0) {
+        throwIOException(env, errno, "pipe failed");
+        return NULL;
+    }
+    if (setNonBlocking(fds[0]) < 0 || setNonBlocking(fds[1]) < 0) {
+        int err = errno;
+        close(fds[0]);
+        close(fds[1]);
+        throwIOException(env, err, "fcntl failed");
+        return NULL;
+    }
+
+    jintArray result = env->NewIntArray(2);
+    if (result == NULL) {
+        close(fds[0]);
+        close(fds[1]);
+        return NULL;
+    }
+    jint values[2] = { fds[0], fds[1] };
+    env->SetIntArrayRegion(result, 0, 2, values);
+    return result;
+}
+
+}
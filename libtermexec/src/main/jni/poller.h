@@ -0,0 +1,44 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef _JACKPAL_POLLER_H
+#define _JACKPAL_POLLER_H 1
+
+#include <stddef.h>
+#include "jni.h"
+#include <android/log.h>
+
+#define LOG_TAG "jackpal-termexec"
+
+extern "C" {
+    JNIEXPORT jint JNICALL Java_jackpal_androidterm_PtyPoller_poll
+      (JNIEnv *, jclass, jintArray, jshortArray, jshortArray, jint, jint);
+
+    JNIEXPORT jint JNICALL Java_jackpal_androidterm_PtyPoller_read
+      (JNIEnv *, jclass, jint, jbyteArray, jint, jint);
+
+    JNIEXPORT jint JNICALL Java_jackpal_androidterm_PtyPoller_write
+      (JNIEnv *, jclass, jint, jbyteArray, jint, jint);
+
+    JNIEXPORT jint JNICALL Java_jackpal_androidterm_PtyPoller_dup
+      (JNIEnv *, jclass, jint);
+
+    JNIEXPORT void JNICALL Java_jackpal_androidterm_PtyPoller_close
+      (JNIEnv *, jclass, jint);
+
+    JNIEXPORT jintArray JNICALL Java_jackpal_androidterm_PtyPoller_pipe
+      (JNIEnv *, jclass);
+}
+
+#endif	/* !defined(_JACKPAL_POLLER_H) */
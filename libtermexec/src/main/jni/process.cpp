@@ -26,6 +26,7 @@
 #include <unistd.h>
 #include <termios.h>
 #include <signal.h>
+#include <poll.h>
 
 typedef unsigned short char16_t;
 
@@ -89,6 +90,28 @@ static int throwIOException(JNIEnv *env, int errnum, const char *message)
     return env->ThrowNew(exClass, message);
 }
 
+/* Written to on SIGCHLD and by TermExec.wakeReaper(), to wake the reaper thread */
+static int reaperPipe[2] = { -1, -1 };
+static struct sigaction previousChildAction;
+
+static void onChildSignal(int signal, siginfo_t *info, void *context)
+{
+    int savedErrno = errno;
+    // The pipe is non-blocking; if it's full, the reaper is due to wake anyway
+    char byte = 0;
+    write(reaperPipe[1], &byte, 1);
+    errno = savedErrno;
+
+    if (previousChildAction.sa_flags & SA_SIGINFO) {
+        if (previousChildAction.sa_sigaction) {
+            previousChildAction.sa_sigaction(signal, info, context);
+        }
+    } else if (previousChildAction.sa_handler != SIG_DFL
+            && previousChildAction.sa_handler != SIG_IGN) {
+        previousChildAction.sa_handler(signal);
+    }
+}
+
 static void closeNonstandardFileDescriptors() {
     // Android uses shared memory to communicate between processes. The file descriptor is passed
     // to child processes using the environment variable ANDROID_PROPERTY_WORKSPACE, which is of
@@ -195,6 +218,61 @@ JNIEXPORT jint JNICALL Java_jackpal_androidterm_TermExec_waitFor(JNIEnv *env, jc
     return result;
 }
 
+JNIEXPORT void JNICALL Java_jackpal_androidterm_TermExec_installChildSignalHandler(JNIEnv *env, jclass clazz) {
+    if (pipe(reaperPipe) < 0) {
+        throwIOException(env, errno, "pipe failed");
+        return;
+    }
+    for (int i = 0; i < 2; ++i) {
+        fcntl(reaperPipe[i], F_SETFL, fcntl(reaperPipe[i], F_GETFL) | O_NONBLOCK);
+        fcntl(reaperPipe[i], F_SETFD, FD_CLOEXEC);
+    }
+
+    struct sigaction action;
+    memset(&action, 0, sizeof(action));
+    action.sa_sigaction = onChildSignal;
+    sigemptyset(&action.sa_mask);
+    action.sa_flags = SA_SIGINFO | SA_RESTART | SA_NOCLDSTOP;
+    if (sigaction(SIGCHLD, &action, &previousChildAction) < 0) {
+        int err = errno;
+        close(reaperPipe[0]);
+        close(reaperPipe[1]);
+        reaperPipe[0] = reaperPipe[1] = -1;
+        throwIOException(env, err, "sigaction failed");
+    }
+}
+
+JNIEXPORT void JNICALL Java_jackpal_androidterm_TermExec_waitForReaperWakeup(JNIEnv *env, jclass clazz) {
+    struct pollfd pfd;
+    pfd.fd = reaperPipe[0];
+    pfd.events = POLLIN;
+    int result;
+    do {
+        pfd.revents = 0;
+        result = poll(&pfd, 1, -1);
+    } while (result < 0 && errno == EINTR);
+
+    char buffer[64];
+    while (read(reaperPipe[0], buffer, sizeof(buffer)) > 0) {
+    }
+}
+
+JNIEXPORT void JNICALL Java_jackpal_androidterm_TermExec_wakeReaper(JNIEnv *env, jclass clazz) {
+    char byte = 0;
+    write(reaperPipe[1], &byte, 1);
+}
+
+JNIEXPORT jboolean JNICALL Java_jackpal_androidterm_TermExec_hasExited(JNIEnv *env, jclass clazz, jint procId) {
+    siginfo_t info;
+    int result;
+    do {
+        memset(&info, 0, sizeof(info));
+        result = waitid(P_PID, procId, &info, WEXITED | WNOHANG | WNOWAIT);
+    } while (result < 0 && errno == EINTR);
+    // With WNOHANG, si_pid stays 0 if the child is still running
+    return result == 0 && info.si_pid == procId;
+}
+
 JNIEXPORT jint JNICALL Java_jackpal_androidterm_TermExec_createSubprocessInternal(JNIEnv *env, jclass clazz,
     jstring cmd, jobjectArray args, jobjectArray envVars, jint masterFd)
 {
@@ -29,6 +29,18 @@ JNIEXPORT jint JNICALL Java_jackpal_androidterm_TermExec_createSubprocessInterna
 
     JNIEXPORT jint JNICALL Java_jackpal_androidterm_TermExec_waitFor
       (JNIEnv *, jclass, jint);
+
+    JNIEXPORT void JNICALL Java_jackpal_androidterm_TermExec_installChildSignalHandler
+      (JNIEnv *, jclass);
+
+    JNIEXPORT void JNICALL Java_jackpal_androidterm_TermExec_waitForReaperWakeup
+      (JNIEnv *, jclass);
+
+    JNIEXPORT void JNICALL Java_jackpal_androidterm_TermExec_wakeReaper
+      (JNIEnv *, jclass);
+
+    JNIEXPORT jboolean JNICALL Java_jackpal_androidterm_TermExec_hasExited
+      (JNIEnv *, jclass, jint);
 }
 
 #endif	/* !defined(_JACKPAL_PROCESS_H) */
@@ -0,0 +1,238 @@
+package jackpal.androidterm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import jackpal.androidterm.emulatorview.TermSession;
+
+/**
+ * Drives a session through a {@link TermIoEngine}.  Input reaches the session
+ * byte for byte, also when the session's input queue fills and the engine
+ * has to stop reading until room is made; output bigger than the pty can
+ * buffer goes out in order as the pty drains; and end of file detaches the
+ * session from the engine.  One end of a socket pair stands in for the pty
+ * master, and the test plays the process at the other end.
+ */
+public class TermIoEngineTest extends AndroidTestCase {
+    private static final long TIMEOUT = 10000;
+
+    /* Several times the session's input queue */
+    private static final int INPUT_BYTES = 256 * 1024;
+    /* More than a socket buffer holds */
+    private static final int OUTPUT_BYTES = 1024 * 1024;
+
+    private HandlerThread mSessionThread;
+    private TermIoEngine mEngine;
+    private TestSession mSession;
+    private ParcelFileDescriptor[] mSockets;
+    /* The process's ends of the pty */
+    private InputStream mProcessIn;
+    private OutputStream mProcessOut;
+
+    /* A session on the socket pair, which records what it is given to process */
+    private static class TestSession extends TermSession implements PtySession {
+        private final int mFd;
+        final ByteArrayOutputStream mInput = new ByteArrayOutputStream();
+        final Semaphore mInputProcessed = new Semaphore(0);
+        final Semaphore mEof = new Semaphore(0);
+        /* Holds up processing while closed, so that the input queue fills */
+        final Semaphore mGate = new Semaphore(1);
+
+        TestSession(int fd) {
+            mFd = fd;
+        }
+
+        @Override
+        protected void processInput(byte[] data, int offset, int count) {
+            mGate.acquireUninterruptibly();
+            mGate.release();
+            synchronized (mInput) {
+                mInput.write(data, offset, count);
+            }
+            mInputProcessed.release();
+        }
+
+        byte[] input() {
+            synchronized (mInput) {
+                return mInput.toByteArray();
+            }
+        }
+
+        public int getPtyFd() {
+            return mFd;
+        }
+
+        public int readPty(InputSource source) throws IOException {
+            int read = readInput(source);
+            if (read == -1) {
+                mEof.release();
+            }
+            return read;
+        }
+
+        public int writePty(OutputSink sink) throws IOException {
+            return writeOutput(sink);
+        }
+
+        public boolean isPtyInputStalled() {
+            return isInputStalled();
+        }
+
+        public boolean hasPendingPtyOutput() {
+            return hasPendingOutput();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mEngine = new TermIoEngine();
+        mSockets = ParcelFileDescriptor.createSocketPair();
+        mProcessIn = new ParcelFileDescriptor.AutoCloseInputStream(mSockets[1]);
+        mProcessOut = new ParcelFileDescriptor.AutoCloseOutputStream(
+                mSockets[1].dup());
+
+        // The session posts its work to the thread which created it, so give
+        // it a thread with a running Looper
+        mSessionThread = new HandlerThread("TermIoEngineTest");
+        mSessionThread.start();
+        final Semaphore created = new Semaphore(0);
+        new Handler(mSessionThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                mSession = new TestSession(mSockets[0].getFd());
+                mSession.setIoEngine(mEngine);
+                mSession.initializeEmulator(80, 24);
+                created.release();
+            }
+        });
+        created.acquire();
+        assertTrue(mEngine.isAttached(mSession));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSession.mGate.release();
+        final Semaphore finished = new Semaphore(0);
+        new Handler(mSessionThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                mSession.finish();
+                finished.release();
+            }
+        });
+        finished.acquire();
+        mEngine.shutdown();
+        mSessionThread.quit();
+        mProcessIn.close();
+        mProcessOut.close();
+        mSockets[0].close();
+        super.tearDown();
+    }
+
+    private static byte[] sequence(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        return data;
+    }
+
+    /* Write from a thread of its own, as the process would */
+    private Thread startWriter(final byte[] data) {
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    mProcessOut.write(data);
+                } catch (IOException e) {
+                }
+            }
+        };
+        writer.start();
+        return writer;
+    }
+
+    private void waitForInput(int count) throws InterruptedException {
+        while (mSession.input().length < count) {
+            assertTrue(mSession.mInputProcessed.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    public void testInput() throws Exception {
+        byte[] data = sequence(INPUT_BYTES);
+        Thread writer = startWriter(data);
+        waitForInput(INPUT_BYTES);
+        writer.join(TIMEOUT);
+        assertFalse(writer.isAlive());
+
+        assertTrue(Arrays.equals(data, mSession.input()));
+    }
+
+    public void testInputStall() throws Exception {
+        // With processing held up, the engine fills the input queue and has
+        // to stop polling for input
+        mSession.mGate.acquire();
+        byte[] data = sequence(INPUT_BYTES);
+        Thread writer = startWriter(data);
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+        while (!mSession.isPtyInputStalled()) {
+            assertTrue(SystemClock.uptimeMillis() < deadline);
+            SystemClock.sleep(10);
+        }
+
+        // Making room has the engine read again, and nothing is lost
+        mSession.mGate.release();
+        waitForInput(INPUT_BYTES);
+        writer.join(TIMEOUT);
+        assertFalse(writer.isAlive());
+        assertFalse(mSession.isPtyInputStalled());
+        assertTrue(Arrays.equals(data, mSession.input()));
+    }
+
+    public void testOutput() throws Exception {
+        byte[] data = sequence(OUTPUT_BYTES);
+        mSession.write(data, 0, data.length);
+
+        // Let the socket fill, so that the engine has to wait for POLLOUT
+        SystemClock.sleep(200);
+        assertTrue(mSession.hasPendingPtyOutput());
+
+        byte[] received = new byte[OUTPUT_BYTES];
+        int offset = 0;
+        while (offset < OUTPUT_BYTES) {
+            int read = mProcessIn.read(received, offset, OUTPUT_BYTES - offset);
+            assertTrue(read > 0);
+            offset += read;
+        }
+        assertTrue(Arrays.equals(data, received));
+    }
+
+    public void testEndOfFile() throws Exception {
+        mProcessOut.write(sequence(26));
+        waitForInput(26);
+
+        // With every descriptor for the process's end closed, the engine
+        // reads end of file and lets go of the session
+        mProcessOut.close();
+        mProcessIn.close();
+        assertTrue(mSession.mEof.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+        while (mEngine.isAttached(mSession)) {
+            assertTrue(SystemClock.uptimeMillis() < deadline);
+            SystemClock.sleep(10);
+        }
+    }
+}
@@ -37,7 +37,7 @@
  * A terminal session, consisting of a TerminalEmulator, a TranscriptScreen,
  * and the I/O streams used to talk to the process.
  */
-class GenericTermSession extends TermSession {
+class GenericTermSession extends TermSession implements PtySession {
     //** Set to true to force into 80 x 24 for testing with vttest. */
     private static final boolean VTTEST_MODE = false;
 
@@ -206,6 +206,28 @@ void setPtyUTF8Mode(boolean utf8Mode) {
         }
     }
 
+    /* Access to the session's I/O for TermIoEngine */
+
+    public int getPtyFd() throws IOException {
+        return getIntFd(mTermFd);
+    }
+
+    public int readPty(InputSource source) throws IOException {
+        return readInput(source);
+    }
+
+    public int writePty(OutputSink sink) throws IOException {
+        return writeOutput(sink);
+    }
+
+    public boolean isPtyInputStalled() {
+        return isInputStalled();
+    }
+
+    public boolean hasPendingPtyOutput() {
+        return hasPendingOutput();
+    }
+
     /**
      * @return true, if failing to operate on file descriptor deserves an exception (never the case for ATE own shell)
      */
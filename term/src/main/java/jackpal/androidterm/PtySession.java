@@ -0,0 +1,50 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm;
+
+import java.io.IOException;
+
+import jackpal.androidterm.emulatorview.TermSession;
+
+/**
+ * A session talking to a pty, whose I/O a {@link TermIoEngine} can do.  The
+ * methods expose the protected I/O calls of {@link TermSession}.
+ */
+interface PtySession {
+    /**
+     * @return The pty master descriptor.  The engine works on a duplicate.
+     */
+    int getPtyFd() throws IOException;
+
+    /**
+     * @see TermSession#readInput
+     */
+    int readPty(TermSession.InputSource source) throws IOException;
+
+    /**
+     * @see TermSession#writeOutput
+     */
+    int writePty(TermSession.OutputSink sink) throws IOException;
+
+    /**
+     * @see TermSession#isInputStalled
+     */
+    boolean isPtyInputStalled();
+
+    /**
+     * @see TermSession#hasPendingOutput
+     */
+    boolean hasPendingPtyOutput();
+}
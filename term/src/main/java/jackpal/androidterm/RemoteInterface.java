@@ -229,6 +229,7 @@ protected String openNewWindow(String iInitialCommand) {
 
         try {
             TermSession session = Term.createTermSession(this, mSettings, initialCommand);
+            service.configureSession(session);
 
             session.setFinishCallback(service);
             service.getSessions().add(session);
@@ -33,7 +33,6 @@
  */
 public class ShellTermSession extends GenericTermSession {
     private int mProcId;
-    private Thread mWatcherThread;
 
     private String mInitialCommand;
 
@@ -60,17 +59,6 @@ public ShellTermSession(TermSettings settings, String initialCommand) throws IOE
         setTermIn(new ParcelFileDescriptor.AutoCloseInputStream(mTermFd));
 
         mInitialCommand = initialCommand;
-
-        mWatcherThread = new Thread() {
-            @Override
-            public void run() {
-                Log.i(TermDebug.LOG_TAG, "waiting for: " + mProcId);
-                int result = TermExec.waitFor(mProcId);
-                Log.i(TermDebug.LOG_TAG, "Subprocess exited: " + result);
-                mMsgHandler.sendMessage(mMsgHandler.obtainMessage(PROCESS_EXITED, result));
-            }
-        };
-        mWatcherThread.setName("Process watcher");
     }
 
     private void initializeSession() throws IOException {
@@ -118,7 +106,14 @@ private String checkPath(String path) {
     public void initializeEmulator(int columns, int rows) {
         super.initializeEmulator(columns, rows);
 
-        mWatcherThread.start();
+        Log.i(TermDebug.LOG_TAG, "waiting for: " + mProcId);
+        TermExec.onExit(mProcId, new TermExec.ExitCallback() {
+            @Override
+            public void onExit(int processId, int result) {
+                Log.i(TermDebug.LOG_TAG, "Subprocess exited: " + result);
+                mMsgHandler.sendMessage(mMsgHandler.obtainMessage(PROCESS_EXITED, result));
+            }
+        });
         sendInitialCommand(mInitialCommand);
     }
 
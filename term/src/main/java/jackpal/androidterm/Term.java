@@ -39,6 +39,7 @@
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.channels.FileChannel;
@@ -51,6 +52,7 @@
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.ActivityNotFoundException;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
@@ -145,6 +147,9 @@ public class Term extends Activity implements UpdateCallback, SharedPreferences.
     // Available on API 12 and later
     private static final int FLAG_INCLUDE_STOPPED_PACKAGES = 0x20;
 
+    /* Pastes at least this big get a progress dialog */
+    private static final int PASTE_PROGRESS_THRESHOLD = 64 * 1024;
+
     private TermService mTermService;
     private ServiceConnection mTSConnection = new ServiceConnection() {
         public void onServiceConnected(ComponentName className, IBinder service) {
@@ -598,6 +603,7 @@ protected static TermSession createTermSession(Context context, TermSettings set
     private TermSession createTermSession() throws IOException {
         TermSettings settings = mSettings;
         TermSession session = createTermSession(this, settings, getInitialCommand());
+        mTermService.configureSession(session);
         session.setFinishCallback(mTermService);
         return session;
     }
@@ -619,6 +625,7 @@ private TermView createEmulatorView(TermSession session) {
         emulatorView.setExtGestureListener(new EmulatorViewGestureListener(emulatorView));
         emulatorView.setOnKeyListener(mKeyListener);
         registerForContextMenu(emulatorView);
+        emulatorView.setMetricsOverlay(TermDebug.METRICS);
 
         if (mFirstInputtype) {
             emulatorView.setImeShortcutsAction(mSettings.getmImeDefaultInputtype());
@@ -1424,7 +1431,49 @@ private void doPaste() {
         ClipboardManagerCompat clip = ClipboardManagerCompatFactory
                 .getManager(getApplicationContext());
         CharSequence paste = clip.getText();
-        getCurrentTermSession().write(paste.toString());
+        byte[] data;
+        try {
+            data = paste.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return;
+        }
+        // Pastes of any size go the same way, so that they look the same to
+        // the session; only big ones are worth a dialog
+        if (data.length < PASTE_PROGRESS_THRESHOLD) {
+            getCurrentTermSession().writeStreamed(data, null);
+            return;
+        }
+
+        // Big pastes trickle out as the shell reads them; show how far along
+        // they are and let the user call them off
+        final ProgressDialog progress = new ProgressDialog(this);
+        progress.setMessage(getString(R.string.paste_progress));
+        progress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progress.setMax(data.length);
+        final TermSession.PendingWrite write = getCurrentTermSession().writeStreamed(data,
+                new TermSession.WriteListener() {
+                    public void onWriteProgress(int written, int total) {
+                        progress.setProgress(written);
+                    }
+
+                    public void onWriteFinished(boolean cancelled) {
+                        progress.dismiss();
+                    }
+                });
+        progress.setButton(DialogInterface.BUTTON_NEGATIVE, getString(android.R.string.cancel),
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        write.cancel();
+                    }
+                });
+        progress.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            public void onCancel(DialogInterface dialog) {
+                write.cancel();
+            }
+        });
+        if (!write.isDone()) {
+            progress.show();
+        }
     }
 
     private void doSendControlKey() {
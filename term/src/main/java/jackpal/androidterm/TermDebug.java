@@ -26,6 +26,12 @@ public class TermDebug {
      */
     public static final boolean DEBUG = false;
 
+    /**
+     * Set to true to collect per-session I/O and drawing metrics, show them
+     * over the terminal, and include them in the service's dumpsys output.
+     */
+    public static final boolean METRICS = false;
+
     /**
      * The tag we use when logging, so that our messages can be distinguished
      * from other messages in the log. Public because it's used by several
@@ -0,0 +1,291 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.util.Log;
+
+import jackpal.androidterm.emulatorview.TermSession;
+
+/**
+ * Does the pty I/O of every attached session from a single thread, instead
+ * of a reader and a writer thread per session.
+ * <p>
+ * Sessions must implement {@link PtySession}.  The engine works on a
+ * duplicate of each session's pty descriptor, which only it closes, so a
+ * session closing its own descriptor can never leave the engine polling a
+ * number that has since been reused.  The duplicate shares the file status
+ * flags, though, so the session's own descriptor becomes non-blocking too
+ * (see {@link PtyPoller#dup}).
+ */
+class TermIoEngine implements TermSession.IoEngine {
+    private static final String TAG = "TermIoEngine";
+
+    /* Reads per session per wakeup, so that one busy session can't starve the rest */
+    private static final int MAX_READS_PER_POLL = 4;
+
+    private static final class Channel implements TermSession.InputSource,
+            TermSession.OutputSink {
+        final TermSession session;
+        final PtySession pty;
+        final int fd;
+        volatile boolean stopped;
+
+        Channel(TermSession session, PtySession pty, int fd) {
+            this.session = session;
+            this.pty = pty;
+            this.fd = fd;
+        }
+
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return PtyPoller.read(fd, buffer, offset, length);
+        }
+
+        public int write(byte[] buffer, int offset, int length) throws IOException {
+            return PtyPoller.write(fd, buffer, offset, length);
+        }
+    }
+
+    private volatile boolean mRunning = true;
+
+    private final int mWakeupReadFd;
+    private final int mWakeupWriteFd;
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean();
+    private final byte[] mWakeupBuffer = new byte[64];
+    private final byte[] mWakeupByte = new byte[1];
+    /* Guarded by mWakeupLock, so that nobody writes to a closed descriptor */
+    private final Object mWakeupLock = new Object();
+    private boolean mWakeupClosed;
+
+    /* Channels by session; guarded by itself */
+    private final HashMap<TermSession, Channel> mChannelMap = new HashMap<TermSession, Channel>();
+    /* Channels started since the engine thread last looked */
+    private final ConcurrentLinkedQueue<Channel> mStarted = new ConcurrentLinkedQueue<Channel>();
+
+    /* Only touched by the engine thread */
+    private final ArrayList<Channel> mChannels = new ArrayList<Channel>();
+    private int[] mFds = new int[8];
+    private short[] mEvents = new short[8];
+    private short[] mRevents = new short[8];
+
+    TermIoEngine() throws IOException {
+        int[] wakeupPipe = PtyPoller.pipe();
+        mWakeupReadFd = wakeupPipe[0];
+        mWakeupWriteFd = wakeupPipe[1];
+
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    loop();
+                } catch (IOException e) {
+                    Log.e(TAG, "I/O engine failed: " + e.getMessage());
+                } finally {
+                    closeAll();
+                }
+            }
+        };
+        thread.setName("Terminal I/O engine");
+        thread.start();
+    }
+
+    public void start(TermSession session) {
+        if (!(session instanceof PtySession)) {
+            throw new IllegalArgumentException("Not a pty session: " + session);
+        }
+        PtySession pty = (PtySession) session;
+        Channel channel;
+        try {
+            channel = new Channel(session, pty, PtyPoller.dup(pty.getPtyFd()));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to attach session: " + e.getMessage());
+            return;
+        }
+        synchronized (mChannelMap) {
+            mChannelMap.put(session, channel);
+        }
+        mStarted.offer(channel);
+        wakeup();
+    }
+
+    public void onSessionReady(TermSession session) {
+        wakeup();
+    }
+
+    public void stop(TermSession session) {
+        Channel channel;
+        synchronized (mChannelMap) {
+            channel = mChannelMap.remove(session);
+        }
+        if (channel != null) {
+            channel.stopped = true;
+            wakeup();
+        }
+    }
+
+    /**
+     * Stop the engine thread.  Sessions still attached stop getting I/O.
+     */
+    void shutdown() {
+        mRunning = false;
+        wakeup();
+    }
+
+    private void wakeup() {
+        if (mWakeupPending.compareAndSet(false, true)) {
+            synchronized (mWakeupLock) {
+                if (mWakeupClosed) {
+                    return;
+                }
+                try {
+                    PtyPoller.write(mWakeupWriteFd, mWakeupByte, 0, 1);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to wake up I/O engine: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void loop() throws IOException {
+        while (mRunning) {
+            Channel started;
+            while ((started = mStarted.poll()) != null) {
+                mChannels.add(started);
+            }
+
+            int count = buildPollSet();
+            PtyPoller.poll(mFds, mEvents, mRevents, count, -1);
+
+            if (mRevents[0] != 0) {
+                // Clear the flag first, so that a later wakeup writes again
+                mWakeupPending.set(false);
+                while (PtyPoller.read(mWakeupReadFd, mWakeupBuffer, 0,
+                        mWakeupBuffer.length) > 0) {
+                }
+            }
+
+            for (int i = 1; i < count; ++i) {
+                short revents = mRevents[i];
+                if (revents != 0) {
+                    dispatch(mChannels.get(i - 1), revents);
+                }
+            }
+        }
+    }
+
+    /* Fill in the poll set, dropping channels which have been stopped */
+    private int buildPollSet() {
+        ArrayList<Channel> channels = mChannels;
+        for (int i = channels.size() - 1; i >= 0; --i) {
+            Channel channel = channels.get(i);
+            if (channel.stopped) {
+                channels.remove(i);
+                PtyPoller.close(channel.fd);
+            }
+        }
+
+        int count = channels.size() + 1;
+        if (mFds.length < count) {
+            int size = Math.max(count, mFds.length * 2);
+            mFds = new int[size];
+            mEvents = new short[size];
+            mRevents = new short[size];
+        }
+
+        mFds[0] = mWakeupReadFd;
+        mEvents[0] = PtyPoller.POLLIN;
+        for (int i = 1; i < count; ++i) {
+            PtySession pty = channels.get(i - 1).pty;
+            short events = 0;
+            if (!pty.isPtyInputStalled()) {
+                events |= PtyPoller.POLLIN;
+            }
+            if (pty.hasPendingPtyOutput()) {
+                events |= PtyPoller.POLLOUT;
+            }
+            // poll() still reports hangups for a descriptor with no events of
+            // interest, so leave it out entirely until there is something to do
+            mFds[i] = events != 0 ? channels.get(i - 1).fd : -1;
+            mEvents[i] = events;
+        }
+        return count;
+    }
+
+    private void dispatch(Channel channel, short revents) {
+        PtySession pty = channel.pty;
+        try {
+            if ((revents & PtyPoller.POLLOUT) != 0) {
+                pty.writePty(channel);
+            }
+            if ((revents & (PtyPoller.POLLIN | PtyPoller.POLLHUP | PtyPoller.POLLERR)) != 0) {
+                for (int i = 0; i < MAX_READS_PER_POLL; ++i) {
+                    int read = pty.readPty(channel);
+                    if (read == -1) {
+                        // The process is gone; nothing more will come
+                        detach(channel);
+                        break;
+                    } else if (read == 0) {
+                        break;
+                    }
+                }
+            }
+            if ((revents & PtyPoller.POLLNVAL) != 0) {
+                detach(channel);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "I/O error on " + channel.session + ": " + e.getMessage());
+            detach(channel);
+        }
+    }
+
+    /* Stop a channel from the engine thread, and forget its session */
+    private void detach(Channel channel) {
+        channel.stopped = true;
+        synchronized (mChannelMap) {
+            // The session may have been stopped and started again meanwhile
+            if (mChannelMap.get(channel.session) == channel) {
+                mChannelMap.remove(channel.session);
+            }
+        }
+    }
+
+    /* For tests: whether a session is still attached */
+    boolean isAttached(TermSession session) {
+        synchronized (mChannelMap) {
+            return mChannelMap.containsKey(session);
+        }
+    }
+
+    private void closeAll() {
+        for (Channel channel : mChannels) {
+            PtyPoller.close(channel.fd);
+        }
+        mChannels.clear();
+        Channel started;
+        while ((started = mStarted.poll()) != null) {
+            PtyPoller.close(started.fd);
+        }
+        synchronized (mWakeupLock) {
+            mWakeupClosed = true;
+            PtyPoller.close(mWakeupReadFd);
+            PtyPoller.close(mWakeupWriteFd);
+        }
+    }
+}
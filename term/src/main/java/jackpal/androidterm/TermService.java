@@ -35,6 +35,7 @@
 import android.app.Notification;
 import android.app.PendingIntent;
 
+import jackpal.androidterm.emulatorview.SessionMetrics;
 import jackpal.androidterm.emulatorview.TermSession;
 
 import jackpal.androidterm.compat.AndroidCompat;
@@ -44,6 +45,9 @@
 import jackpal.androidterm.util.TermSettings;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.UUID;
 
 public class TermService extends Service implements TermSession.FinishCallback
@@ -56,6 +60,16 @@ public class TermService extends Service implements TermSession.FinishCallback
 
     private SessionList mTermSessions;
 
+    /** Set to true to run each session's terminal emulation on a thread of its own. */
+    private static final boolean USE_EMULATION_THREAD = false;
+
+    /** Set to true to do the I/O of all sessions from a single thread. */
+    private static final boolean USE_IO_ENGINE = false;
+    private TermIoEngine mIoEngine;
+
+    /** Set to true to keep rows which scroll out of a session's transcript in the cache dir. */
+    private static final boolean USE_SCROLLBACK_FILE = false;
+
     public class TSBinder extends Binder {
         TermService getService() {
             Log.i("TermService", "Activity binding to service");
@@ -100,6 +114,26 @@ public void onCreate() {
         compat = new ServiceForegroundCompat(this);
         mTermSessions = new SessionList();
 
+        if (USE_SCROLLBACK_FILE) {
+            // Files left behind if the process was killed belong to no session
+            File[] files = getCacheDir().listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().startsWith("scrollback")) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+
+        if (USE_IO_ENGINE) {
+            try {
+                mIoEngine = new TermIoEngine();
+            } catch (IOException e) {
+                Log.e(TermDebug.LOG_TAG, "Failed to start I/O engine: " + e.getMessage());
+            }
+        }
+
         int priority = Notification.PRIORITY_DEFAULT;
         SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(this);
         if (pref.getBoolean("statusbar_icon", true) == false) priority = Notification.PRIORITY_MIN;
@@ -145,6 +179,9 @@ public void onDestroy() {
             session.finish();
         }
         mTermSessions.clear();
+        if (mIoEngine != null) {
+            mIoEngine.shutdown();
+        }
         return;
     }
 
@@ -152,6 +189,41 @@ public SessionList getSessions() {
         return mTermSessions;
     }
 
+    /**
+     * Set up a new session to run under this service: choose the thread it
+     * runs its emulation on, attach it to the I/O engine, if any, and turn on
+     * metrics collection in debug builds.  Must be called before the
+     * session's emulator is initialized.
+     */
+    void configureSession(TermSession session) {
+        session.setEmulationThreadEnabled(USE_EMULATION_THREAD);
+        if (session instanceof PtySession) {
+            session.setIoEngine(mIoEngine);
+        }
+        if (USE_SCROLLBACK_FILE) {
+            session.setScrollbackDirectory(getCacheDir());
+        }
+        session.setMetricsEnabled(TermDebug.METRICS);
+    }
+
+    /* Reached with "adb shell dumpsys activity service jackpal.androidterm/.TermService" */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        SessionList sessions = mTermSessions;
+        writer.println(sessions.size() + " sessions");
+        for (int i = 0; i < sessions.size(); ++i) {
+            TermSession session = sessions.get(i);
+            writer.println();
+            writer.println("Session " + i + " (" + session.getTitle() + "):");
+            SessionMetrics metrics = session.getMetrics();
+            if (metrics != null) {
+                writer.print(metrics.getReport());
+            } else {
+                writer.println("metrics not enabled");
+            }
+        }
+    }
+
     public void onSessionFinish(TermSession session) {
         mTermSessions.remove(session);
     }
@@ -199,6 +271,7 @@ public void run() {
                                             PreferenceManager.getDefaultSharedPreferences(getApplicationContext()));
 
                                     session = new BoundSession(pseudoTerminalMultiplexerFd, settings, niceName);
+                                    configureSession(session);
 
                                     mTermSessions.add(session);
 
@@ -0,0 +1,341 @@
+package jackpal.androidterm.emulatorview;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that output written to a {@link TermSession} reaches the session's
+ * output stream byte for byte and in order: single keystrokes, a large
+ * streamed paste, and keystrokes typed while a paste is going out.  Also
+ * checks that a paste goes through write() and reports its progress, that it
+ * can be cancelled, and that the writer thread flushes once per batch of
+ * writes.  A pipe stands in for the pty.
+ */
+public class TermSessionWriteTest extends AndroidTestCase {
+    private static final int KEYSTROKES = 2000;
+    private static final int PASTE_BYTES = 1024 * 1024;
+
+    private HandlerThread mSessionThread;
+    private CountingSession mSession;
+    private ParcelFileDescriptor[] mInputPipe;
+    private InputStream mOutput;
+
+    private CountingOutputStream mTermOut;
+
+    /* Everything the drain thread has read from the output pipe */
+    private final ByteArrayOutputStream mReceivedBytes = new ByteArrayOutputStream();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final Semaphore mReceived = new Semaphore(0);
+    private Thread mDrainThread;
+
+    /* Counts the bytes which go through write(), as a subclass would see them */
+    private static class CountingSession extends TermSession {
+        final AtomicLong mBytesWritten = new AtomicLong();
+
+        @Override
+        public void write(byte[] data, int offset, int count) {
+            mBytesWritten.addAndGet(count);
+            super.write(data, offset, count);
+        }
+    }
+
+    /* Records what a paste reports; called on the session thread */
+    private static class RecordingListener implements TermSession.WriteListener {
+        final List<Integer> mProgress = new ArrayList<Integer>();
+        volatile int mTotal;
+        volatile int mFinishes;
+        volatile boolean mCancelled;
+        final Semaphore mFinished = new Semaphore(0);
+
+        public void onWriteProgress(int written, int total) {
+            synchronized (mProgress) {
+                mProgress.add(written);
+            }
+            mTotal = total;
+        }
+
+        public void onWriteFinished(boolean cancelled) {
+            mCancelled = cancelled;
+            ++mFinishes;
+            mFinished.release();
+        }
+
+        int lastProgress() {
+            synchronized (mProgress) {
+                return mProgress.isEmpty() ? 0 : mProgress.get(mProgress.size() - 1);
+            }
+        }
+    }
+
+    /* Counts the writer thread's writes and flushes */
+    private static class CountingOutputStream extends FilterOutputStream {
+        volatile int mWrites;
+        volatile int mFlushes;
+        /* Flushes with nothing written since the last one */
+        volatile int mEmptyFlushes;
+        private boolean mWrittenSinceFlush;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            // Counted first, so that the count is in by the time the reader has the data
+            ++mWrites;
+            mWrittenSinceFlush = true;
+            out.write(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+            ++mFlushes;
+            if (!mWrittenSinceFlush) {
+                ++mEmptyFlushes;
+            }
+            mWrittenSinceFlush = false;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // The session posts its work to the thread which created it, so give
+        // it a thread with a running Looper
+        mSessionThread = new HandlerThread("TermSessionWriteTest");
+        mSessionThread.start();
+        final Semaphore created = new Semaphore(0);
+        new Handler(mSessionThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                mSession = new CountingSession();
+                created.release();
+            }
+        });
+        created.acquire();
+
+        mInputPipe = ParcelFileDescriptor.createPipe();
+        ParcelFileDescriptor[] outputPipe = ParcelFileDescriptor.createPipe();
+        mSession.setTermIn(new ParcelFileDescriptor.AutoCloseInputStream(mInputPipe[0]));
+        mTermOut = new CountingOutputStream(
+                new ParcelFileDescriptor.AutoCloseOutputStream(outputPipe[1]));
+        mSession.setTermOut(mTermOut);
+        mOutput = new ParcelFileDescriptor.AutoCloseInputStream(outputPipe[0]);
+
+        mDrainThread = new Thread() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[64 * 1024];
+                try {
+                    int read;
+                    while ((read = mOutput.read(buffer)) != -1) {
+                        synchronized (mReceivedBytes) {
+                            mReceivedBytes.write(buffer, 0, read);
+                        }
+                        mBytesReceived.addAndGet(read);
+                        mReceived.release();
+                    }
+                } catch (IOException e) {
+                }
+            }
+        };
+        mDrainThread.start();
+
+        mSession.initializeEmulator(80, 24);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new Handler(mSessionThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                mSession.finish();
+            }
+        });
+        mInputPipe[1].close();
+        mDrainThread.join();
+        mSessionThread.quit();
+        super.tearDown();
+    }
+
+    private static byte expectedByte(long position) {
+        return (byte) ('a' + position % 26);
+    }
+
+    private static byte[] sequence(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = expectedByte(i);
+        }
+        return data;
+    }
+
+    private byte[] received() {
+        synchronized (mReceivedBytes) {
+            return mReceivedBytes.toByteArray();
+        }
+    }
+
+    /* Fail at the first byte which differs, rather than dumping megabytes */
+    private void assertReceived(byte[] expected) {
+        byte[] received = received();
+        int length = Math.min(expected.length, received.length);
+        for (int i = 0; i < length; ++i) {
+            if (expected[i] != received[i]) {
+                fail("Byte " + i + " is " + received[i] + ", expected " + expected[i]);
+            }
+        }
+        assertEquals(expected.length, received.length);
+    }
+
+    /* Start a streamed write from the session thread, as the UI would */
+    private TermSession.PendingWrite writeStreamed(final byte[] data,
+            final TermSession.WriteListener listener) throws InterruptedException {
+        final TermSession.PendingWrite[] write = new TermSession.PendingWrite[1];
+        final Semaphore started = new Semaphore(0);
+        new Handler(mSessionThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                write[0] = mSession.writeStreamed(data, listener);
+                started.release();
+            }
+        });
+        started.acquire();
+        return write[0];
+    }
+
+    private void waitForBytes(long count) throws InterruptedException {
+        while (mBytesReceived.get() < count) {
+            mReceived.acquire();
+        }
+    }
+
+    public void testKeystrokes() throws Exception {
+        for (int i = 0; i < KEYSTROKES; ++i) {
+            mSession.write(expectedByte(i));
+            waitForBytes(i + 1);
+        }
+
+        assertReceived(sequence(KEYSTROKES));
+        // Each keystroke was waited for, so none could share a write
+        assertEquals(KEYSTROKES, mTermOut.mWrites);
+        assertTrue(mTermOut.mFlushes <= mTermOut.mWrites);
+        assertEquals(0, mTermOut.mEmptyFlushes);
+    }
+
+    public void testPaste() throws Exception {
+        byte[] data = sequence(PASTE_BYTES);
+        writeStreamed(data, null);
+        waitForBytes(PASTE_BYTES);
+
+        assertReceived(data);
+        assertTrue(mTermOut.mFlushes <= mTermOut.mWrites);
+        assertEquals(0, mTermOut.mEmptyFlushes);
+    }
+
+    public void testKeystrokesDuringPaste() throws Exception {
+        // The paste is all lower case and the keystrokes all digits, so each
+        // can be picked out of what arrives
+        byte[] data = sequence(PASTE_BYTES);
+        RecordingListener listener = new RecordingListener();
+        writeStreamed(data, listener);
+        byte[] keys = new byte[KEYSTROKES];
+        for (int i = 0; i < KEYSTROKES; ++i) {
+            keys[i] = (byte) ('0' + i % 10);
+            mSession.write(keys[i]);
+        }
+        listener.mFinished.acquire();
+        waitForBytes(PASTE_BYTES + KEYSTROKES);
+
+        byte[] received = received();
+        assertEquals(PASTE_BYTES + KEYSTROKES, received.length);
+        ByteArrayOutputStream pasted = new ByteArrayOutputStream();
+        ByteArrayOutputStream typed = new ByteArrayOutputStream();
+        for (byte b : received) {
+            if (b >= '0' && b <= '9') {
+                typed.write(b);
+            } else {
+                pasted.write(b);
+            }
+        }
+        // Keystrokes may go out between pieces of the paste, but neither is
+        // reordered or loses anything
+        assertTrue(Arrays.equals(keys, typed.toByteArray()));
+        assertTrue(Arrays.equals(data, pasted.toByteArray()));
+        assertFalse(listener.mCancelled);
+    }
+
+    public void testPasteProgress() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        TermSession.PendingWrite write = writeStreamed(sequence(PASTE_BYTES), listener);
+        listener.mFinished.acquire();
+        waitForBytes(PASTE_BYTES);
+
+        assertTrue(write.isDone());
+        assertFalse(listener.mCancelled);
+        assertEquals(1, listener.mFinishes);
+        assertEquals(PASTE_BYTES, listener.mTotal);
+        // Progress only ever goes forward, and ends with all of it written
+        int previous = 0;
+        for (int written : listener.mProgress) {
+            assertTrue(written > previous);
+            previous = written;
+        }
+        assertEquals(PASTE_BYTES, previous);
+
+        // All of it went through write(), where a subclass can see it
+        assertEquals(PASTE_BYTES, mSession.mBytesWritten.get());
+        assertReceived(sequence(PASTE_BYTES));
+    }
+
+    public void testCancelPaste() throws Exception {
+        // Call the paste off as soon as the first piece is out; the listener
+        // runs on the session thread, after the write has been started there
+        final TermSession.PendingWrite[] write = new TermSession.PendingWrite[1];
+        final RecordingListener listener = new RecordingListener() {
+            @Override
+            public void onWriteProgress(int written, int total) {
+                super.onWriteProgress(written, total);
+                write[0].cancel();
+            }
+        };
+        final byte[] data = sequence(PASTE_BYTES);
+        new Handler(mSessionThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                write[0] = mSession.writeStreamed(data, listener);
+            }
+        });
+        listener.mFinished.acquire();
+
+        assertTrue(write[0].isDone());
+        assertTrue(listener.mCancelled);
+        assertEquals(1, listener.mFinishes);
+        int written = listener.lastProgress();
+        assertTrue(written > 0);
+        assertTrue(written < PASTE_BYTES);
+        assertEquals(written, mSession.mBytesWritten.get());
+
+        // What was written before the cancel arrives, and the next write
+        // follows it directly, with nothing more of the paste in between
+        byte[] next = sequence(written + 26);
+        mSession.write(next, written, 26);
+        waitForBytes(written + 26);
+        assertReceived(next);
+    }
+}